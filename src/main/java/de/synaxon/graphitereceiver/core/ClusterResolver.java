@@ -0,0 +1,252 @@
+package de.synaxon.graphitereceiver.core;
+
+import com.vmware.ee.statsfeeder.ExecutionContext;
+import com.vmware.ee.statsfeeder.PerfMetricSet;
+import com.vmware.vim25.ManagedObjectReference;
+import de.synaxon.graphitereceiver.domain.EntityType;
+import de.synaxon.graphitereceiver.utils.Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ClusterResolver looks up VMs and ESX hosts which are not in the cluster map in the background instead of dropping
+ * their metrics until the next full refresh.
+ *
+ * Misses of all threads are coalesced, one lookup thread resolves all pending entities with a single
+ * {@link Utils#resolveClusters} call and waits at least minInterval between two calls. Entities are looked up by the
+ * managed object reference of their metric set when it carries one, else by name. The metric sets of a pending
+ * entity are held in a bounded buffer and handed back to the {@link Replayer} when the cluster is known. Entities
+ * which have no cluster go into a negative cache for negativeTtl, so they never cause repeated vCenter calls.
+ */
+public class ClusterResolver {
+
+    /**
+     * Feeds a held metric set through the receiver again.
+     */
+    public interface Replayer {
+        void replay(String entityName, PerfMetricSet metricSet);
+    }
+
+    private static class Held {
+        private final String entityName;
+        private final PerfMetricSet metricSet;
+
+        Held(String entityName, PerfMetricSet metricSet) {
+            this.entityName = entityName;
+            this.metricSet = metricSet;
+        }
+    }
+
+    private Log logger = LogFactory.getLog(ClusterResolver.class);
+    private final ExecutionContext context;
+    private final Map<String, String> clusterMap;
+    private final Replayer replayer;
+    private final long minInterval;
+    private final long negativeTtl;
+    private final int maxHeld;
+    private final Map<String, Long> negativeCache = new ConcurrentHashMap<String, Long>();
+    private final Map<String, ManagedObjectReference> pendingVms = new HashMap<String, ManagedObjectReference>();
+    private final Map<String, ManagedObjectReference> pendingHosts = new HashMap<String, ManagedObjectReference>();
+    private final Set<String> inFlight = new HashSet<String>();
+    private final Map<String, List<Held>> held = new HashMap<String, List<Held>>();
+    private final ReadWriteLock retrievalLock = new ReentrantReadWriteLock();
+    private int heldCount;
+    private long droppedSets;
+    private long lookups;
+    private boolean retrievalOpen;
+
+    /**
+     * @param minInterval minimum time in millis between two vCenter lookups
+     * @param negativeTtl time in millis an entity without cluster is not looked up again
+     * @param maxHeld maximum number of metric sets held for pending entities
+     */
+    public ClusterResolver(ExecutionContext context, Map<String, String> clusterMap, Replayer replayer, long minInterval, long negativeTtl, int maxHeld) {
+        this.context = context;
+        this.clusterMap = clusterMap;
+        this.replayer = replayer;
+        this.minInterval = minInterval;
+        this.negativeTtl = negativeTtl;
+        this.maxHeld = maxHeld;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                lookupLoop();
+            }
+        }, "GraphiteReceiver-ClusterResolver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Called for an entity missing in the cluster map. The metric set is held until the lookup is done.
+     *
+     * @param entity entity name as used in the cluster map
+     * @param isVirtualMachine true for VMs, false for ESX hosts
+     * @return false if the entity was looked up recently without cluster, the metric set is not held then
+     */
+    public boolean miss(String entity, boolean isVirtualMachine, String entityName, PerfMetricSet metricSet) {
+        Long expires = this.negativeCache.get(entity);
+        if(expires != null) {
+            if(expires > System.currentTimeMillis()) {
+                return false;
+            }
+            this.negativeCache.remove(entity);
+        }
+        synchronized (this) {
+            if(this.heldCount >= this.maxHeld) {
+                this.droppedSets++;
+            } else {
+                List<Held> sets = this.held.get(entity);
+                if(sets == null) {
+                    sets = new ArrayList<Held>();
+                    this.held.put(entity, sets);
+                }
+                sets.add(new Held(entityName, metricSet));
+                this.heldCount++;
+            }
+            // an entity already being looked up gets its held sets with the running lookup
+            if(!this.inFlight.contains(entity)) {
+                Map<String, ManagedObjectReference> pending = isVirtualMachine ? this.pendingVms : this.pendingHosts;
+                if(!pending.containsKey(entity)) {
+                    EntityType entityType = isVirtualMachine ? EntityType.VIRTUAL_MACHINE : EntityType.HOST_SYSTEM;
+                    pending.put(entity, Utils.getReference(entityType, (metricSet == null) ? null : metricSet.getEntityName()));
+                    this.notifyAll();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Held metric sets are only replayed while a retrieval is open.
+     */
+    public void startRetrieval() {
+        this.retrievalLock.writeLock().lock();
+        try {
+            this.retrievalOpen = true;
+        } finally {
+            this.retrievalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for a running replay, the metric sets still held are dropped.
+     *
+     * @return number of metric sets dropped in this retrieval
+     */
+    public long endRetrieval() {
+        this.retrievalLock.writeLock().lock();
+        try {
+            this.retrievalOpen = false;
+        } finally {
+            this.retrievalLock.writeLock().unlock();
+        }
+        synchronized (this) {
+            long dropped = this.droppedSets + this.heldCount;
+            this.held.clear();
+            this.heldCount = 0;
+            this.droppedSets = 0;
+            return dropped;
+        }
+    }
+
+    public boolean isNegative(String entity) {
+        Long expires = this.negativeCache.get(entity);
+        return expires != null && expires > System.currentTimeMillis();
+    }
+
+    public synchronized long getLookups() {
+        return this.lookups;
+    }
+
+    private void lookupLoop() {
+        long lastLookup = 0;
+        while(!Thread.currentThread().isInterrupted()) {
+            Map<String, ManagedObjectReference> vms;
+            Map<String, ManagedObjectReference> hosts;
+            try {
+                synchronized (this) {
+                    while(this.pendingVms.isEmpty() && this.pendingHosts.isEmpty()) {
+                        this.wait();
+                    }
+                }
+                long wait = lastLookup + this.minInterval - System.currentTimeMillis();
+                if(wait > 0) {
+                    Thread.sleep(wait);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                vms = new HashMap<String, ManagedObjectReference>(this.pendingVms);
+                hosts = new HashMap<String, ManagedObjectReference>(this.pendingHosts);
+                this.pendingVms.clear();
+                this.pendingHosts.clear();
+                this.inFlight.addAll(vms.keySet());
+                this.inFlight.addAll(hosts.keySet());
+                this.lookups++;
+            }
+            lastLookup = System.currentTimeMillis();
+
+            Map<String, String> found = new HashMap<String, String>();
+            boolean success = Utils.resolveClusters(vms, hosts, this.context, found);
+            logger.info("ClusterResolver looked up " + (vms.size() + hosts.size()) + " entities in " + (System.currentTimeMillis() - lastLookup) + " ms, found " + found.size());
+            this.clusterMap.putAll(found);
+
+            Set<String> requested = new HashSet<String>(vms.keySet());
+            requested.addAll(hosts.keySet());
+            Map<String, List<Held>> resolved = new HashMap<String, List<Held>>();
+            synchronized (this) {
+                this.inFlight.clear();
+                for(String entity : requested) {
+                    List<Held> sets = this.held.remove(entity);
+                    if(sets != null) {
+                        this.heldCount -= sets.size();
+                        if(found.containsKey(entity)) {
+                            resolved.put(entity, sets);
+                        } else {
+                            this.droppedSets += sets.size();
+                        }
+                    }
+                    if(success && !found.containsKey(entity)) {
+                        this.negativeCache.put(entity, lastLookup + this.negativeTtl);
+                    }
+                }
+            }
+            this.replay(resolved);
+        }
+    }
+
+    private void replay(Map<String, List<Held>> resolved) {
+        if(resolved.isEmpty()) {
+            return;
+        }
+        this.retrievalLock.readLock().lock();
+        try {
+            if(!this.retrievalOpen) {
+                synchronized (this) {
+                    for(List<Held> sets : resolved.values()) {
+                        this.droppedSets += sets.size();
+                    }
+                }
+                return;
+            }
+            for(List<Held> sets : resolved.values()) {
+                for(Held set : sets) {
+                    this.replayer.replay(set.entityName, set.metricSet);
+                }
+            }
+        } finally {
+            this.retrievalLock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.CounterDescriptor;
+import de.synaxon.graphitereceiver.domain.Rollup;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CounterRegistry builds the {@link CounterDescriptor} of a counter name the first time the counter is seen, so the
+ * counter name is parsed once instead of for every metric set. Counters with an unsupported rollup are logged once
+ * and their samples are counted.
+ *
+ * derived_rollups adds rollups computed locally from the samples of a counter, e.g.
+ * "cpu.usage.average=maximum,minimum;mem.usage.average=maximum", which are sent as sibling series.
+ */
+public class CounterRegistry {
+
+    private Log logger = LogFactory.getLog(CounterRegistry.class);
+    private final ConcurrentHashMap<String, CounterDescriptor> descriptors = new ConcurrentHashMap<String, CounterDescriptor>();
+    private final StripedCounter unsupported = new StripedCounter();
+    private final Map<String, List<Rollup>> derivedRollups = new HashMap<String, List<Rollup>>();
+
+    public CounterRegistry() {
+        this(null);
+    }
+
+    /**
+     * @param derivedRollups value of derived_rollups, may be null
+     */
+    public CounterRegistry(String derivedRollups) {
+        if(derivedRollups == null || derivedRollups.trim().isEmpty()) {
+            return;
+        }
+        for(String entry : derivedRollups.split(";")) {
+            String[] pair = entry.split("=", 2);
+            if(pair.length != 2 || !CounterDescriptor.isValid(pair[0].trim())) {
+                logger.warn("Invalid derived_rollups entry, ignoring it: " + entry);
+                continue;
+            }
+            List<Rollup> rollups = new ArrayList<Rollup>();
+            for(String name : pair[1].split(",")) {
+                Rollup rollup = Rollup.fromName(name.trim());
+                if(rollup == Rollup.UNSUPPORTED) {
+                    logger.warn("Unsupported derived rollup " + name + " of " + pair[0].trim() + ", ignoring it.");
+                } else {
+                    rollups.add(rollup);
+                }
+            }
+            this.derivedRollups.put(pair[0].trim(), rollups);
+        }
+    }
+
+    /**
+     * @return the descriptor of the counter, null if the counter name can't be parsed
+     */
+    public CounterDescriptor get(String counterName) {
+        CounterDescriptor descriptor = this.descriptors.get(counterName);
+        if(descriptor != null) {
+            return descriptor;
+        }
+        if(!CounterDescriptor.isValid(counterName)) {
+            return null;
+        }
+        descriptor = this.create(counterName);
+        CounterDescriptor existing = this.descriptors.putIfAbsent(counterName, descriptor);
+        if(existing != null) {
+            return existing;
+        }
+        if(descriptor.getRollup() == Rollup.UNSUPPORTED) {
+            logger.info("Not supported Rollup agration: " + descriptor.getRollupName() + " of counter " + counterName + ", its samples are counted as unsupported.");
+        }
+        return descriptor;
+    }
+
+    /**
+     * Counts samples which were not written because the rollup of their counter is not supported.
+     */
+    public void unsupported(int samples) {
+        this.unsupported.add(samples);
+    }
+
+    /**
+     * @return unsupported samples since the last call
+     */
+    public long takeUnsupported() {
+        return this.unsupported.sumThenReset();
+    }
+
+    private CounterDescriptor create(String counterName) {
+        List<Rollup> rollups = this.derivedRollups.get(counterName);
+        if(rollups == null) {
+            return new CounterDescriptor(counterName);
+        }
+        CounterDescriptor plain = new CounterDescriptor(counterName);
+        String base = plain.getGroup() + "." + plain.getMetric() + ".";
+        List<CounterDescriptor> derived = new ArrayList<CounterDescriptor>();
+        for(Rollup rollup : rollups) {
+            if(rollup != plain.getRollup()) {
+                derived.add(new CounterDescriptor(base + rollup.getRollupName()));
+            }
+        }
+        return new CounterDescriptor(counterName, derived);
+    }
+
+    public int size() {
+        return this.descriptors.size();
+    }
+}
@@ -0,0 +1,274 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import de.synaxon.graphitereceiver.domain.Rollup;
+import de.synaxon.graphitereceiver.utils.LongLongHashMap;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downsampler sends counter groups with a coarser resolution than the retrievals, configured with downsample as
+ * "group=seconds" pairs, e.g. "disk=300,datastore=3600". The datapoints of these groups are accumulated per series
+ * across retrievals into buckets aligned to the resolution, and one point per bucket is written with the epoch of the
+ * bucket start and the rollup of the counter: the mean for average, the sum for summation, minimum, maximum or the
+ * latest value.
+ *
+ * A bucket is written when the first datapoint of a later bucket of its series arrives, so late samples of a bucket
+ * are still part of it. Series without datapoints for two buckets write their open bucket and are forgotten. The
+ * buckets live in primitive arrays indexed through a {@link LongLongHashMap} of the path hash, in segments locked
+ * separately so the worker threads rarely contend. Only the datapoint starting a bucket is copied, to write the bucket
+ * with its path and tags. Open buckets are lost at restart.
+ */
+public class Downsampler {
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Receives the consolidated datapoints.
+     */
+    public interface Writer {
+        void write(DataPoint dataPoint);
+    }
+
+    private static class Segment {
+        private final LongLongHashMap slots = new LongLongHashMap(256);
+        private long[] bucketStarts = new long[64];
+        private int[] counts = new int[64];
+        private double[] sums = new double[64];
+        private double[] minimums = new double[64];
+        private double[] maximums = new double[64];
+        private double[] latests = new double[64];
+        private DataPoint[] templates = new DataPoint[64];
+        private int[] free = new int[16];
+        private int freeCount;
+        private int used;
+
+        int slot(long key, int retrieval) {
+            long slot = this.slots.get(key, -1);
+            if(slot >= 0) {
+                this.slots.put(key, slot, retrieval);
+                return (int) slot;
+            }
+            int index = (this.freeCount > 0) ? this.free[--this.freeCount] : this.used++;
+            if(index == this.bucketStarts.length) {
+                this.grow();
+            }
+            this.slots.put(key, index, retrieval);
+            this.counts[index] = 0;
+            this.templates[index] = null;
+            return index;
+        }
+
+        /**
+         * @return the datapoint of the closed bucket with value and epoch set
+         */
+        DataPoint close(int index) {
+            DataPoint closed = this.templates[index];
+            double value;
+            switch (Rollup.fromName(closed.getRollup())) {
+                case SUMMATION:
+                    value = this.sums[index];
+                    break;
+                case MAXIMUM:
+                    value = this.maximums[index];
+                    break;
+                case MINIMUM:
+                    value = this.minimums[index];
+                    break;
+                case LATEST:
+                    value = this.latests[index];
+                    break;
+                default:
+                    value = this.sums[index] / this.counts[index];
+            }
+            closed.setValue(value);
+            closed.setEpoch(this.bucketStarts[index]);
+            this.counts[index] = 0;
+            this.templates[index] = null;
+            return closed;
+        }
+
+        void release(int index) {
+            if(this.freeCount == this.free.length) {
+                int[] grown = new int[this.free.length * 2];
+                System.arraycopy(this.free, 0, grown, 0, this.freeCount);
+                this.free = grown;
+            }
+            this.free[this.freeCount++] = index;
+        }
+
+        private void grow() {
+            int capacity = this.bucketStarts.length * 2;
+            long[] bucketStarts = new long[capacity];
+            System.arraycopy(this.bucketStarts, 0, bucketStarts, 0, this.bucketStarts.length);
+            this.bucketStarts = bucketStarts;
+            this.counts = grow(this.counts, capacity);
+            this.sums = grow(this.sums, capacity);
+            this.minimums = grow(this.minimums, capacity);
+            this.maximums = grow(this.maximums, capacity);
+            this.latests = grow(this.latests, capacity);
+            DataPoint[] templates = new DataPoint[capacity];
+            System.arraycopy(this.templates, 0, templates, 0, this.templates.length);
+            this.templates = templates;
+        }
+
+        private static int[] grow(int[] array, int capacity) {
+            int[] grown = new int[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static double[] grow(double[] array, int capacity) {
+            double[] grown = new double[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+
+    private Log logger = LogFactory.getLog(Downsampler.class);
+    private final Map<String, Integer> resolutions = new HashMap<String, Integer>();
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int forgetRetrievals;
+    private final StripedCounter consumed = new StripedCounter();
+    private final StripedCounter written = new StripedCounter();
+    private final StripedCounter late = new StripedCounter();
+    private volatile int retrieval;
+
+    /**
+     * @param config value of downsample, "group=seconds" pairs separated by ','
+     * @param frequencyInSeconds frequency of the retrievals, resolutions not coarser are ignored
+     */
+    public Downsampler(String config, long frequencyInSeconds) {
+        int maxResolution = 0;
+        for(String entry : config.split(",")) {
+            String[] pair = entry.trim().split("=");
+            if(pair.length != 2) {
+                logger.warn("Ignoring invalid downsample entry: " + entry);
+                continue;
+            }
+            try {
+                int seconds = Integer.parseInt(pair[1].trim());
+                if(seconds <= frequencyInSeconds) {
+                    logger.warn("downsample resolution of " + pair[0].trim() + " is not coarser than the frequency, ignoring " + entry);
+                    continue;
+                }
+                this.resolutions.put(pair[0].trim(), seconds);
+                maxResolution = Math.max(maxResolution, seconds);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid downsample entry: " + entry);
+            }
+        }
+        for(int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment();
+        }
+        this.forgetRetrievals = (int) (2 * ((maxResolution + frequencyInSeconds - 1) / Math.max(1, frequencyInSeconds)));
+        logger.info("Downsampling counter groups: " + this.resolutions);
+    }
+
+    public boolean isEmpty() {
+        return this.resolutions.isEmpty();
+    }
+
+    /**
+     * @return true if the counter group of the datapoint is downsampled
+     */
+    public boolean applies(DataPoint dataPoint) {
+        return dataPoint.getGroup() != null && this.resolutions.containsKey(dataPoint.getGroup());
+    }
+
+    /**
+     * Adds the datapoint to the bucket of its series, writes the previous bucket when the datapoint starts a new one.
+     * The datapoint is not kept.
+     */
+    public void add(DataPoint dataPoint, Writer writer) {
+        int resolution = this.resolutions.get(dataPoint.getGroup());
+        long bucketStart = dataPoint.getEpoch() - (dataPoint.getEpoch() % resolution);
+        long key = LongLongHashMap.hash(dataPoint.getPath());
+        // the top bits pick the segment, the low bits index the slots of the segment map
+        Segment segment = this.segments[(int) (key >>> 60) & (SEGMENTS - 1)];
+        double value = dataPoint.getValue();
+        DataPoint closed = null;
+        this.consumed.increment();
+        synchronized (segment) {
+            int index = segment.slot(key, this.retrieval);
+            if(segment.counts[index] > 0) {
+                if(bucketStart < segment.bucketStarts[index]) {
+                    this.late.increment();
+                    return;
+                }
+                if(bucketStart > segment.bucketStarts[index]) {
+                    closed = segment.close(index);
+                }
+            }
+            if(segment.counts[index] == 0) {
+                segment.templates[index] = dataPoint.copy();
+                segment.bucketStarts[index] = bucketStart;
+                segment.sums[index] = 0;
+                segment.minimums[index] = Double.MAX_VALUE;
+                segment.maximums[index] = -Double.MAX_VALUE;
+            }
+            segment.counts[index]++;
+            segment.sums[index] += value;
+            segment.minimums[index] = Math.min(segment.minimums[index], value);
+            segment.maximums[index] = Math.max(segment.maximums[index], value);
+            segment.latests[index] = value;
+        }
+        if(closed != null) {
+            this.written.increment();
+            writer.write(closed);
+        }
+    }
+
+    /**
+     * Writes the open buckets of idle series, forgets them and starts the next retrieval.
+     *
+     * @return number of series with an open bucket
+     */
+    public int endRetrieval(Writer writer) {
+        final int minRetrieval = this.retrieval - this.forgetRetrievals;
+        final List<DataPoint> closed = new ArrayList<DataPoint>();
+        int open = 0;
+        for(final Segment segment : this.segments) {
+            synchronized (segment) {
+                if(segment.slots.size() > 0) {
+                    segment.slots.forEach(new LongLongHashMap.Visitor() {
+                        public void visit(long key, long value, int stamp) {
+                            if(stamp < minRetrieval) {
+                                if(segment.counts[(int) value] > 0) {
+                                    closed.add(segment.close((int) value));
+                                }
+                                segment.release((int) value);
+                            }
+                        }
+                    });
+                    segment.slots.evictOlderThan(minRetrieval);
+                }
+                open += segment.slots.size();
+            }
+        }
+        this.retrieval++;
+        for(DataPoint dataPoint : closed) {
+            writer.write(dataPoint);
+        }
+        this.written.add(closed.size());
+        return open;
+    }
+
+    public long takeConsumed() {
+        return this.consumed.sumThenReset();
+    }
+
+    public long takeWritten() {
+        return this.written.sumThenReset();
+    }
+
+    public long takeLate() {
+        return this.late.sumThenReset();
+    }
+}
@@ -0,0 +1,130 @@
+package de.synaxon.graphitereceiver.core;
+
+import com.vmware.ee.statsfeeder.MOREFRetriever;
+import de.synaxon.graphitereceiver.domain.EntityDescriptor;
+import de.synaxon.graphitereceiver.domain.EntityType;
+import de.synaxon.graphitereceiver.domain.MapPrefixSuffix;
+import de.synaxon.graphitereceiver.domain.Rule;
+import de.synaxon.graphitereceiver.utils.RuleUtils;
+import de.synaxon.graphitereceiver.utils.Utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * EntityDescriptorCache computes the {@link EntityDescriptor} of an entity once and shares it between all metric
+ * sets of the entity. The cache is keyed by the entity name of the metric set and is invalidated by starting a new
+ * generation whenever the cluster map or the host map is refreshed.
+ *
+ * Descriptors of VMs and ESX hosts without cluster are not cached, so they are resolved again as soon as the cluster
+ * map knows them. Datastores and resource pools are only added by the refresh, which starts a new generation anyway.
+ */
+public class EntityDescriptorCache {
+
+    private final Map<String, EntityDescriptor> descriptors = new ConcurrentHashMap<String, EntityDescriptor>();
+    private final Map<String, String> clusterMap;
+    private final Map<String, List<Rule>> rules;
+    private final boolean useEntityTypePrefix;
+    private final boolean useFqdn;
+    private final boolean isHostMap;
+    private Router router;
+    private volatile int generation;
+
+    /**
+     * @param rules names transformation rules, may be null
+     */
+    public EntityDescriptorCache(Map<String, String> clusterMap, Map<String, List<Rule>> rules, boolean useEntityTypePrefix, boolean useFqdn, boolean isHostMap) {
+        this.clusterMap = clusterMap;
+        this.rules = rules;
+        this.useEntityTypePrefix = useEntityTypePrefix;
+        this.useFqdn = useFqdn;
+        this.isHostMap = isHostMap;
+    }
+
+    /**
+     * @param router routes set on the descriptors, null without routing
+     */
+    public void setRouter(Router router) {
+        this.router = router;
+    }
+
+    /**
+     * @param entityName entity name passed to receiveStats
+     * @param metricEntityName entity name of the metric set
+     * @param hostMap current alternate prefix/suffix map, may be null
+     */
+    public EntityDescriptor get(String entityName, String metricEntityName, MOREFRetriever morefRetriever, Map<String, MapPrefixSuffix> hostMap) {
+        EntityDescriptor descriptor = this.descriptors.get(metricEntityName);
+        if(descriptor != null && descriptor.getGeneration() == this.generation && descriptor.getEntityName().equals(entityName)) {
+            return descriptor;
+        }
+        int current = this.generation;
+        descriptor = this.compute(entityName, metricEntityName, morefRetriever, hostMap);
+        descriptor.setGeneration(current);
+        if(!descriptor.getEntityType().isResolvable() || descriptor.getCluster() != null || !descriptor.isValid()) {
+            this.descriptors.put(metricEntityName, descriptor);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Starts a new generation, descriptors of older generations are computed again.
+     */
+    public void invalidate() {
+        this.generation++;
+        this.descriptors.clear();
+    }
+
+    public int getGeneration() {
+        return this.generation;
+    }
+
+    public int size() {
+        return this.descriptors.size();
+    }
+
+    private EntityDescriptor compute(String entityName, String metricEntityName, MOREFRetriever morefRetriever, Map<String, MapPrefixSuffix> hostMap) {
+        EntityDescriptor descriptor = new EntityDescriptor();
+        descriptor.setEntityName(entityName);
+        descriptor.setEntityType(EntityType.fromEntityName(metricEntityName));
+        descriptor.setValid(true);
+
+        String entityNameParsed = "";
+        if(descriptor.getEntityType().isClustered()) {
+            entityNameParsed = morefRetriever.parseEntityName(metricEntityName);
+            if(entityNameParsed.equals("")) {
+                descriptor.setValid(false);
+                return descriptor;
+            }
+            descriptor.setEntityKey(entityNameParsed.replace(" ", "_"));
+            String cluster = this.clusterMap.get(descriptor.getEntityType().getClusterKey(descriptor.getEntityKey()));
+            if(cluster != null) {
+                descriptor.setCluster(this.applyRules(cluster, "cluster"));
+            }
+        }
+        descriptor.setParsedName(entityNameParsed);
+
+        if(entityName.contains("[VirtualMachine]")) {
+            descriptor.setHostName(this.applyRules(entityNameParsed, "hostName"));
+        }
+        descriptor.setEName(Utils.getEName(this.useEntityTypePrefix, this.useFqdn, entityName, entityNameParsed, (this.rules == null) ? null : this.rules.get("eName")));
+
+        String hostName = descriptor.getHostName();
+        if(this.isHostMap && hostMap != null && hostMap.size() > 0 && hostName != null && !hostName.equals("")) {
+            descriptor.setHostMapped(true);
+            descriptor.setMapPrefixSuffix(hostMap.get(hostName.toLowerCase()));
+        }
+        if(this.router != null) {
+            descriptor.setRoute(this.router.route(descriptor));
+        }
+        return descriptor;
+    }
+
+    private String applyRules(String value, String target) {
+        if(this.rules == null || this.rules.get(target) == null) {
+            return value;
+        }
+        return RuleUtils.applyRules(value, this.rules.get(target));
+    }
+}
@@ -0,0 +1,357 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.core.relay.RelayProtocol;
+import de.synaxon.graphitereceiver.domain.Priority;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * GraphiteLane is a single connection to the Graphite server with its own output buffers and counters.
+ * Lines are appended to the buffer of their {@link Priority} and written to the socket when the buffer is full or
+ * when the lane is flushed, high priority first. All methods are synchronized on the lane, so a lane may be shared
+ * by several threads, but the intended use is one lane per StatsFeeder worker thread (see {@link LanePool}) so that
+ * the lock is never contended.
+ *
+ * In deferred mode full buffers are not written but kept as {@link Chunk}s per priority, which the
+ * {@link PacedEmitter} sends later through {@link #send(Chunk)}.
+ *
+ * In framed mode every chunk is sent as one frame of the relay protocol, see
+ * {@link de.synaxon.graphitereceiver.core.relay.RelayProtocol}. The connection to the relay is kept across
+ * retrievals and only opened again when the relay closed it.
+ */
+public class GraphiteLane {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private Log logger = LogFactory.getLog(GraphiteLane.class);
+    private final int id;
+    private final String host;
+    private final int port;
+    private final int disconnectAfter;
+    private final byte[][] buffers = new byte[PRIORITIES.length][BUFFER_SIZE];
+    private final int[] positions = new int[PRIORITIES.length];
+    private final int[] bufferedLines = new int[PRIORITIES.length];
+    private int totalBufferedLines;
+    private boolean deferred;
+    private String frameSource;
+    private List<List<Chunk>> pending = newPending();
+    private Socket client;
+    private OutputStream out;
+    private boolean connectAttempted;
+    private int disconnectCounter;
+    private long linesCount;
+    private long droppedLines;
+
+    /**
+     * A block of complete lines of one priority waiting to be sent.
+     */
+    public static class Chunk {
+        private final byte[] data;
+        private final int lines;
+
+        Chunk(byte[] data, int lines) {
+            this.data = data;
+            this.lines = lines;
+        }
+
+        public int size() {
+            return this.data.length;
+        }
+
+        public int getLines() {
+            return this.lines;
+        }
+    }
+
+    /**
+     * @param id lane number, only used for logging
+     * @param host graphite host
+     * @param port graphite port
+     * @param disconnectAfter number of lines after which the connection is reset, -1 to disable
+     */
+    public GraphiteLane(int id, String host, int port, int disconnectAfter) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        this.disconnectAfter = disconnectAfter;
+    }
+
+    public synchronized void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
+    /**
+     * @param source name announced to the relay, null for plain lines
+     */
+    public synchronized void setFramed(String source) {
+        this.frameSource = source;
+    }
+
+    /**
+     * Resets the per retrieval counters and opens the connection. In deferred mode the connection is opened
+     * with the first chunk sent. A kept relay connection is reused unless the relay closed it.
+     */
+    public synchronized void open() {
+        this.disconnectCounter = 0;
+        this.linesCount = 0;
+        this.droppedLines = 0;
+        for(int p = 0; p < PRIORITIES.length; p++) {
+            this.positions[p] = 0;
+            this.bufferedLines[p] = 0;
+        }
+        this.totalBufferedLines = 0;
+        this.pending = newPending();
+        this.connectAttempted = false;
+        if(this.out != null && !this.isOpenAtRelay()) {
+            logger.info("Lane " + this.id + " connection was closed by the relay, reconnecting.");
+            this.disconnect();
+        }
+        if(!this.deferred && this.out == null) {
+            this.connect();
+        }
+    }
+
+    /**
+     * Flushes the pending lines and releases the connection.
+     */
+    public synchronized void close() {
+        this.flush();
+        for(List<Chunk> chunks : this.takePending()) {
+            for(Chunk chunk : chunks) {
+                this.send(chunk);
+            }
+        }
+        this.release();
+        if(this.droppedLines > 0) {
+            logger.warn("Lane " + this.id + " dropped " + this.droppedLines + " lines because Graphite was not connected.");
+        }
+    }
+
+    public synchronized void write(CharSequence line) {
+        this.write(line, Priority.NORMAL);
+    }
+
+    /**
+     * Appends one line (without line terminator) to the lane. The connection is reset every disconnectAfter lines
+     * for balancing among several Graphite nodes, so the buffers are cut at that line.
+     */
+    public synchronized void write(CharSequence line, Priority priority) {
+        int p = priority.ordinal();
+        this.append(p, line);
+        this.append(p, '\n');
+        this.bufferedLines[p]++;
+        this.totalBufferedLines++;
+        this.linesCount++;
+        if((this.disconnectAfter > 0) && (this.disconnectCounter + this.totalBufferedLines >= this.disconnectAfter)) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Writes the buffers to Graphite, high priority first, or keeps them as chunks in deferred mode.
+     */
+    public synchronized void flush() {
+        for(int p = 0; p < PRIORITIES.length; p++) {
+            this.flush(p);
+        }
+    }
+
+    /**
+     * @return the chunks kept in deferred mode indexed by priority, the lane forgets them
+     */
+    public synchronized List<List<Chunk>> takePending() {
+        List<List<Chunk>> chunks = this.pending;
+        this.pending = newPending();
+        return chunks;
+    }
+
+    /**
+     * Writes one chunk to the socket and resets the connection when disconnectAfter lines have been sent.
+     */
+    public synchronized void send(Chunk chunk) {
+        if(this.out == null && !this.connectAttempted) {
+            this.connect();
+        }
+        if(this.out == null) {
+            this.droppedLines += chunk.lines;
+            return;
+        }
+        try {
+            if(this.frameSource != null) {
+                RelayProtocol.writeFrameHeader(this.out, chunk.data.length, chunk.lines);
+            }
+            this.out.write(chunk.data, 0, chunk.data.length);
+            this.out.flush();
+        } catch (IOException e) {
+            logger.error("Lane " + this.id + " can't write to graphite.", e);
+            this.droppedLines += chunk.lines;
+            this.disconnect();
+            return;
+        }
+        this.disconnectCounter += chunk.lines;
+        if((this.disconnectAfter > 0) && (this.disconnectCounter >= this.disconnectAfter)){
+            logger.debug("Lane " + this.id + " - PerfMetric Counter Value: " + this.disconnectCounter + " reached. resetting Graphite Connection");
+            this.disconnect();
+            this.connect();
+            this.disconnectCounter = 0;
+        }
+    }
+
+    /**
+     * Closes the connection at the end of a retrieval without flushing, the relay connection of a framed lane is kept.
+     * Used after the pending chunks were sent by the {@link PacedEmitter}.
+     */
+    public synchronized void release() {
+        if(this.frameSource == null) {
+            this.disconnect();
+        }
+    }
+
+    /**
+     * Closes the connection without flushing.
+     */
+    public synchronized void disconnect() {
+        try {
+            if(this.out != null) {
+                this.out.close();
+            }
+            if(this.client != null) {
+                this.client.close();
+            }
+        } catch (IOException ex) {
+            logger.error("Lane " + this.id + " can't close resources.", ex);
+        }
+        this.out = null;
+        this.client = null;
+    }
+
+    public synchronized long getLinesCount() {
+        return this.linesCount;
+    }
+
+    public synchronized long getDroppedLines() {
+        return this.droppedLines;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    private static List<List<Chunk>> newPending() {
+        List<List<Chunk>> pending = new ArrayList<List<Chunk>>(PRIORITIES.length);
+        for(int p = 0; p < PRIORITIES.length; p++) {
+            pending.add(new ArrayList<Chunk>());
+        }
+        return pending;
+    }
+
+    private void flush(int p) {
+        if(this.positions[p] == 0) {
+            return;
+        }
+        byte[] data = new byte[this.positions[p]];
+        System.arraycopy(this.buffers[p], 0, data, 0, this.positions[p]);
+        Chunk chunk = new Chunk(data, this.bufferedLines[p]);
+        this.totalBufferedLines -= this.bufferedLines[p];
+        this.positions[p] = 0;
+        this.bufferedLines[p] = 0;
+        if(this.deferred) {
+            this.pending.get(p).add(chunk);
+        } else {
+            this.send(chunk);
+        }
+    }
+
+    private void append(int p, CharSequence line) {
+        int length = line.length();
+        for(int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if(c >= 0x80) {
+                this.appendEncoded(p, line.subSequence(i, length).toString());
+                return;
+            }
+            this.append(p, c);
+        }
+    }
+
+    private void appendEncoded(int p, String tail) {
+        try {
+            byte[] bytes = tail.getBytes("UTF-8");
+            for(byte b : bytes) {
+                this.ensureCapacity(p);
+                this.buffers[p][this.positions[p]++] = b;
+            }
+        } catch (UnsupportedEncodingException e) {
+            logger.error("UTF-8 is not supported.", e);
+        }
+    }
+
+    private void append(int p, char c) {
+        this.ensureCapacity(p);
+        this.buffers[p][this.positions[p]++] = (byte) c;
+    }
+
+    /**
+     * A full buffer is cut after the last complete line, the partial line is moved to the front.
+     */
+    private void ensureCapacity(int p) {
+        if(this.positions[p] < BUFFER_SIZE) {
+            return;
+        }
+        byte[] buffer = this.buffers[p];
+        int end = this.positions[p];
+        while(end > 0 && buffer[end - 1] != '\n') {
+            end--;
+        }
+        if(end == 0) {
+            logger.error("Lane " + this.id + " line longer than " + BUFFER_SIZE + " bytes, truncating.");
+            this.positions[p] = 0;
+            return;
+        }
+        int tail = this.positions[p] - end;
+        this.positions[p] = end;
+        this.flush(p);
+        System.arraycopy(buffer, end, buffer, 0, tail);
+        this.positions[p] = tail;
+    }
+
+    /**
+     * The relay never writes to the receiver, so a read only ends before the timeout when the relay closed the
+     * connection.
+     */
+    private boolean isOpenAtRelay() {
+        try {
+            this.client.setSoTimeout(1);
+            return this.client.getInputStream().read() != -1;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void connect() {
+        this.connectAttempted = true;
+        try {
+            logger.debug("Lane " + this.id + " - Graphite Host and Port: " + this.host + "\t" + this.port);
+            this.client = new Socket(this.host, this.port);
+            this.out = this.client.getOutputStream();
+            if(this.frameSource != null) {
+                RelayProtocol.writeHello(this.out, this.frameSource + "-" + this.id);
+            }
+        } catch (IOException ex) {
+            logger.error("Lane " + this.id + " can't connect to graphite.", ex);
+            this.client = null;
+            this.out = null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package de.synaxon.graphitereceiver.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LanePool maps every StatsFeeder worker thread onto one of a small number of {@link GraphiteLane}s.
+ * A thread keeps its lane for its whole life, lanes are assigned round robin on first use. With one lane per worker
+ * thread no lock is shared between threads, with a single lane the behaviour is the same as one global writer.
+ */
+public class LanePool {
+
+    private final GraphiteLane[] lanes;
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private final ThreadLocal<GraphiteLane> currentLane = new ThreadLocal<GraphiteLane>() {
+        @Override
+        protected GraphiteLane initialValue() {
+            return lanes[(nextLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length];
+        }
+    };
+
+    public LanePool(int size, String host, int port, int disconnectAfter) {
+        this.lanes = new GraphiteLane[Math.max(1, size)];
+        for(int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new GraphiteLane(i, host, port, disconnectAfter);
+        }
+    }
+
+    /**
+     * @return the lane of the calling thread
+     */
+    public GraphiteLane currentLane() {
+        return this.currentLane.get();
+    }
+
+    public GraphiteLane getLane(int index) {
+        return this.lanes[index];
+    }
+
+    public void setDeferred(boolean deferred) {
+        for(GraphiteLane lane : this.lanes) {
+            lane.setDeferred(deferred);
+        }
+    }
+
+    /**
+     * @param source name announced to the relay, null for plain lines
+     */
+    public void setFramed(String source) {
+        for(GraphiteLane lane : this.lanes) {
+            lane.setFramed(source);
+        }
+    }
+
+    /**
+     * Moves the buffered lines of all lanes to the socket, or to the pending chunks in deferred mode.
+     */
+    public void flush() {
+        for(GraphiteLane lane : this.lanes) {
+            lane.flush();
+        }
+    }
+
+    public void open() {
+        for(GraphiteLane lane : this.lanes) {
+            lane.open();
+        }
+    }
+
+    public void close() {
+        for(GraphiteLane lane : this.lanes) {
+            lane.close();
+        }
+    }
+
+    /**
+     * Closes the connections of all lanes, also those kept to the relay.
+     */
+    public void disconnect() {
+        for(GraphiteLane lane : this.lanes) {
+            lane.disconnect();
+        }
+    }
+
+    public long getLinesCount() {
+        long count = 0;
+        for(GraphiteLane lane : this.lanes) {
+            count += lane.getLinesCount();
+        }
+        return count;
+    }
+
+    public long getDroppedLines() {
+        long count = 0;
+        for(GraphiteLane lane : this.lanes) {
+            count += lane.getDroppedLines();
+        }
+        return count;
+    }
+
+    public int size() {
+        return this.lanes.length;
+    }
+}
@@ -0,0 +1,110 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.Priority;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * LoadShedder decides per metric set whether its output is dropped because the receiver falls behind its retrieval
+ * frequency, and detects retrievals which take longer than the frequency.
+ *
+ * Low priority output is shed when the sinks are still behind with the previous retrieval or when the retrieval has
+ * used lowThreshold of the frequency window, normal priority output when it has used normalThreshold of it.
+ * High priority output is never shed. Shedding is only active when enabled, overruns are always reported.
+ */
+public class LoadShedder {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private Log logger = LogFactory.getLog(LoadShedder.class);
+    private final boolean enabled;
+    private final long frequencyMillis;
+    private final long lowAfterMillis;
+    private final long normalAfterMillis;
+    private final StripedCounter[] shed = new StripedCounter[PRIORITIES.length];
+    private volatile long retrievalStart;
+    private volatile boolean backlog;
+    private long overruns;
+
+    /**
+     * @param enabled false to only detect overruns
+     * @param lowThreshold fraction of the frequency after which low priority output is shed
+     * @param normalThreshold fraction of the frequency after which normal priority output is shed
+     */
+    public LoadShedder(boolean enabled, long frequencyInSeconds, double lowThreshold, double normalThreshold) {
+        this.enabled = enabled;
+        this.frequencyMillis = frequencyInSeconds * 1000;
+        this.lowAfterMillis = (long) (this.frequencyMillis * lowThreshold);
+        this.normalAfterMillis = (long) (this.frequencyMillis * Math.max(lowThreshold, normalThreshold));
+        for(int p = 0; p < PRIORITIES.length; p++) {
+            this.shed[p] = new StripedCounter();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @param backlog true if a sink did not manage to send the previous retrieval in time
+     */
+    public void startRetrieval(boolean backlog) {
+        this.retrievalStart = System.currentTimeMillis();
+        this.backlog = backlog;
+        if(backlog && this.enabled) {
+            logger.warn("Sinks are behind, shedding low priority output in this retrieval.");
+        }
+    }
+
+    /**
+     * @param samples number of samples of the metric set, counted when it is shed
+     * @return true if the output of the metric set must be dropped
+     */
+    public boolean shed(Priority priority, int samples) {
+        if(!this.enabled || priority == Priority.HIGH) {
+            return false;
+        }
+        long elapsed = System.currentTimeMillis() - this.retrievalStart;
+        boolean drop;
+        if(priority == Priority.LOW) {
+            drop = this.backlog || elapsed > this.lowAfterMillis;
+        } else {
+            drop = elapsed > this.normalAfterMillis;
+        }
+        if(drop) {
+            this.shed[priority.ordinal()].add(samples);
+        }
+        return drop;
+    }
+
+    /**
+     * Reports the shed samples and whether the retrieval overran the frequency.
+     *
+     * @return duration of the retrieval in millis
+     */
+    public long endRetrieval() {
+        long duration = System.currentTimeMillis() - this.retrievalStart;
+        if(duration > this.frequencyMillis) {
+            synchronized (this) {
+                this.overruns++;
+            }
+            logger.warn("Retrieval took " + duration + " ms and overran the frequency of " + this.frequencyMillis + " ms, overruns so far: " + this.getOverruns());
+        }
+        StringBuilder report = new StringBuilder();
+        long total = 0;
+        for(int p = 0; p < PRIORITIES.length; p++) {
+            long count = this.shed[p].sumThenReset();
+            total += count;
+            report.append(' ').append(PRIORITIES[p].name().toLowerCase()).append('=').append(count);
+        }
+        if(total > 0) {
+            logger.warn("Samples shed because the receiver fell behind:" + report);
+        }
+        return duration;
+    }
+
+    public synchronized long getOverruns() {
+        return this.overruns;
+    }
+}
@@ -7,20 +7,30 @@ import com.vmware.ee.statsfeeder.PerfMetricSet.PerfMetric;
 import com.vmware.ee.statsfeeder.StatsExecutionContextAware;
 import com.vmware.ee.statsfeeder.StatsFeederListener;
 import com.vmware.ee.statsfeeder.StatsListReceiver;
+import de.synaxon.graphitereceiver.core.capture.CaptureWriter;
+import de.synaxon.graphitereceiver.core.sink.MetricSink;
+import de.synaxon.graphitereceiver.core.sink.SinkFactory;
 import de.synaxon.graphitereceiver.core.xml.ReadRules;
+import de.synaxon.graphitereceiver.domain.CounterDescriptor;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import de.synaxon.graphitereceiver.domain.EntityDescriptor;
+import de.synaxon.graphitereceiver.domain.EntityType;
 import de.synaxon.graphitereceiver.domain.MapPrefixSuffix;
+import de.synaxon.graphitereceiver.domain.Priority;
+import de.synaxon.graphitereceiver.domain.Rollup;
+import de.synaxon.graphitereceiver.domain.Route;
 import de.synaxon.graphitereceiver.domain.Rule;
 import de.synaxon.graphitereceiver.utils.Calculate;
+import de.synaxon.graphitereceiver.utils.LongLongHashMap;
 import de.synaxon.graphitereceiver.utils.RuleUtils;
+import de.synaxon.graphitereceiver.utils.SampleStats;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
 import de.synaxon.graphitereceiver.utils.Utils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -30,6 +40,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -37,6 +48,9 @@ import java.util.TimeZone;
  */
 public class MetricsReceiver implements StatsListReceiver, StatsFeederListener, StatsExecutionContextAware {
 
+    private static final String DEFAULT_PATH_TEMPLATE = "{prefix}.{cluster}.{entity}.{group}.{instance?}.{leaf}";
+    private static final String DEFAULT_HOST_MAP_PATH_TEMPLATE = "{mapPrefix}.{host}.{mapSuffix}.{group}.{instance?}.{leaf}";
+
     private Log logger;
     private boolean debugLogLevel;
     private String name;
@@ -50,15 +64,63 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
     private boolean place_rollup_in_the_end;
     private boolean instanceMetrics;
     private boolean globalInstance;
-    private int disconnectCounter;
     private int disconnectAfter;
     private boolean isHostMap;
-    private Map<String, MapPrefixSuffix> hostMap;
-    private Map<String,String> clusterMap = new HashMap<String, String>();
-    private Socket client;
-    private PrintWriter out;
-    private boolean isResetConn;
-    private long metricsCount;
+    private volatile Map<String, MapPrefixSuffix> hostMap;
+    private Map<String,String> clusterMap = new ConcurrentHashMap<String, String>();
+    private boolean stripedWriters;
+    private List<MetricSink> sinks;
+    private StripedCounter metricsCount = new StripedCounter();
+    private SeriesHighWaterMark highWaterMark;
+    private SnapshotStore snapshotStore;
+    private int refreshSnapshotPeriod;
+    private int snapshotPeriod;
+    private volatile boolean reconciling;
+    private ClusterResolver clusterResolver;
+    private EntityDescriptorCache entityDescriptors;
+    private PriorityClassifier priorityClassifier;
+    private LoadShedder loadShedder;
+    private TopKSelector topKSelector;
+    private CounterRegistry counterRegistry;
+    private boolean clusterMapOffline;
+    private Resampler resampler;
+    private NewSeriesGuard newSeriesGuard;
+    private PathTemplate pathTemplate;
+    private PathTemplate hostMapPathTemplate;
+    private final ThreadLocal<StringBuilder> pathBuffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+    private final StripedCounter unalignedResampled = new StripedCounter();
+    private final ThreadLocal<SampleStats> sampleStats = new ThreadLocal<SampleStats>() {
+        @Override
+        protected SampleStats initialValue() {
+            return new SampleStats();
+        }
+    };
+    private final StripedCounter unalignedDropped = new StripedCounter();
+    private final StripedCounter noClusterDropped = new StripedCounter();
+    private final StripedCounter unroutedDropped = new StripedCounter();
+    private CaptureWriter captureWriter;
+    private SeriesTracer tracer;
+    private ShadowVerifier shadowVerifier;
+    private Downsampler downsampler;
+    private Router router;
+    private final Downsampler.Writer sinkWriter = new Downsampler.Writer() {
+        public void write(DataPoint dataPoint) {
+            writeToSinks(dataPoint);
+        }
+    };
+    private int capturedClusterGeneration = -1;
+    private int capturedClusterSize = -1;
+    private final ThreadLocal<DataPoint> dataPoints = new ThreadLocal<DataPoint>() {
+        @Override
+        protected DataPoint initialValue() {
+            return new DataPoint();
+        }
+    };
     private int refreshClusterMapPeriod;
     private int clusterPeriod;
     private int refreshHostMapPeriod;
@@ -96,7 +158,6 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
         this.debugLogLevel = logger.isDebugEnabled();
         this.name = (name == null) ? "SampleStatsReceiver": name;
         this.props = props;
-        this.disconnectCounter = 0;
         logger.debug("MetricsReceiver Constructor.");
     }
 
@@ -172,7 +233,7 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
                 logger.info("if graphite_force_reconnect_timeout is set to < 1 will not be supported: " + this.disconnectAfter);
                 this.disconnectAfter = -1;
             }else{
-                logger.info("In setExecutionContext:: disconnectCounter and disconnectAfter Values: " + this.disconnectCounter + "\t" + this.disconnectAfter);
+                logger.info("In setExecutionContext:: disconnectAfter Value: " + this.disconnectAfter);
             }
         }catch(Exception e){
             logger.debug("graphite_force_reconnect_timeout attribute is not set or not supported.");
@@ -180,7 +241,163 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
             this.disconnectAfter = -1;
         }
 
+        /*
+            striped_writers gives every StatsFeeder worker thread its own connection and buffer (a lane) in every
+            sink, receiveStats is not synchronized in this mode. Without it one lane per sink is shared by all threads.
+         */
+        int lanes = 1;
+        if(this.props.getProperty("striped_writers") != null && !this.props.getProperty("striped_writers").isEmpty()) {
+            this.stripedWriters = Boolean.valueOf(this.props.getProperty("striped_writers"));
+        }
+        if(this.stripedWriters) {
+            try {
+                lanes = Integer.parseInt(this.props.getProperty("striped_writers_lanes", "4"));
+            } catch (NumberFormatException e) {
+                logger.warn("striped_writers_lanes is not a number, using 4 lanes.");
+                lanes = 4;
+            }
+        }
+        logger.info("In setExecutionContext:: striped_writers: " + this.stripedWriters + " lanes: " + lanes);
+
+        /*
+            paced_emission keeps the output of a retrieval in memory and sends it in the background spread over
+            paced_emission_window (fraction of the time left until the next retrieval) instead of one burst.
+         */
+        boolean pacedEmission = false;
+        if(this.props.getProperty("paced_emission") != null && !this.props.getProperty("paced_emission").isEmpty()) {
+            pacedEmission = Boolean.valueOf(this.props.getProperty("paced_emission"));
+        }
+        double pacedWindow = 0;
+        if(pacedEmission) {
+            pacedWindow = 0.5;
+            try {
+                pacedWindow = Double.parseDouble(this.props.getProperty("paced_emission_window", "0.5"));
+            } catch (NumberFormatException e) {
+                logger.warn("paced_emission_window is not a number, using 0.5.");
+            }
+            logger.info("In setExecutionContext:: paced_emission window: " + pacedWindow);
+        }
+
         long frequencyInSeconds = this.context.getConfiguration().getFrequencyInSeconds();
+
+        /*
+            priority_rules classify metric sets as high, normal or low priority (see PriorityClassifier), high
+            priority output is sent first. load_shedding drops low priority output when the sinks are behind or the
+            retrieval has used load_shedding_low_threshold of the frequency, normal priority output after
+            load_shedding_normal_threshold, and with paced_emission the low priority output still unsent when the
+            next retrieval starts. Retrievals overrunning the frequency are always reported.
+         */
+        this.priorityClassifier = new PriorityClassifier(this.props.getProperty("priority_rules"));
+        boolean loadShedding = false;
+        if(this.props.getProperty("load_shedding") != null && !this.props.getProperty("load_shedding").isEmpty()) {
+            loadShedding = Boolean.valueOf(this.props.getProperty("load_shedding"));
+        }
+        double lowThreshold = 0.7;
+        double normalThreshold = 0.9;
+        try {
+            lowThreshold = Double.parseDouble(this.props.getProperty("load_shedding_low_threshold", "0.7"));
+            normalThreshold = Double.parseDouble(this.props.getProperty("load_shedding_normal_threshold", "0.9"));
+        } catch (NumberFormatException e) {
+            logger.warn("load_shedding thresholds are not numbers, using 0.7 and 0.9.");
+        }
+        this.loadShedder = new LoadShedder(loadShedding, frequencyInSeconds, lowThreshold, normalThreshold);
+        logger.info("In setExecutionContext:: load_shedding: " + loadShedding);
+
+        this.sinks = SinkFactory.createSinks(this.props, lanes, this.disconnectAfter, pacedWindow, this.loadShedder.isEnabled(), frequencyInSeconds);
+
+        /*
+            routing_rules sends the series to destination groups, each with its own sinks (<group>_sinks) and prefix
+            (<group>_prefix), e.g. "tenantA:cluster=TenantA_*;tenantB:cluster=TenantB_*" (see Router). Series
+            without matching rule are dropped, receiver metrics go to all sinks.
+         */
+        String routingRules = this.props.getProperty("routing_rules");
+        if(routingRules != null && !routingRules.isEmpty()) {
+            this.router = new Router(routingRules, this.props, this.sinks);
+            if(this.router.isEmpty()) {
+                this.router = null;
+            }
+        }
+
+        /*
+            suppress_duplicate_samples only applies when only_one_sample_x_period is false. Samples not newer than the
+            last sample written for the series are dropped, series without samples for series_state_timeout seconds
+            are forgotten.
+         */
+        boolean suppressDuplicates = false;
+        if(this.props.getProperty("suppress_duplicate_samples") != null && !this.props.getProperty("suppress_duplicate_samples").isEmpty()) {
+            suppressDuplicates = Boolean.valueOf(this.props.getProperty("suppress_duplicate_samples"));
+        }
+        if(suppressDuplicates && !this.only_one_sample_x_period) {
+            this.highWaterMark = new SeriesHighWaterMark(Utils.calculateIteration(frequencyInSeconds, this.props.getProperty("series_state_timeout", "3600"), "series_state_timeout"));
+            logger.info("In setExecutionContext:: suppress_duplicate_samples enabled");
+        }
+        /*
+            path_template sets the layout of the node path, host_map_path_template the layout for VMs with alternate
+            prefix and suffix (use_alternate_vm_prefix_sufix). The defaults are the classic layouts.
+         */
+        String pathTemplate = this.props.getProperty("path_template");
+        if(pathTemplate == null || pathTemplate.isEmpty()) {
+            pathTemplate = DEFAULT_PATH_TEMPLATE;
+        }
+        String hostMapPathTemplate = this.props.getProperty("host_map_path_template");
+        if(hostMapPathTemplate == null || hostMapPathTemplate.isEmpty()) {
+            hostMapPathTemplate = DEFAULT_HOST_MAP_PATH_TEMPLATE;
+        }
+        try {
+            this.pathTemplate = PathTemplate.compile(pathTemplate, this.place_rollup_in_the_end);
+            this.hostMapPathTemplate = PathTemplate.compile(hostMapPathTemplate, this.place_rollup_in_the_end);
+        } catch (IllegalArgumentException e) {
+            logger.error(e.getMessage() + ", using the default path templates.");
+            this.pathTemplate = PathTemplate.compile(DEFAULT_PATH_TEMPLATE, this.place_rollup_in_the_end);
+            this.hostMapPathTemplate = PathTemplate.compile(DEFAULT_HOST_MAP_PATH_TEMPLATE, this.place_rollup_in_the_end);
+        }
+        logger.info("In setExecutionContext:: path_template: " + this.pathTemplate + " host_map_path_template: " + this.hostMapPathTemplate);
+
+        /*
+            top_k_instances keeps per (entity, counter) only the K instances with the highest value and folds the
+            others into the "other" instance, e.g. "virtualDisk=5,net=3,*=10". Only with only_one_sample_x_period.
+         */
+        String topK = this.props.getProperty("top_k_instances");
+        if(topK != null && !topK.isEmpty()) {
+            if(this.only_one_sample_x_period) {
+                this.topKSelector = new TopKSelector(topK);
+                logger.info("In setExecutionContext:: top_k_instances: " + topK);
+            } else {
+                logger.warn("top_k_instances requires only_one_sample_x_period, instances are not limited.");
+            }
+        }
+        /*
+            derived_rollups computes further rollups of a counter from its samples and sends them as sibling series,
+            e.g. "cpu.usage.average=maximum,minimum" (only_one_sample_x_period).
+         */
+        this.counterRegistry = new CounterRegistry(this.props.getProperty("derived_rollups"));
+        if(this.props.getProperty("derived_rollups") != null && !this.props.getProperty("derived_rollups").isEmpty() && !this.only_one_sample_x_period) {
+            logger.warn("derived_rollups requires only_one_sample_x_period, no rollups are derived.");
+        }
+
+        /*
+            downsample sends counter groups at a coarser resolution, e.g. "disk=300,datastore=3600": per series one
+            point per bucket of that many seconds with the rollup of the counter, instead of one point per retrieval.
+         */
+        String downsample = this.props.getProperty("downsample");
+        if(downsample != null && !downsample.isEmpty()) {
+            this.downsampler = new Downsampler(downsample, frequencyInSeconds);
+            if(this.downsampler.isEmpty()) {
+                this.downsampler = null;
+            }
+        }
+
+        /*
+            resample_unaligned aligns metric sets whose interval does not divide the frequency onto frequency sized
+            buckets (only_one_sample_x_period), false drops them as before.
+         */
+        boolean resampleUnaligned = true;
+        if(this.props.getProperty("resample_unaligned") != null && !this.props.getProperty("resample_unaligned").isEmpty()) {
+            resampleUnaligned = Boolean.valueOf(this.props.getProperty("resample_unaligned"));
+        }
+        if(resampleUnaligned) {
+            this.resampler = new Resampler(frequencyInSeconds);
+        }
         this.refreshClusterMapPeriod = Utils.calculateIteration(frequencyInSeconds, this.props.getProperty("cluster_map_refresh_timeout"), "cluster_map_refresh_timeout");
         this.refreshHostMapPeriod = Utils.calculateIteration(frequencyInSeconds, this.props.getProperty("alternate_vm_prefix_sufix_timeout"), "alternate_vm_prefix_sufix_timeout");
 
@@ -198,7 +415,151 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
                 }
             }
         }
-        Utils.initClusterHostMap(null, null, this.context, this.clusterMap);
+        this.entityDescriptors = new EntityDescriptorCache(this.clusterMap, this.rules, this.use_entity_type_prefix, this.use_fqdn, this.isHostMap);
+        this.entityDescriptors.setRouter(this.router);
+
+        /*
+            snapshot_file keeps the cluster map and series state across restarts. It is written every
+            snapshot_interval seconds and at shutdown. A snapshot younger than snapshot_max_age seconds is used at
+            startup and the cluster map is reconciled with vCenter in the background.
+         */
+        /*
+            new_series_per_minute caps how many series never seen before are written per minute, the samples of
+            further new series are dropped until the allowance refills. Known series are forgotten after
+            new_series_forget seconds without samples. new_series_created and new_series_rejected are sent as
+            <prefix>.graphitereceiver.<receiver name>.* at the end of every retrieval.
+         */
+        if(this.props.getProperty("new_series_per_minute") != null && !this.props.getProperty("new_series_per_minute").isEmpty()) {
+            try {
+                int maxPerMinute = Integer.parseInt(this.props.getProperty("new_series_per_minute"));
+                this.newSeriesGuard = new NewSeriesGuard(maxPerMinute, Utils.calculateIteration(frequencyInSeconds, this.props.getProperty("new_series_forget", "604800"), "new_series_forget"));
+                logger.info("In setExecutionContext:: new_series_per_minute: " + maxPerMinute);
+            } catch (NumberFormatException e) {
+                logger.error("new_series_per_minute is not a number, new series are not limited.");
+            }
+        }
+
+        if(this.props.getProperty("cluster_map_offline") != null && !this.props.getProperty("cluster_map_offline").isEmpty()) {
+            this.clusterMapOffline = Boolean.valueOf(this.props.getProperty("cluster_map_offline"));
+        }
+        String snapshotPath = this.props.getProperty("snapshot_file");
+        boolean warmStart = false;
+        if(snapshotPath != null && !snapshotPath.isEmpty()) {
+            this.snapshotStore = new SnapshotStore(snapshotPath);
+            this.refreshSnapshotPeriod = Utils.calculateIteration(frequencyInSeconds, this.props.getProperty("snapshot_interval", "600"), "snapshot_interval");
+            long maxAge = 86400;
+            try {
+                maxAge = Long.parseLong(this.props.getProperty("snapshot_max_age", "86400"));
+            } catch (NumberFormatException e) {
+                logger.warn("snapshot_max_age is not a number, using 86400 seconds.");
+            }
+            warmStart = this.snapshotStore.load(this.clusterMap, this.highWaterMark, this.newSeriesGuard, maxAge * 1000);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    snapshotStore.save(clusterMap, highWaterMark, newSeriesGuard);
+                }
+            }, "GraphiteReceiver-Snapshot"));
+        }
+
+        /*
+            cluster_miss_lookup resolves VMs and ESX hosts missing in the cluster map in the background, at most once
+            every cluster_miss_lookup_interval seconds. Up to cluster_miss_buffer metric sets are held meanwhile.
+            Entities without cluster are not looked up again for cluster_miss_negative_ttl seconds.
+         */
+        boolean clusterMissLookup = false;
+        if(this.props.getProperty("cluster_miss_lookup") != null && !this.props.getProperty("cluster_miss_lookup").isEmpty()) {
+            clusterMissLookup = Boolean.valueOf(this.props.getProperty("cluster_miss_lookup"));
+        }
+        if(clusterMissLookup && !this.clusterMapOffline) {
+            try {
+                this.clusterResolver = new ClusterResolver(this.context, this.clusterMap, new ClusterResolver.Replayer() {
+                            public void replay(String entityName, PerfMetricSet metricSet) {
+                                dispatchStats(entityName, metricSet);
+                            }
+                        },
+                        Long.parseLong(this.props.getProperty("cluster_miss_lookup_interval", "10")) * 1000,
+                        Long.parseLong(this.props.getProperty("cluster_miss_negative_ttl", "3600")) * 1000,
+                        Integer.parseInt(this.props.getProperty("cluster_miss_buffer", "10000")));
+                logger.info("In setExecutionContext:: cluster_miss_lookup enabled");
+            } catch (NumberFormatException e) {
+                logger.error("cluster_miss_lookup settings are not numbers, cluster_miss_lookup disabled.");
+            }
+        }
+
+        if(this.clusterMapOffline) {
+            logger.info("In setExecutionContext:: cluster_map_offline, cluster map entities from snapshot: " + this.clusterMap.size());
+        } else if(warmStart) {
+            this.reconcileClusterMap();
+        } else {
+            Utils.initClusterHostMap(null, null, this.context, this.clusterMap);
+        }
+
+        /*
+            capture_file records everything reaching receiveStats for replay with ReplayDriver, up to
+            capture_max_size megabytes. Capturing serializes the worker threads, it is meant for reproducing problems.
+         */
+        String capturePath = this.props.getProperty("capture_file");
+        if(capturePath != null && !capturePath.isEmpty()) {
+            try {
+                long maxSize = Long.parseLong(this.props.getProperty("capture_max_size", "1024"));
+                this.captureWriter = new CaptureWriter(capturePath, frequencyInSeconds, maxSize * 1024 * 1024);
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    public void run() {
+                        captureWriter.close();
+                    }
+                }, "GraphiteReceiver-Capture"));
+            } catch (NumberFormatException e) {
+                logger.error("capture_max_size is not a number, capturing disabled.");
+            } catch (IOException e) {
+                logger.error("Can't create capture file " + capturePath + ", capturing disabled.", e);
+            }
+        }
+
+        /*
+            trace_match (a path glob) and trace_sample (1 in N series) select series whose pipeline stages are
+            recorded to a ring buffer of trace_buffer events, without debug logging. trace_control_file changes the
+            selection at runtime and dumps the buffer, it is a properties file with match, sample and dump (a path).
+         */
+        String traceMatch = this.props.getProperty("trace_match");
+        String traceControlFile = this.props.getProperty("trace_control_file");
+        int traceSample = 0;
+        int traceBuffer = 10000;
+        try {
+            traceSample = Integer.parseInt(this.props.getProperty("trace_sample", "0"));
+            traceBuffer = Integer.parseInt(this.props.getProperty("trace_buffer", "10000"));
+        } catch (NumberFormatException e) {
+            logger.error("trace_sample or trace_buffer is not a number, using 0 and 10000.");
+        }
+        if((traceMatch != null && !traceMatch.isEmpty()) || traceSample > 0 || (traceControlFile != null && !traceControlFile.isEmpty())) {
+            this.tracer = new SeriesTracer(traceMatch, traceSample, traceBuffer, traceControlFile);
+        }
+
+        /*
+            shadow_sample runs the legacy naming and aggregation for 1 in N metric sets next to the receiver and logs
+            differences in path, value or timestamp to shadow_log_file, rotated at shadow_log_max_size megabytes.
+            Values differing by less than shadow_tolerance (relative) are equal. Only the receiver writes to carbon.
+         */
+        int shadowSample = 0;
+        double shadowTolerance = 0;
+        long shadowLogMaxSize = 10;
+        try {
+            shadowSample = Integer.parseInt(this.props.getProperty("shadow_sample", "0"));
+            shadowTolerance = Double.parseDouble(this.props.getProperty("shadow_tolerance", "0"));
+            shadowLogMaxSize = Long.parseLong(this.props.getProperty("shadow_log_max_size", "10"));
+        } catch (NumberFormatException e) {
+            logger.error("shadow_sample, shadow_tolerance or shadow_log_max_size is not a number, shadow verification disabled.");
+            shadowSample = 0;
+        }
+        if(shadowSample > 0) {
+            if(!DEFAULT_PATH_TEMPLATE.equals(pathTemplate) || !DEFAULT_HOST_MAP_PATH_TEMPLATE.equals(hostMapPathTemplate)) {
+                logger.warn("shadow_sample compares with the legacy path layout, custom path templates are reported as mismatches.");
+            }
+            this.shadowVerifier = new ShadowVerifier(shadowSample, shadowTolerance,
+                    this.props.getProperty("shadow_log_file", "shadow-verification.log"), shadowLogMaxSize * 1024 * 1024,
+                    this.clusterMap, this.rules, this.props.getProperty("prefix"), this.use_entity_type_prefix, this.use_fqdn,
+                    this.place_rollup_in_the_end, this.isHostMap, this.globalInstance, this.instanceMetrics,
+                    this.only_one_sample_x_period, (int) frequencyInSeconds);
+        }
         logger.debug("MetricsReceiver  setExecutionContext.");
     }
 
@@ -210,7 +571,14 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
     public void onStartRetrieval() {
         this.clusterPeriod++;
         this.hostMapPeriod++;
-        if(this.refreshClusterMapPeriod <= this.clusterPeriod){
+        if(this.captureWriter != null) {
+            this.captureWriter.startRetrieval();
+            this.captureClusterMap();
+        }
+        if(this.tracer != null) {
+            this.tracer.poll();
+        }
+        if(this.refreshClusterMapPeriod <= this.clusterPeriod && !this.reconciling && !this.clusterMapOffline){
             logger.debug("refreshClusterMapPeriod at period: " + this.clusterPeriod);
             this.refreshClusterMapPeriod();
         }
@@ -218,26 +586,71 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
             logger.debug("refreshHostMapPeriod at period: " + this.hostMapPeriod);
             this.refreshHostMapPeriod();
         }
-        try {
-            logger.debug("onStartRetrieval - Graphite Host and Port: " + this.props.getProperty("host") + "\t" + this.props.getProperty("port"));
-            this.disconnectCounter = 0;
-
-            this.client = new Socket(
-                    this.props.getProperty("host"),
-                    Integer.parseInt(this.props.getProperty("port", "2003"))
-            );
-            OutputStream s = this.client.getOutputStream();
-            this.out = new PrintWriter(s, true);
-        } catch (IOException ex) {
-            logger.error("Can't connect to graphite.", ex);
+        if(this.highWaterMark != null) {
+            int evicted = this.highWaterMark.startRetrieval();
+            logger.debug("onStartRetrieval series high water marks: " + this.highWaterMark.size() + " evicted: " + evicted);
+        }
+        if(this.clusterResolver != null) {
+            this.clusterResolver.startRetrieval();
+        }
+        if(this.newSeriesGuard != null) {
+            int forgotten = this.newSeriesGuard.startRetrieval();
+            logger.debug("onStartRetrieval known series: " + this.newSeriesGuard.size() + " forgotten: " + forgotten);
+        }
+        boolean backlog = false;
+        for(MetricSink sink : this.sinks) {
+            sink.open();
+            backlog |= sink.isBehind();
         }
+        this.loadShedder.startRetrieval(backlog);
     }
 
+    /**
+     * Rebuilds the cluster map from vCenter. The map is built aside and then applied, so lookups of the worker
+     * threads never see it empty or half filled. The current map is kept if vCenter could not be queried.
+     */
     public void refreshClusterMapPeriod() {
-        Utils.initClusterHostMap(null, null, this.context, this.clusterMap);
+        Map<String, String> fresh = new HashMap<String, String>();
+        if(Utils.initClusterHostMap(null, null, this.context, fresh) && !fresh.isEmpty()) {
+            this.applyClusterMap(fresh);
+        }
         this.clusterPeriod = 0;
     }
 
+    /**
+     * Replaces the content of the cluster map, entries are added or updated before the stale ones are removed.
+     */
+    private void applyClusterMap(Map<String, String> fresh) {
+        this.clusterMap.putAll(fresh);
+        this.clusterMap.keySet().retainAll(fresh.keySet());
+        this.entityDescriptors.invalidate();
+    }
+
+    /**
+     * Rebuilds the cluster map from vCenter in a background thread while the current map keeps serving lookups.
+     * Used after a warm start from the snapshot.
+     */
+    private void reconcileClusterMap() {
+        this.reconciling = true;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    Map<String, String> fresh = new HashMap<String, String>();
+                    if(Utils.initClusterHostMap(null, null, context, fresh) && !fresh.isEmpty()) {
+                        applyClusterMap(fresh);
+                    }
+                    logger.info("Cluster map reconciled with vCenter in " + (System.currentTimeMillis() - start) + " ms, entities: " + fresh.size());
+                } finally {
+                    clusterPeriod = 0;
+                    reconciling = false;
+                }
+            }
+        }, "GraphiteReceiver-ClusterMapReconcile");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     public void refreshHostMapPeriod() {
         String hostMapPath = this.props.getProperty("alternate_vm_prefix_sufix_map_file");
         if (hostMapPath != null && !hostMapPath.equals("")) {
@@ -248,6 +661,7 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
                 e.printStackTrace();
             }
         }
+        this.entityDescriptors.invalidate();
         this.hostMapPeriod = 0;
     }
     /**
@@ -257,16 +671,129 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
      */
     @Override
     public void onEndRetrieval() {
-        try {
-            logger.debug("MetricsReceiver onEndRetrieval.");
-            if(!isResetConn){
-                logger.info("onEndRetrieval PerformanceMetricsCountForEachRun: " + metricsCount);
+        logger.debug("MetricsReceiver onEndRetrieval.");
+        if(this.clusterResolver != null) {
+            long dropped = this.clusterResolver.endRetrieval();
+            if(dropped > 0) {
+                logger.info("onEndRetrieval MetricSetsDroppedWaitingForCluster: " + dropped);
             }
-            this.out.close();
-            this.client.close();
+        }
+        if(this.topKSelector != null) {
+            long folded = this.topKSelector.drain(new TopKSelector.Writer() {
+                public void write(DataPoint dataPoint) {
+                    // the selected instances are known already, the "other" series may be new
+                    if(MetricsReceiver.this.admit(dataPoint.getPath(), dataPoint.isTraced())) {
+                        MetricsReceiver.this.write(dataPoint);
+                    }
+                }
+            });
+            logger.info("onEndRetrieval InstancesFoldedIntoOther: " + folded);
+        }
+        if(this.newSeriesGuard != null) {
+            long created = this.newSeriesGuard.takeCreated();
+            long rejected = this.newSeriesGuard.takeRejected();
+            if(rejected > 0) {
+                logger.warn("onEndRetrieval NewSeriesRejected: " + rejected + " NewSeriesCreated: " + created);
+            }
+            this.writeReceiverMetric("new_series_created", created);
+            this.writeReceiverMetric("new_series_rejected", rejected);
+        }
+        if(this.shadowVerifier != null) {
+            long verified = this.shadowVerifier.takeVerified();
+            long mismatched = this.shadowVerifier.takeMismatched();
+            long skipped = this.shadowVerifier.takeSkipped();
+            if(mismatched > 0) {
+                logger.warn("onEndRetrieval ShadowMismatches: " + mismatched + " ShadowVerified: " + verified + " ShadowSkipped: " + skipped);
+            } else {
+                logger.info("onEndRetrieval ShadowVerified: " + verified + " ShadowSkipped: " + skipped);
+            }
+            this.writeReceiverMetric("shadow_verified", verified);
+            this.writeReceiverMetric("shadow_mismatches", mismatched);
+        }
+        if(this.downsampler != null) {
+            int open = this.downsampler.endRetrieval(this.sinkWriter);
+            long late = this.downsampler.takeLate();
+            logger.info("onEndRetrieval DownsampledPointsIn: " + this.downsampler.takeConsumed() + " DownsampledPointsOut: " + this.downsampler.takeWritten()
+                    + " DownsampledSeries: " + open + ((late > 0) ? " DownsampledLateDropped: " + late : ""));
+        }
+        for(MetricSink sink : this.sinks) {
+            sink.close();
+        }
+        logger.info("onEndRetrieval PerformanceMetricsCountForEachRun: " + this.metricsCount.sumThenReset());
+        long resampled = this.unalignedResampled.sumThenReset();
+        long unaligned = this.unalignedDropped.sumThenReset();
+        if(resampled > 0 || unaligned > 0) {
+            logger.info("onEndRetrieval UnalignedIntervalMetricSetsResampled: " + resampled + " UnalignedIntervalSamplesDropped: " + unaligned);
+        }
+        long noCluster = this.noClusterDropped.sumThenReset();
+        if(noCluster > 0) {
+            logger.info("onEndRetrieval SamplesDroppedWithoutCluster: " + noCluster);
+        }
+        long unrouted = this.unroutedDropped.sumThenReset();
+        if(unrouted > 0) {
+            logger.info("onEndRetrieval SamplesDroppedWithoutRoute: " + unrouted);
+        }
+        long unsupported = this.counterRegistry.takeUnsupported();
+        if(unsupported > 0) {
+            logger.info("onEndRetrieval UnsupportedRollupSamples: " + unsupported);
+        }
+        logger.info("onEndRetrieval RetrievalDurationMillis: " + this.loadShedder.endRetrieval());
+        if(this.highWaterMark != null) {
+            logger.info("onEndRetrieval DuplicateSamplesSuppressed: " + this.highWaterMark.takeSuppressed());
+        }
+        if(this.snapshotStore != null && ++this.snapshotPeriod >= this.refreshSnapshotPeriod) {
+            this.snapshotStore.save(this.clusterMap, this.highWaterMark, this.newSeriesGuard);
+            this.snapshotPeriod = 0;
+        }
+        if(this.captureWriter != null) {
+            this.captureClusterMap();
+            this.captureWriter.endRetrieval();
+        }
+    }
+
+    /**
+     * Sends a metric about the receiver itself as &lt;prefix&gt;.graphitereceiver.&lt;receiver name&gt;.&lt;metric&gt;.
+     */
+    private void writeReceiverMetric(String metric, double value) {
+        DataPoint dataPoint = new DataPoint();
+        dataPoint.setPrefix(this.props.getProperty("prefix"));
+        dataPoint.setEntityType("");
+        dataPoint.setEntity(this.name);
+        dataPoint.setGroup("graphitereceiver");
+        dataPoint.setMetric(metric);
+        dataPoint.setStatType("absolute");
+        dataPoint.setRollup("latest");
+        dataPoint.setPath(this.props.getProperty("prefix") + ".graphitereceiver." + this.name + "." + metric);
+        dataPoint.setValue(value);
+        dataPoint.setEpoch(System.currentTimeMillis() / 1000);
+        dataPoint.setPriority(Priority.HIGH);
+        this.write(dataPoint);
+    }
+
+    /**
+     * Records the cluster map when it changed since it was last captured.
+     */
+    private void captureClusterMap() {
+        int generation = this.entityDescriptors.getGeneration();
+        int size = this.clusterMap.size();
+        if(generation != this.capturedClusterGeneration || size != this.capturedClusterSize) {
+            this.captureWriter.clusterMap(this.clusterMap);
+            this.capturedClusterGeneration = generation;
+            this.capturedClusterSize = size;
+        }
+    }
 
-        } catch (IOException ex) {
-            logger.error("Can't close resources.", ex);
+    /**
+     * Sends what is still pending and stops the background threads of the sinks. StatsFeeder has no such callback,
+     * it is used by tools running the receiver like
+     * {@link de.synaxon.graphitereceiver.core.capture.ReplayDriver}.
+     */
+    public void shutdown() {
+        for(MetricSink sink : this.sinks) {
+            sink.shutdown();
+        }
+        if(this.captureWriter != null) {
+            this.captureWriter.close();
         }
     }
 
@@ -274,40 +801,72 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
      * Main receiver entry point. This will be called for each entity and each metric which were retrieved by
      * StatsFeeder.
      *
-     * receiveStats becomes a synchronized method for synchronizing all threads. Made this decision because PrintWriter low level Socket
+     * receiveStats synchronizes all threads unless striped_writers is set. Made this decision because PrintWriter low level Socket
      * APIs are not completely thread safe. We have observed runtime crashes if all threads call receiveStats method simultaneously.
+     * With striped_writers every thread writes to its own {@link GraphiteLane}, so no global lock is needed.
      *
      * @param entityName - The name of the statsfeeder entity being retrieved
      * @param metricSet - The set of metrics retrieved for the entity
      */
     @Override
-    public synchronized void receiveStats(String entityName, PerfMetricSet metricSet) {
+    public void receiveStats(String entityName, PerfMetricSet metricSet) {
+        if(this.captureWriter != null) {
+            this.captureWriter.metricSet(entityName, metricSet, this.context.getMorefRetriever());
+        }
+        this.dispatchStats(entityName, metricSet);
+    }
+
+    private void dispatchStats(String entityName, PerfMetricSet metricSet) {
+        if(this.stripedWriters) {
+            this.processStats(entityName, metricSet);
+        } else {
+            synchronized (this) {
+                this.processStats(entityName, metricSet);
+            }
+        }
+    }
+
+    private void processStats(String entityName, PerfMetricSet metricSet) {
         MOREFRetriever morefRetriever = this.context.getMorefRetriever();
-        Integer frequencyInSeconds = this.context.getConfiguration().getFrequencyInSeconds();
+        long traceStart = (this.tracer != null) ? System.nanoTime() : 0;
+        boolean shadowed = this.shadowVerifier != null && this.shadowVerifier.begin(metricSet);
 
         try {
-            String entityNameParsed = "";
-            logger.debug("MetricsReceiver in receiveStats");
             if (metricSet != null) {
-                String cluster = null;
-
-                if((metricSet.getEntityName().contains("VirtualMachine")) || (metricSet.getEntityName().contains("HostSystem"))){
-
-                    entityNameParsed = morefRetriever.parseEntityName(metricSet.getEntityName());
-
-                    if(entityNameParsed.equals("")){
-                        logger.warn("Received Invalid Managed Entity. Failed to Continue.");
+                EntityDescriptor entity = this.entityDescriptors.get(entityName, metricSet.getEntityName(), morefRetriever, this.hostMap);
+                if(!entity.isValid()){
+                    logger.warn("Received Invalid Managed Entity. Failed to Continue.");
+                    return;
+                }
+                String cluster = entity.getCluster();
+                if(entity.getEntityType().isClustered()) {
+                    if(cluster == null && this.clusterResolver != null && entity.getEntityType().isResolvable()) {
+                        if(this.debugLogLevel) {
+                            logger.debug("Cluster Not Found for Entity " + entity.getEntityKey() + ", looking it up.");
+                        }
+                        boolean held = this.clusterResolver.miss(entity.getEntityKey(), entity.getEntityType() == EntityType.VIRTUAL_MACHINE, entityName, metricSet);
+                        if(shadowed) {
+                            this.shadowVerifier.skip("cluster_lookup");
+                        }
+                        if(!held) {
+                            // looked up recently without cluster, dropped like any entity without cluster
+                            this.metricsCount.add(metricSet.size());
+                            this.noClusterDropped.add(metricSet.size());
+                        }
                         return;
                     }
-                    cluster = String.valueOf(clusterMap.get(entityNameParsed.replace(" ", "_")));
-                    if(cluster == null || cluster.equals("")){
-                        logger.warn("Cluster Not Found for Entity " + entityNameParsed.replace(" ", "_"));
+                    if(cluster == null) {
+                        // the path of an entity without cluster is always dropped, skip the work to build it
+                        this.metricsCount.add(metricSet.size());
+                        this.noClusterDropped.add(metricSet.size());
                         return;
                     }
-                    logger.debug("Cluster and Entity: " + cluster + " : " + entityNameParsed.replace(" ", "_"));
+                    if(this.debugLogLevel) {
+                        logger.debug("Cluster and Entity: " + cluster + " : " + entity.getEntityKey());
+                    }
                 }
 
-                String instanceName = (this.rules.get("instanceName") != null)? RuleUtils.applyRules(metricSet.getInstanceId(),this.rules.get("instanceName")):metricSet.getInstanceId();
+                String instanceName = (this.rules != null && this.rules.get("instanceName") != null)? RuleUtils.applyRules(metricSet.getInstanceId(),this.rules.get("instanceName")):metricSet.getInstanceId();
                 
                 if( ( this.globalInstance == true ) && ( instanceName == null || instanceName.isEmpty() ) )
                 {
@@ -316,127 +875,336 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
 
                 String statType=metricSet.getStatType();
 
-
-                int interval=metricSet.getInterval();
-
                 String rollup;
-                String hostName = null;
-                if(entityName.contains("[VirtualMachine]")) {
-                    hostName = (this.rules.get("hostName") != null)?RuleUtils.applyRules(entityNameParsed,this.rules.get("hostName")):entityNameParsed;
+                String eName = entity.getEName();
+                if(this.debugLogLevel) {
+                    logger.debug("Entity: " + eName + " Interval: " + metricSet.getInterval() + " Frequency: " + this.context.getConfiguration().getFrequencyInSeconds());
                 }
 
-                String eName = Utils.getEName(this.use_entity_type_prefix, this.use_fqdn, entityName, entityNameParsed, this.rules.get("eName"));
-                logger.debug("Container Name :" + morefRetriever.getContainerName(eName) + " Interval: "+Integer.toString(interval)+ " Frequency :"+Integer.toString(frequencyInSeconds));
-
                 /*
-                    Finally node contains these fields (depending on properties)
+                    Finally node contains these fields (depending on path_template and properties)
                     graphite_prefix.cluster.eName.groupName.instanceName.metricName_rollup_statType
                     graphite_prefix.cluster.eName.groupName.instanceName.metricName_statType_rollup
 
-                    NOTES: if cluster is null cluster name disappears from node string.
+                    NOTES: if cluster is null the metric is dropped.
                            if instanceName is null instanceName name disappears from node string.
                  */
                 //Get group name (xxxx) metric name (yyyy) and rollup (zzzz)
-                // from "xxxx.yyyyyy.xxxxx" on the metricName
-                if(cluster != null) {
-                    cluster = (this.rules.get("cluster") != null)?RuleUtils.applyRules(cluster,this.rules.get("cluster")):cluster;
+                // from "xxxx.yyyyyy.xxxxx" on the metricName, parsed once per counter
+                CounterDescriptor counter = this.counterRegistry.get(metricSet.getCounterName());
+                if(counter == null) {
+                    logger.warn("Invalid counter name: " + metricSet.getCounterName());
+                    return;
+                }
+                String groupName = counter.getGroup();
+                String metricName = counter.getMetric();
+                rollup = counter.getRollupName();
+
+                String prefix = this.props.getProperty("prefix");
+                int destination = DataPoint.ALL_DESTINATIONS;
+                if(this.router != null) {
+                    Route route = entity.getRoute().forGroup(groupName);
+                    if(!route.isRouted()) {
+                        if(shadowed) {
+                            this.shadowVerifier.skip("unrouted");
+                        }
+                        this.metricsCount.add(metricSet.size());
+                        this.unroutedDropped.add(metricSet.size());
+                        return;
+                    }
+                    prefix = route.getPrefix();
+                    destination = route.getDestination();
+                }
 
+                DataPoint dataPoint = this.dataPoints.get();
+                dataPoint.setPrefix(prefix);
+                dataPoint.setDestination(destination);
+                dataPoint.setCluster(cluster);
+                dataPoint.setEntityType(entity.getEntityType().getShortName());
+                dataPoint.setEntity(eName);
+                dataPoint.setGroup(groupName);
+                dataPoint.setInstance(instanceName);
+                dataPoint.setMetric(metricName);
+                dataPoint.setStatType(statType);
+                dataPoint.setRollup(rollup);
+                String node = this.buildPath(dataPoint, entity, counter);
+                boolean traced = node != null && this.tracer != null && this.tracer.isTraced(node);
+                dataPoint.setTraced(traced);
+                if(traced) {
+                    this.tracer.record(node, "resolve", entityName + " " + metricSet.getCounterName() + " " + metricSet.getInstanceId(),
+                            cluster + " " + eName, System.nanoTime() - traceStart);
                 }
 
-                String[] counterInfo = Utils.splitCounterName(metricSet.getCounterName());
-                String groupName = counterInfo[0];
-                String metricName = counterInfo[1];
-                rollup = counterInfo[2];
-
-                Map<String,String> graphiteTree = new HashMap<String, String>();
-                graphiteTree.put("graphite_prefix", this.props.getProperty("prefix"));
-                graphiteTree.put("cluster", cluster); //
-                graphiteTree.put("eName", eName); //
-                graphiteTree.put("groupName", groupName);
-                graphiteTree.put("instanceName", instanceName); //
-                graphiteTree.put("metricName", metricName);
-                graphiteTree.put("statType", statType);
-                graphiteTree.put("rollup", rollup);
-                graphiteTree.put("counterName", metricSet.getCounterName());
-                graphiteTree.put("hostName", hostName); //
-
-                String node = Utils.getNode(graphiteTree, place_rollup_in_the_end, this.isHostMap, this.hostMap);
-
-                metricsCount += metricSet.size();
+                this.metricsCount.add(metricSet.size());
+                if(this.instanceMetrics && instanceName != null && !instanceName.isEmpty()) {
+                    // disable_instance_metrics: the instance series is never sent, it takes no shed or new series allowance
+                    return;
+                }
+                Priority priority = this.priorityClassifier.classify(entity.getEntityType().getShortName(), groupName, metricName, instanceName);
+                if(node != null && this.loadShedder.shed(priority, metricSet.size())) {
+                    if(shadowed) {
+                        this.shadowVerifier.skip("shed");
+                    }
+                    if(traced) {
+                        this.tracer.record(node, "shed", priority.name(), metricSet.size() + " samples dropped", 0);
+                    }
+                    return;
+                }
+                if(node != null && !this.admit(node, traced)) {
+                    if(shadowed) {
+                        this.shadowVerifier.skip("new_series");
+                    }
+                    return;
+                }
                 if(node != null) {
-                    if(this.instanceMetrics) {
-                        if(instanceName == null || instanceName.isEmpty()) {
-                            this.sendMetric(metricSet, node, rollup);
-                        }
-                    } else {
-                        this.sendMetric(metricSet, node, rollup);
+                    dataPoint.setPath(node);
+                    dataPoint.setPriority(priority);
+                    String otherPath = null;
+                    if(this.topKSelector != null && this.topKSelector.applies(dataPoint)) {
+                        dataPoint.setInstance(TopKSelector.OTHER_INSTANCE);
+                        otherPath = this.buildPath(dataPoint, entity, counter);
+                        dataPoint.setInstance(instanceName);
                     }
+                    this.sendMetric(metricSet, entity, counter, dataPoint, otherPath);
                 }
-            } else {
+            } else if(this.debugLogLevel) {
                 logger.debug("MetricsReceiver MetricSet is NULL");
             }
         } catch(Exception e){
             logger.fatal("Unexpected error occurred during metrics collection.", e);
+        } finally {
+            if(shadowed) {
+                this.shadowVerifier.end(entityName, metricSet, morefRetriever, this.hostMap);
+            }
         }
     }
 
-    private void resetGraphiteConnection(){
-        try {
-            logger.debug("resetGraphiteConnection. Counter Value " + this.disconnectCounter + " Threshold Value of " + this.disconnectAfter + " reached. resetting Graphite Connection");
-            isResetConn = true;
-            this.onEndRetrieval();
-            this.onStartRetrieval();
-            isResetConn = false;
-        }catch(Exception e){
-            logger.fatal("Failed to Establish Graphite Server connection: " +
-                    this.props.getProperty("host") + "\t" +
-                    Integer.parseInt(this.props.getProperty("port", "2003")));
-            System.exit(-1);
+    /**
+     * @return true if the series may be written, false if it is new and the {@link NewSeriesGuard} has no allowance left
+     */
+    private boolean admit(String path, boolean traced) {
+        if(this.newSeriesGuard == null || this.newSeriesGuard.admit(LongLongHashMap.hash(path))) {
+            return true;
+        }
+        if(traced) {
+            this.tracer.record(path, "new_series", "", "rejected", 0);
         }
+        return false;
     }
 
-    private void sendMetric(PerfMetricSet metricSet, String node, String rollup){
+    /**
+     * Renders the node path of the datapoint with the path template, the alternate prefix/suffix template for VMs in
+     * the host map.
+     *
+     * @return the path, null if the metric is dropped
+     */
+    private String buildPath(DataPoint dataPoint, EntityDescriptor entity, CounterDescriptor counter) {
+        // VMs and ESX hosts whose cluster is unknown are always dropped
+        if("null".equals(dataPoint.getCluster())) {
+            return null;
+        }
+        PathTemplate template = this.pathTemplate;
+        if(this.isHostMap) {
+            if(entity.isHostMapped()) {
+                MapPrefixSuffix mapPrefixSuffix = entity.getMapPrefixSuffix();
+                if(mapPrefixSuffix == null) {
+                    return null;
+                }
+                if(mapPrefixSuffix.getPrefix() != null && mapPrefixSuffix.getSufix() != null) {
+                    template = this.hostMapPathTemplate;
+                }
+            } else if(dataPoint.getEntity() != null && dataPoint.getEntity().contains("vm")) {
+                return null;
+            }
+        }
+        StringBuilder path = this.pathBuffers.get();
+        path.setLength(0);
+        if(!template.render(dataPoint, entity, counter, path)) {
+            return null;
+        }
+        return path.toString();
+    }
+
+    /**
+     * @param otherPath path of the "other" instance when the datapoint goes through the {@link TopKSelector}, else null
+     */
+    private void sendMetric(PerfMetricSet metricSet, EntityDescriptor entity, CounterDescriptor counter, DataPoint dataPoint, String otherPath){
         Integer frequencyInSeconds = this.context.getConfiguration().getFrequencyInSeconds();
         if (only_one_sample_x_period) {
-            logger.debug("one sample x period");
             int itv = metricSet.getInterval();
-            if (frequencyInSeconds % itv != 0) {
-                logger.warn("frequency " + frequencyInSeconds + " is not multiple of interval: " + itv + " at metric : " + node);
+            if(counter.getRollup() == Rollup.UNSUPPORTED) {
+                if(this.shadowVerifier != null) {
+                    this.shadowVerifier.skip("unsupported_rollup");
+                }
+                this.counterRegistry.unsupported(metricSet.size());
+                return;
+            }
+            if (itv <= 0 || frequencyInSeconds % itv != 0) {
+                if(this.resampler == null) {
+                    this.unalignedDropped.add(metricSet.size());
+                    return;
+                }
+                if(this.shadowVerifier != null) {
+                    this.shadowVerifier.skip("resampled");
+                }
+                this.resampleMetric(counter, dataPoint, metricSet, otherPath);
+                return;
+            }
+            if(!counter.getDerived().isEmpty()) {
+                this.sendDerivedMetrics(entity, counter, dataPoint, metricSet, otherPath);
                 return;
             }
-            this.sendMetric(node, metricSet.getMetrics(), rollup);
+            this.sendMetric(counter, dataPoint, metricSet.getMetrics(), otherPath);
 
         } else {
-            logger.debug("all samples");
-            sendAllMetrics(node, metricSet);
+            sendAllMetrics(dataPoint, metricSet);
         }
     }
 
-    private void sendMetric(String node,Iterator<PerfMetric> metrics, String rollup){
+    /**
+     * Sends the newest frequency aligned bucket of a metric set whose interval does not divide the frequency.
+     */
+    private void resampleMetric(CounterDescriptor counter, DataPoint dataPoint, PerfMetricSet metricSet, String otherPath) {
         try {
-            String value = "";
-            if (rollup.equals("average")) {
-                value = Calculate.average(metrics);
-            } else if (rollup.equals("latest")) {
-                value = Calculate.latest(metrics);
-            } else if (rollup.equals("maximum")) {
-                value = Calculate.maximun(metrics);
-            } else if (rollup.equals("minimum")) {
-                value = Calculate.minimun(metrics);
-            } else if (rollup.equals("summation")) {
-
-                value = Calculate.sumation(metrics);
-            } else {
-                logger.info("Not supported Rollup agration:" + rollup);
+            Resampler.Buckets buckets = this.resampler.resample(counter.getRollup(), metricSet.getMetrics());
+            if(buckets.size() == 0) {
+                return;
             }
-            if((this.disconnectAfter > 0) && (++this.disconnectCounter >= this.disconnectAfter)){
-                logger.debug("sendMetric - PerfMetric Counter Value: " + this.disconnectCounter);
-                this.resetGraphiteConnection();
+            double value = buckets.getValue(buckets.size() - 1);
+            dataPoint.setValue(counter.isPercent() ? value / 100 : value);
+            dataPoint.setEpoch(buckets.getStart(buckets.size() - 1));
+            this.unalignedResampled.increment();
+            this.emit(dataPoint, otherPath);
+        } catch (ParseException t) {
+            logger.error("Error processing entity stats on metric: " + dataPoint.getPath(), t);
+        }
+    }
+
+    /**
+     * Sends the rollup of the counter like any other counter, then its derived rollups from one pass over the samples.
+     * The derived rollups are sibling series which differ only in the rollup.
+     */
+    private void sendDerivedMetrics(EntityDescriptor entity, CounterDescriptor counter, DataPoint dataPoint, PerfMetricSet metricSet, String otherPath) {
+        // the fetched rollup keeps the values of Calculate, configuring derived rollups must not change an existing series
+        this.sendMetric(counter, dataPoint, metricSet.getMetrics(), otherPath);
+        SampleStats stats = this.sampleStats.get();
+        try {
+            stats.read(metricSet.getMetrics());
+        } catch (ParseException t) {
+            logger.error("Error processing entity stats on metric: " + dataPoint.getPath(), t);
+            return;
+        }
+        if(stats.getCount() == 0) {
+            return;
+        }
+        String path = dataPoint.getPath();
+        String instance = dataPoint.getInstance();
+        dataPoint.setEpoch(stats.getEpoch());
+        for(CounterDescriptor derived : counter.getDerived()) {
+            dataPoint.setRollup(derived.getRollupName());
+            dataPoint.setPath(this.buildPath(dataPoint, entity, derived));
+            String derivedOtherPath = null;
+            if(otherPath != null) {
+                dataPoint.setInstance(TopKSelector.OTHER_INSTANCE);
+                derivedOtherPath = this.buildPath(dataPoint, entity, derived);
+                dataPoint.setInstance(instance);
             }
-            if(node != null && node.contains("_percent_")) {
-                value = scalePercent(value);
+            if(dataPoint.getPath() != null && this.admit(dataPoint.getPath(), dataPoint.isTraced())) {
+                this.emitRollup(derived, stats, dataPoint, derivedOtherPath);
             }
-            out.printf("%s %s%n", node, value);
+        }
+        dataPoint.setRollup(counter.getRollupName());
+        dataPoint.setPath(path);
+    }
+
+    private void emitRollup(CounterDescriptor counter, SampleStats stats, DataPoint dataPoint, String otherPath) {
+        double value = stats.getValue(counter.getRollup());
+        dataPoint.setValue(counter.isPercent() ? value / 100 : value);
+        this.emit(dataPoint, otherPath);
+    }
+
+    /**
+     * Offers the datapoint to the top-K selection when it has an "other" path, else writes it.
+     */
+    private void emit(DataPoint dataPoint, String otherPath) {
+        if(this.shadowVerifier != null) {
+            this.shadowVerifier.observe(dataPoint);
+        }
+        if(otherPath != null) {
+            if(dataPoint.isTraced()) {
+                this.tracer.record(dataPoint.getPath(), "top_k", dataPoint.getValue() + " " + dataPoint.getEpoch(), otherPath, 0);
+            }
+            this.topKSelector.offer(dataPoint, otherPath);
+        } else {
+            this.write(dataPoint);
+        }
+    }
+
+    /**
+     * Hands the datapoint to the {@link Downsampler} when its counter group is downsampled, else to every sink.
+     */
+    private void write(DataPoint dataPoint) {
+        if(this.downsampler != null && this.downsampler.applies(dataPoint)) {
+            if(dataPoint.isTraced()) {
+                this.tracer.record(dataPoint.getPath(), "downsample", dataPoint.getValue() + " " + dataPoint.getEpoch(), "", 0);
+            }
+            this.downsampler.add(dataPoint, this.sinkWriter);
+            return;
+        }
+        this.writeToSinks(dataPoint);
+    }
+
+    /**
+     * Hands the datapoint to every configured sink.
+     */
+    private void writeToSinks(DataPoint dataPoint) {
+        List<MetricSink> sinks = (dataPoint.getDestination() == DataPoint.ALL_DESTINATIONS) ? this.sinks : this.router.getSinks(dataPoint.getDestination());
+        if(dataPoint.isTraced()) {
+            long start = System.nanoTime();
+            for(MetricSink sink : sinks) {
+                sink.write(dataPoint);
+            }
+            this.tracer.record(dataPoint.getPath(), "write", dataPoint.getValue() + " " + dataPoint.getEpoch(),
+                    dataPoint.getPriority() + " to " + sinks.size() + " sinks", System.nanoTime() - start);
+            return;
+        }
+        for(MetricSink sink : sinks) {
+            sink.write(dataPoint);
+        }
+    }
+
+    private void sendMetric(CounterDescriptor counter, DataPoint dataPoint, Iterator<PerfMetric> metrics, String otherPath){
+        String node = dataPoint.getPath();
+        long traceStart = dataPoint.isTraced() ? System.nanoTime() : 0;
+        try {
+            String value;
+            switch (counter.getRollup()) {
+                case AVERAGE:
+                    value = Calculate.average(metrics);
+                    break;
+                case LATEST:
+                    value = Calculate.latest(metrics);
+                    break;
+                case MAXIMUM:
+                    value = Calculate.maximun(metrics);
+                    break;
+                case MINIMUM:
+                    value = Calculate.minimun(metrics);
+                    break;
+                case SUMMATION:
+                    value = Calculate.sumation(metrics);
+                    break;
+                default:
+                    return;
+            }
+            int separator = value.indexOf(' ');
+            double parsed = Double.parseDouble(value.substring(0, separator));
+            dataPoint.setValue(counter.isPercent() ? parsed / 100 : parsed);
+            dataPoint.setEpoch(Long.parseLong(value.substring(separator + 1)));
+            if(dataPoint.isTraced()) {
+                this.tracer.record(node, "aggregate", counter.getRollupName(), value, System.nanoTime() - traceStart);
+            }
+            this.emit(dataPoint, otherPath);
             if(this.debugLogLevel){
                 String str = String.format("%s %s", node, value);
                 logger.debug("Graphite Output Summation: " + str);
@@ -446,25 +1214,52 @@ public class MetricsReceiver implements StatsListReceiver, StatsFeederListener,
         }
     }
 
-    private void sendAllMetrics(String node,PerfMetricSet metricSet){
+    private void sendAllMetrics(DataPoint dataPoint, PerfMetricSet metricSet){
+        String node = dataPoint.getPath();
         final DateFormat SDF = new SimpleDateFormat(
                 "yyyy-MM-dd'T'HH:mm:ss'Z'");
         SDF.setTimeZone(TimeZone.getTimeZone("UTC"));
         try {
+            long seriesHash = 0;
+            long highWater = Long.MIN_VALUE;
+            long newest = Long.MIN_VALUE;
+            int duplicates = 0;
+            if(this.highWaterMark != null) {
+                seriesHash = LongLongHashMap.hash(node);
+                highWater = this.highWaterMark.get(seriesHash);
+            }
             Iterator<PerfMetric> metrics = metricSet.getMetrics();
             while (metrics.hasNext()) {
-                if((this.disconnectAfter > 0) && (++this.disconnectCounter >= this.disconnectAfter)){
-                    logger.debug("sendAllMetrics - PerfMetric Counter Value: " + this.disconnectCounter);
-                    this.resetGraphiteConnection();
-                }
                 PerfMetric sample = metrics.next();
-                out.printf("%s %s %s%n", node, sample.getValue(), SDF.parse(sample.getTimestamp()).getTime() / 1000);
+                long epoch = SDF.parse(sample.getTimestamp()).getTime() / 1000;
+                if(epoch <= highWater) {
+                    duplicates++;
+                    continue;
+                }
+                newest = Math.max(newest, epoch);
+                dataPoint.setValue(Double.parseDouble(sample.getValue()));
+                dataPoint.setEpoch(epoch);
+                if(this.shadowVerifier != null) {
+                    this.shadowVerifier.observe(dataPoint);
+                }
+                this.write(dataPoint);
 
                 if(this.debugLogLevel){
                     String str = String.format("%s %s %s%n", node, sample.getValue(), SDF.parse(sample.getTimestamp()).getTime() / 1000);
                     logger.debug("Graphite Output: " + str);
                 }
             }
+            if(this.highWaterMark != null) {
+                if(newest != Long.MIN_VALUE) {
+                    this.highWaterMark.advance(seriesHash, newest);
+                }
+                if(duplicates > 0) {
+                    if(this.shadowVerifier != null) {
+                        this.shadowVerifier.skip("duplicates");
+                    }
+                    this.highWaterMark.suppressed(duplicates);
+                }
+            }
         } catch (Throwable t) {
             logger.error("Error processing entity stats on metric: " + node, t);
         }
@@ -0,0 +1,112 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.utils.SegmentedLongMap;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * NewSeriesGuard limits how many series the receiver creates per minute, so a naming mistake can't make carbon
+ * create tens of thousands of whisper files at once.
+ *
+ * Known series are kept as 64 bit hashes of the node path in a {@link SegmentedLongMap} and always pass. A series
+ * not known yet passes while the per minute allowance lasts, otherwise its samples are dropped and it is tried again
+ * with its next metric set. Series not seen for forgetRetrievals retrievals are forgotten. The known series are
+ * saved with the snapshot, so a restart does not count all series as new.
+ */
+public class NewSeriesGuard {
+
+    private final SegmentedLongMap known = new SegmentedLongMap(1024);
+    private final int maxPerMinute;
+    private final int forgetRetrievals;
+    private final StripedCounter created = new StripedCounter();
+    private final StripedCounter rejected = new StripedCounter();
+    private volatile int retrieval;
+    private double allowance;
+    private long lastRefill;
+
+    /**
+     * @param maxPerMinute new series allowed per minute
+     * @param forgetRetrievals number of retrievals without samples after which a series is forgotten
+     */
+    public NewSeriesGuard(int maxPerMinute, int forgetRetrievals) {
+        this.maxPerMinute = Math.max(0, maxPerMinute);
+        this.forgetRetrievals = Math.max(1, forgetRetrievals);
+        this.allowance = this.maxPerMinute;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the series may be written
+     */
+    public boolean admit(long seriesHash) {
+        if(this.known.touch(seriesHash, this.retrieval)) {
+            return true;
+        }
+        if(!this.takeAllowance()) {
+            this.rejected.increment();
+            return false;
+        }
+        this.known.put(seriesHash, System.currentTimeMillis() / 1000, this.retrieval);
+        this.created.increment();
+        return true;
+    }
+
+    /**
+     * Starts a new retrieval and forgets stale series when due.
+     *
+     * @return number of forgotten series
+     */
+    public int startRetrieval() {
+        this.retrieval++;
+        if(this.retrieval % this.forgetRetrievals != 0) {
+            return 0;
+        }
+        return this.known.evictOlderThan(this.retrieval - this.forgetRetrievals);
+    }
+
+    /**
+     * @return series created since the last call
+     */
+    public long takeCreated() {
+        return this.created.sumThenReset();
+    }
+
+    /**
+     * @return metric sets of new series rejected since the last call
+     */
+    public long takeRejected() {
+        return this.rejected.sumThenReset();
+    }
+
+    /**
+     * Writes the known series as count followed by (hash, first seen) pairs.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        this.known.writeTo(out);
+    }
+
+    /**
+     * Reads known series written by {@link #writeTo(DataOutput)}, they count as seen in the current retrieval.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        this.known.readFrom(in, this.retrieval);
+    }
+
+    public int size() {
+        return this.known.size();
+    }
+
+    private synchronized boolean takeAllowance() {
+        long now = System.currentTimeMillis();
+        this.allowance = Math.min(this.maxPerMinute, this.allowance + (now - this.lastRefill) * this.maxPerMinute / 60000.0);
+        this.lastRefill = now;
+        if(this.allowance < 1) {
+            return false;
+        }
+        this.allowance--;
+        return true;
+    }
+}
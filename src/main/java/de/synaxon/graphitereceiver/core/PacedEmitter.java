@@ -0,0 +1,249 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.Priority;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * PacedEmitter spreads the output of one retrieval over a fraction of the frequency window instead of sending it
+ * as one burst at the end of the retrieval.
+ *
+ * The lanes run in deferred mode and keep their output in chunks. At onEndRetrieval the chunks are handed to a
+ * background thread which sends them round robin over all lanes at the rate needed to finish within the window.
+ * The latency of every socket write is measured, when it grows above the baseline (carbon applies TCP backpressure)
+ * the emitter waits longer between chunks, but never so long that it would miss the deadline.
+ * {@link #awaitCompletion()} must be called before the lanes are opened for the next retrieval, it sends whatever is
+ * left at full speed, so a retrieval is completely sent before the next one starts. The chunks are sent by
+ * {@link Priority}, high first. Only with load shedding enabled, low priority chunks still waiting when the next
+ * retrieval starts are shed and counted instead.
+ */
+public class PacedEmitter {
+
+    private static final int MAX_BACKOFF = 8;
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private Log logger = LogFactory.getLog(PacedEmitter.class);
+    private final double windowFraction;
+    private final boolean shedLow;
+    private final ExecutorService executor;
+    private Future<?> running;
+    private volatile boolean hurry;
+    private volatile long lastLagMillis;
+    private volatile long lastMaxLagMillis;
+    private volatile long lastAverageLatencyMicros;
+    private volatile long lastShedLines;
+
+    /**
+     * @param windowFraction part of the frequency window used for sending, between 0 and 1
+     * @param shedLow true to drop the low priority chunks still waiting when the next retrieval starts (load_shedding)
+     */
+    public PacedEmitter(double windowFraction, boolean shedLow) {
+        this.windowFraction = (windowFraction <= 0 || windowFraction > 1) ? 0.5 : windowFraction;
+        this.shedLow = shedLow;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GraphiteReceiver-PacedEmitter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts sending the deferred chunks of all lanes. The lanes are disconnected when everything is sent.
+     *
+     * @param lanePool lanes holding the output of the finished retrieval
+     * @param frequencyInSeconds StatsFeeder frequency
+     * @param retrievalStart time in millis the retrieval started, the chunks are sent within the configured fraction
+     *                       of the time left until the next retrieval starts
+     */
+    public synchronized void schedule(final LanePool lanePool, long frequencyInSeconds, long retrievalStart) {
+        this.awaitCompletion();
+        this.hurry = false;
+        long now = System.currentTimeMillis();
+        long windowLeft = Math.max(0, retrievalStart + frequencyInSeconds * 1000 - now);
+        final long deadline = now + (long) (windowLeft * this.windowFraction);
+        this.running = this.executor.submit(new Runnable() {
+            public void run() {
+                emit(lanePool, deadline);
+            }
+        });
+    }
+
+    /**
+     * Blocks until the last scheduled retrieval is completely sent. Remaining chunks are sent without pacing.
+     */
+    public synchronized void awaitCompletion() {
+        if(this.running == null) {
+            return;
+        }
+        this.hurry = true;
+        try {
+            this.running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Paced emission failed.", e.getCause());
+        }
+        this.running = null;
+    }
+
+    public void shutdown() {
+        this.awaitCompletion();
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return how late the last retrieval finished compared to its window, 0 if it was in time
+     */
+    public long getLastLagMillis() {
+        return this.lastLagMillis;
+    }
+
+    public long getLastMaxLagMillis() {
+        return this.lastMaxLagMillis;
+    }
+
+    public long getLastAverageLatencyMicros() {
+        return this.lastAverageLatencyMicros;
+    }
+
+    /**
+     * @return low priority lines of the last retrieval which were not sent because the next retrieval started
+     */
+    public long getLastShedLines() {
+        return this.lastShedLines;
+    }
+
+    private void emit(LanePool lanePool, long deadline) {
+        // queues[priority][lane]
+        List<List<List<GraphiteLane.Chunk>>> queues = new ArrayList<List<List<GraphiteLane.Chunk>>>();
+        for(int p = 0; p < PRIORITIES.length; p++) {
+            queues.add(new ArrayList<List<GraphiteLane.Chunk>>());
+        }
+        long totalBytes = 0;
+        int chunks = 0;
+        for(int i = 0; i < lanePool.size(); i++) {
+            List<List<GraphiteLane.Chunk>> pending = lanePool.getLane(i).takePending();
+            for(int p = 0; p < PRIORITIES.length; p++) {
+                List<GraphiteLane.Chunk> queue = pending.get(p);
+                queues.get(p).add(queue);
+                for(GraphiteLane.Chunk chunk : queue) {
+                    totalBytes += chunk.size();
+                    chunks++;
+                }
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        long window = Math.max(1, deadline - start);
+        long sentBytes = 0;
+        long maxLag = 0;
+        long latencySum = 0;
+        long baselineLatency = -1;
+        int backoff = 1;
+        int sent = 0;
+        long shedLines = 0;
+
+        // all high priority chunks go out before the first normal one, with load shedding low priority output is shed
+        // when the next retrieval needs the lanes
+        for(int p = 0; p < PRIORITIES.length; p++) {
+            List<List<GraphiteLane.Chunk>> laneQueues = queues.get(p);
+            int[] next = new int[laneQueues.size()];
+            boolean more = true;
+            while(more) {
+                more = false;
+                for(int i = 0; i < laneQueues.size(); i++) {
+                    List<GraphiteLane.Chunk> queue = laneQueues.get(i);
+                    if(next[i] >= queue.size()) {
+                        continue;
+                    }
+                    more = true;
+                    GraphiteLane.Chunk chunk = queue.get(next[i]);
+                    queue.set(next[i]++, null);
+                    if(this.hurry && this.shedLow && PRIORITIES[p] == Priority.LOW) {
+                        shedLines += chunk.getLines();
+                        continue;
+                    }
+
+                    long before = System.nanoTime();
+                    lanePool.getLane(i).send(chunk);
+                    long latency = (System.nanoTime() - before) / 1000;
+                    latencySum += latency;
+                    sent++;
+                    sentBytes += chunk.size();
+
+                    // smoothed minimum of the write latency is the baseline, a latency far above it means carbon is slow
+                    if(baselineLatency < 0 || latency < baselineLatency) {
+                        baselineLatency = latency;
+                    } else {
+                        baselineLatency += (latency - baselineLatency) / 16;
+                    }
+                    if(latency > 4 * baselineLatency + 1000) {
+                        backoff = Math.min(MAX_BACKOFF, backoff * 2);
+                    } else if(backoff > 1) {
+                        backoff--;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    long scheduled = start + (long) ((double) sentBytes / totalBytes * window);
+                    maxLag = Math.max(maxLag, now - scheduled);
+                    if(!this.hurry && now < deadline) {
+                        long pause = (scheduled - now) + (backoff - 1) * latency / 1000;
+                        pause = Math.min(pause, deadline - now - this.remainingTime(totalBytes - sentBytes, latency, chunk.size()));
+                        if(pause > 0) {
+                            this.sleep(pause);
+                        }
+                    }
+                }
+            }
+        }
+        for(int i = 0; i < lanePool.size(); i++) {
+            lanePool.getLane(i).release();
+        }
+
+        long end = System.currentTimeMillis();
+        this.lastLagMillis = Math.max(0, end - deadline);
+        this.lastMaxLagMillis = Math.max(0, maxLag);
+        this.lastAverageLatencyMicros = (sent == 0) ? 0 : latencySum / sent;
+        this.lastShedLines = shedLines;
+        logger.info("PacedEmitter sent " + sentBytes + " bytes in " + sent + " of " + chunks + " chunks within " + (end - start) + " ms, window " + window
+                + " ms, lag " + this.lastLagMillis + " ms, max lag " + this.lastMaxLagMillis + " ms, avg write latency " + this.lastAverageLatencyMicros + " us, dropped lines " + lanePool.getDroppedLines()
+                + ", shed low priority lines " + shedLines);
+    }
+
+    /**
+     * Estimated time in millis to send the remaining bytes at the current write latency.
+     */
+    private long remainingTime(long remainingBytes, long latencyMicros, int chunkSize) {
+        if(chunkSize == 0) {
+            return 0;
+        }
+        return (remainingBytes / chunkSize + 1) * latencyMicros / 1000;
+    }
+
+    private void sleep(long millis) {
+        long until = System.currentTimeMillis() + millis;
+        // wake up early when awaitCompletion asks to hurry
+        while(!this.hurry) {
+            long left = until - System.currentTimeMillis();
+            if(left <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(Math.min(left, 100));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
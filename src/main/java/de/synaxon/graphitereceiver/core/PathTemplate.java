@@ -0,0 +1,186 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.CounterDescriptor;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import de.synaxon.graphitereceiver.domain.EntityDescriptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PathTemplate is the compiled form of a node path template like
+ * <pre>
+ *     {prefix}.{cluster}.{etype}.{entity}.{group}.{instance?}.{metric}_{rollup}_{statType}
+ * </pre>
+ * The template is parsed once into literal and variable segments and rendered into a reusable buffer.
+ *
+ * Variables: prefix, cluster, etype, entity, group, instance, metric, rollup, statType, leaf (metric, rollup and
+ * stat type in the order set by place_rollup_in_the_end), host (VM host name), mapPrefix and mapSuffix (alternate
+ * prefix/suffix of the VM). A node is dropped when a variable is empty, unless the variable is optional ("?"), then
+ * the variable is left out together with the separator following it (or preceding it at the end of the template).
+ */
+public class PathTemplate {
+
+    private enum Variable {
+        PREFIX("prefix"),
+        CLUSTER("cluster"),
+        ETYPE("etype"),
+        ENTITY("entity"),
+        GROUP("group"),
+        INSTANCE("instance"),
+        METRIC("metric"),
+        ROLLUP("rollup"),
+        STAT_TYPE("statType"),
+        LEAF("leaf"),
+        HOST("host"),
+        MAP_PREFIX("mapPrefix"),
+        MAP_SUFFIX("mapSuffix");
+
+        private final String variableName;
+
+        Variable(String variableName) {
+            this.variableName = variableName;
+        }
+
+        static Variable fromName(String variableName) {
+            for(Variable variable : values()) {
+                if(variable.variableName.equals(variableName)) {
+                    return variable;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Segment {
+        private final String literal;
+        private final Variable variable;
+        private final boolean optional;
+
+        Segment(String literal, Variable variable, boolean optional) {
+            this.literal = literal;
+            this.variable = variable;
+            this.optional = optional;
+        }
+    }
+
+    private final String template;
+    private final Segment[] segments;
+    private final boolean placeRollupInTheEnd;
+
+    private PathTemplate(String template, Segment[] segments, boolean placeRollupInTheEnd) {
+        this.template = template;
+        this.segments = segments;
+        this.placeRollupInTheEnd = placeRollupInTheEnd;
+    }
+
+    /**
+     * @param placeRollupInTheEnd order of rollup and stat type in {leaf}
+     * @throws IllegalArgumentException if the template has an unknown variable or an unclosed brace
+     */
+    public static PathTemplate compile(String template, boolean placeRollupInTheEnd) {
+        List<Segment> segments = new ArrayList<Segment>();
+        int position = 0;
+        while(position < template.length()) {
+            int open = template.indexOf('{', position);
+            if(open < 0) {
+                segments.add(new Segment(template.substring(position), null, false));
+                break;
+            }
+            if(open > position) {
+                segments.add(new Segment(template.substring(position, open), null, false));
+            }
+            int close = template.indexOf('}', open);
+            if(close < 0) {
+                throw new IllegalArgumentException("Unclosed variable in path template " + template);
+            }
+            String name = template.substring(open + 1, close);
+            boolean optional = name.endsWith("?");
+            if(optional) {
+                name = name.substring(0, name.length() - 1);
+            }
+            Variable variable = Variable.fromName(name);
+            if(variable == null) {
+                throw new IllegalArgumentException("Unknown variable {" + name + "} in path template " + template);
+            }
+            segments.add(new Segment(null, variable, optional));
+            position = close + 1;
+        }
+        return new PathTemplate(template, segments.toArray(new Segment[segments.size()]), placeRollupInTheEnd);
+    }
+
+    /**
+     * Appends the path of the datapoint to the buffer.
+     *
+     * @return false if a required variable is empty, the buffer content is undefined then
+     */
+    public boolean render(DataPoint dataPoint, EntityDescriptor entity, CounterDescriptor counter, StringBuilder buffer) {
+        boolean skipSeparator = false;
+        for(int i = 0; i < this.segments.length; i++) {
+            Segment segment = this.segments[i];
+            if(segment.variable == null) {
+                if(skipSeparator) {
+                    buffer.append(segment.literal, 1, segment.literal.length());
+                    skipSeparator = false;
+                } else {
+                    buffer.append(segment.literal);
+                }
+                continue;
+            }
+            skipSeparator = false;
+            String value = this.value(segment.variable, dataPoint, entity, counter);
+            if(value != null && !value.isEmpty()) {
+                buffer.append(value);
+            } else if(!segment.optional) {
+                return false;
+            } else if(i == this.segments.length - 1) {
+                // last segment: drop the separator before it
+                if(buffer.length() > 0) {
+                    buffer.setLength(buffer.length() - 1);
+                }
+            } else {
+                skipSeparator = true;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return this.template;
+    }
+
+    private String value(Variable variable, DataPoint dataPoint, EntityDescriptor entity, CounterDescriptor counter) {
+        switch (variable) {
+            case PREFIX:
+                return dataPoint.getPrefix();
+            case CLUSTER:
+                String cluster = dataPoint.getCluster();
+                return "null".equals(cluster) ? null : cluster;
+            case ETYPE:
+                return dataPoint.getEntityType();
+            case ENTITY:
+                return dataPoint.getEntity();
+            case GROUP:
+                return dataPoint.getGroup();
+            case INSTANCE:
+                return dataPoint.getInstance();
+            case METRIC:
+                return dataPoint.getMetric();
+            case ROLLUP:
+                return dataPoint.getRollup();
+            case STAT_TYPE:
+                return dataPoint.getStatType();
+            case LEAF:
+                return counter.getLeaf(dataPoint.getStatType(), this.placeRollupInTheEnd);
+            case HOST:
+                return entity.getHostName();
+            case MAP_PREFIX:
+                return (entity.getMapPrefixSuffix() == null) ? null : entity.getMapPrefixSuffix().getPrefix();
+            case MAP_SUFFIX:
+                return (entity.getMapPrefixSuffix() == null) ? null : entity.getMapPrefixSuffix().getSufix();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.Priority;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PriorityClassifier assigns a {@link Priority} to every metric set from the priority_rules property.
+ *
+ * The rules are separated by ';', every rule is a priority followed by conditions which must all match:
+ * <pre>
+ *     high:etype=esx;high:instance=aggregate;low:etype=vm,group=virtualDisk,instance=instance
+ * </pre>
+ * Conditions are etype (vm, esx, dts, rp), group (counter group), counter (group.metric) and instance, where
+ * instance=aggregate matches metric sets without instance, instance=instance matches metric sets with an instance
+ * and any other value matches the instance name. The first matching rule wins, without match the priority is NORMAL.
+ */
+public class PriorityClassifier {
+
+    private static final String AGGREGATE = "aggregate";
+    private static final String INSTANCE = "instance";
+
+    private static class PriorityRule {
+        private Priority priority;
+        private String entityType;
+        private String group;
+        private String counter;
+        private String instance;
+
+        boolean matches(String entityType, String group, String metric, String instance) {
+            if(this.entityType != null && !this.entityType.equals(entityType)) {
+                return false;
+            }
+            if(this.group != null && !this.group.equals(group)) {
+                return false;
+            }
+            if(this.counter != null && !this.counter.equals(group + "." + metric)) {
+                return false;
+            }
+            if(this.instance != null) {
+                boolean aggregate = instance == null || instance.isEmpty() || instance.equals("global");
+                if(this.instance.equals(AGGREGATE)) {
+                    return aggregate;
+                }
+                if(this.instance.equals(INSTANCE)) {
+                    return !aggregate;
+                }
+                return this.instance.equals(instance);
+            }
+            return true;
+        }
+    }
+
+    private Log logger = LogFactory.getLog(PriorityClassifier.class);
+    private final List<PriorityRule> rules = new ArrayList<PriorityRule>();
+
+    /**
+     * @param rules value of priority_rules, may be null or empty
+     */
+    public PriorityClassifier(String rules) {
+        if(rules == null || rules.trim().isEmpty()) {
+            return;
+        }
+        for(String entry : rules.split(";")) {
+            PriorityRule rule = this.parse(entry.trim());
+            if(rule != null) {
+                this.rules.add(rule);
+            }
+        }
+        logger.info("PriorityClassifier loaded " + this.rules.size() + " priority rules.");
+    }
+
+    /**
+     * @param entityType short entity type, see {@link de.synaxon.graphitereceiver.domain.EntityType#getShortName()}
+     * @param instance instance name, null or empty for aggregates
+     */
+    public Priority classify(String entityType, String group, String metric, String instance) {
+        for(PriorityRule rule : this.rules) {
+            if(rule.matches(entityType, group, metric, instance)) {
+                return rule.priority;
+            }
+        }
+        return Priority.NORMAL;
+    }
+
+    public boolean isEmpty() {
+        return this.rules.isEmpty();
+    }
+
+    private PriorityRule parse(String entry) {
+        if(entry.isEmpty()) {
+            return null;
+        }
+        int colon = entry.indexOf(':');
+        PriorityRule rule = new PriorityRule();
+        try {
+            rule.priority = Priority.valueOf(((colon < 0) ? entry : entry.substring(0, colon)).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown priority in priority rule, ignoring it: " + entry);
+            return null;
+        }
+        if(colon < 0) {
+            return rule;
+        }
+        for(String condition : entry.substring(colon + 1).split(",")) {
+            String[] pair = condition.split("=", 2);
+            if(pair.length != 2) {
+                logger.warn("Invalid condition " + condition + " in priority rule, ignoring the rule: " + entry);
+                return null;
+            }
+            String key = pair[0].trim();
+            String value = pair[1].trim();
+            if(key.equals("etype")) {
+                rule.entityType = value;
+            } else if(key.equals("group")) {
+                rule.group = value;
+            } else if(key.equals("counter")) {
+                rule.counter = value;
+            } else if(key.equals("instance")) {
+                rule.instance = value;
+            } else {
+                logger.warn("Unknown condition " + key + " in priority rule, ignoring the rule: " + entry);
+                return null;
+            }
+        }
+        return rule;
+    }
+}
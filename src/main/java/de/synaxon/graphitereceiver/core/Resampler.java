@@ -0,0 +1,117 @@
+package de.synaxon.graphitereceiver.core;
+
+import com.vmware.ee.statsfeeder.PerfMetricSet.PerfMetric;
+import de.synaxon.graphitereceiver.domain.Rollup;
+import de.synaxon.graphitereceiver.utils.Calculate;
+
+import java.text.ParseException;
+import java.util.Iterator;
+
+/**
+ * Resampler aligns the samples of a metric set onto buckets of the StatsFeeder frequency, for metric sets whose
+ * interval does not divide the frequency. Every bucket starts at a multiple of the frequency and is aggregated with
+ * the rollup of the counter: the mean for average, the sum for summation, min, max and the newest sample for latest.
+ *
+ * The samples are read in one pass, the buckets are kept in primitive arrays which are reused by the calling thread.
+ */
+public class Resampler {
+
+    /**
+     * Buckets of one metric set in time order, valid until the next call on the same thread.
+     */
+    public static class Buckets {
+        private long[] starts = new long[8];
+        private double[] values = new double[8];
+        private int count;
+
+        public int size() {
+            return this.count;
+        }
+
+        /**
+         * @return epoch seconds of the start of the bucket
+         */
+        public long getStart(int index) {
+            return this.starts[index];
+        }
+
+        public double getValue(int index) {
+            return this.values[index];
+        }
+
+        private void add(long start, double value) {
+            if(this.count == this.starts.length) {
+                long[] starts = new long[this.count * 2];
+                double[] values = new double[this.count * 2];
+                System.arraycopy(this.starts, 0, starts, 0, this.count);
+                System.arraycopy(this.values, 0, values, 0, this.count);
+                this.starts = starts;
+                this.values = values;
+            }
+            this.starts[this.count] = start;
+            this.values[this.count++] = value;
+        }
+    }
+
+    private final long frequencyInSeconds;
+    private final ThreadLocal<Buckets> buckets = new ThreadLocal<Buckets>() {
+        @Override
+        protected Buckets initialValue() {
+            return new Buckets();
+        }
+    };
+
+    public Resampler(long frequencyInSeconds) {
+        this.frequencyInSeconds = Math.max(1, frequencyInSeconds);
+    }
+
+    /**
+     * @param rollup rollup of the counter, not UNSUPPORTED
+     * @param metrics samples in time order
+     */
+    public Buckets resample(Rollup rollup, Iterator<PerfMetric> metrics) throws ParseException {
+        Buckets result = this.buckets.get();
+        result.count = 0;
+        long bucket = Long.MIN_VALUE;
+        double aggregate = 0;
+        int samples = 0;
+        while(metrics.hasNext()) {
+            PerfMetric metric = metrics.next();
+            long epoch = Calculate.parseEpoch(metric.getTimestamp());
+            double value = Double.parseDouble(metric.getValue());
+            long start = epoch - (epoch % this.frequencyInSeconds);
+            if(start != bucket) {
+                if(samples > 0) {
+                    result.add(bucket, finish(rollup, aggregate, samples));
+                }
+                bucket = start;
+                aggregate = value;
+                samples = 1;
+                continue;
+            }
+            switch (rollup) {
+                case SUMMATION:
+                case AVERAGE:
+                    aggregate += value;
+                    break;
+                case MAXIMUM:
+                    aggregate = Math.max(aggregate, value);
+                    break;
+                case MINIMUM:
+                    aggregate = Math.min(aggregate, value);
+                    break;
+                default:
+                    aggregate = value;
+            }
+            samples++;
+        }
+        if(samples > 0) {
+            result.add(bucket, finish(rollup, aggregate, samples));
+        }
+        return result;
+    }
+
+    private static double finish(Rollup rollup, double aggregate, int samples) {
+        return (rollup == Rollup.AVERAGE) ? aggregate / samples : aggregate;
+    }
+}
@@ -0,0 +1,186 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.core.sink.MetricSink;
+import de.synaxon.graphitereceiver.domain.EntityDescriptor;
+import de.synaxon.graphitereceiver.domain.Route;
+import de.synaxon.graphitereceiver.utils.Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Router sends the series of the receiver to destination groups, e.g. one Graphite backend per tenant, from the
+ * routing_rules property. The rules are separated by ';', every rule is a destination group followed by conditions
+ * which must all match:
+ * <pre>
+ *     tenantA:cluster=TenantA_*;tenantB:cluster=TenantB_*;infra:etype=esx,group=net;infra:etype=dts;default
+ * </pre>
+ * Conditions are cluster (cluster name after the cluster rules), etype (vm, esx, dts, rp), hostmap (alternate prefix
+ * of the VM in the host map) and group (counter group), all but etype accept globs. A rule without conditions matches
+ * every series. The first matching rule wins, series without matching rule are dropped.
+ *
+ * A destination group writes to the sinks listed in {@code <group>_sinks}, by default the sink named like the group,
+ * and replaces the prefix of the paths with {@code <group>_prefix}, by default "prefix". The rules are evaluated once
+ * per entity when its descriptor is built, conditions on the counter group once per entity and counter group.
+ */
+public class Router {
+
+    private static class RoutingRule {
+        private int destination;
+        private Pattern cluster;
+        private String entityType;
+        private Pattern hostMap;
+        private Pattern group;
+
+        boolean matches(EntityDescriptor entity) {
+            if(this.cluster != null && (entity.getCluster() == null || !this.cluster.matcher(entity.getCluster()).matches())) {
+                return false;
+            }
+            if(this.entityType != null && !this.entityType.equals(entity.getEntityType().getShortName())) {
+                return false;
+            }
+            if(this.hostMap != null) {
+                if(!entity.isHostMapped() || entity.getMapPrefixSuffix() == null || entity.getMapPrefixSuffix().getPrefix() == null) {
+                    return false;
+                }
+                return this.hostMap.matcher(entity.getMapPrefixSuffix().getPrefix()).matches();
+            }
+            return true;
+        }
+    }
+
+    private Log logger = LogFactory.getLog(Router.class);
+    private final List<RoutingRule> rules = new ArrayList<RoutingRule>();
+    private final List<Route> routes = new ArrayList<Route>();
+    private final List<List<MetricSink>> destinations = new ArrayList<List<MetricSink>>();
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+
+    /**
+     * @param rules value of routing_rules, may be null or empty
+     * @param props receiver properties with the settings of the destination groups
+     * @param sinks all sinks of the receiver
+     */
+    public Router(String rules, Properties props, List<MetricSink> sinks) {
+        if(rules == null || rules.trim().isEmpty()) {
+            return;
+        }
+        for(String entry : rules.split(";")) {
+            RoutingRule rule = this.parse(entry.trim(), props, sinks);
+            if(rule != null) {
+                this.rules.add(rule);
+            }
+        }
+        logger.info("Router loaded " + this.rules.size() + " routing rules to " + this.destinations.size() + " destination groups.");
+    }
+
+    public boolean isEmpty() {
+        return this.rules.isEmpty();
+    }
+
+    /**
+     * @return the route of the series of the entity, {@link Route#UNROUTED} if no rule matches
+     */
+    public Route route(EntityDescriptor entity) {
+        List<Pattern> groups = null;
+        List<Route> groupRoutes = null;
+        Route route = Route.UNROUTED;
+        for(RoutingRule rule : this.rules) {
+            if(!rule.matches(entity)) {
+                continue;
+            }
+            if(rule.group == null) {
+                route = this.routes.get(rule.destination);
+                break;
+            }
+            if(groups == null) {
+                groups = new ArrayList<Pattern>();
+                groupRoutes = new ArrayList<Route>();
+            }
+            groups.add(rule.group);
+            groupRoutes.add(this.routes.get(rule.destination));
+        }
+        return (groups == null) ? route : new Route(route, groups, groupRoutes);
+    }
+
+    /**
+     * @param destination index of the destination group, see {@link Route#getDestination()}
+     */
+    public List<MetricSink> getSinks(int destination) {
+        return this.destinations.get(destination);
+    }
+
+    private RoutingRule parse(String entry, Properties props, List<MetricSink> sinks) {
+        if(entry.isEmpty()) {
+            return null;
+        }
+        int colon = entry.indexOf(':');
+        String name = ((colon < 0) ? entry : entry.substring(0, colon)).trim();
+        RoutingRule rule = new RoutingRule();
+        if(colon >= 0) {
+            for(String condition : entry.substring(colon + 1).split(",")) {
+                String[] pair = condition.split("=", 2);
+                if(pair.length != 2) {
+                    logger.warn("Invalid condition " + condition + " in routing rule, ignoring the rule: " + entry);
+                    return null;
+                }
+                String key = pair[0].trim();
+                String value = pair[1].trim();
+                try {
+                    if(key.equals("cluster")) {
+                        rule.cluster = Utils.globToPattern(value);
+                    } else if(key.equals("etype")) {
+                        rule.entityType = value;
+                    } else if(key.equals("hostmap")) {
+                        rule.hostMap = Utils.globToPattern(value);
+                    } else if(key.equals("group")) {
+                        rule.group = Utils.globToPattern(value);
+                    } else {
+                        logger.warn("Unknown condition " + key + " in routing rule, ignoring the rule: " + entry);
+                        return null;
+                    }
+                } catch (IllegalArgumentException e) {
+                    logger.warn(e.getMessage() + " in routing rule, ignoring the rule: " + entry);
+                    return null;
+                }
+            }
+        }
+        rule.destination = this.destination(name, props, sinks);
+        return rule;
+    }
+
+    /**
+     * @return index of the destination group, created at its first use
+     */
+    private int destination(String name, Properties props, List<MetricSink> sinks) {
+        Integer index = this.names.get(name);
+        if(index != null) {
+            return index;
+        }
+        List<MetricSink> selected = new ArrayList<MetricSink>();
+        for(String sinkName : props.getProperty(name + "_sinks", name).split(",")) {
+            boolean found = false;
+            for(MetricSink sink : sinks) {
+                if(sink.getName().equals(sinkName.trim())) {
+                    selected.add(sink);
+                    found = true;
+                }
+            }
+            if(!found) {
+                logger.error("Destination group " + name + " refers to the unknown sink " + sinkName.trim() + ".");
+            }
+        }
+        String prefix = props.getProperty(name + "_prefix", props.getProperty("prefix"));
+        index = this.destinations.size();
+        this.destinations.add(selected);
+        this.routes.add(new Route(index, name, prefix));
+        this.names.put(name, index);
+        logger.info("Destination group " + name + " prefix: " + prefix + " sinks: " + selected.size());
+        return index;
+    }
+}
@@ -0,0 +1,89 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.utils.SegmentedLongMap;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * SeriesHighWaterMark remembers the timestamp of the last sample written for every series, so samples which were
+ * already sent by an overlapping or retried retrieval are not written again.
+ *
+ * Series are keyed by a 64 bit hash of the node path and kept in a {@link SegmentedLongMap}.
+ * A series not written for staleRetrievals retrievals is evicted, the eviction runs every staleRetrievals retrievals.
+ */
+public class SeriesHighWaterMark {
+
+    private final SegmentedLongMap marks = new SegmentedLongMap(1024);
+    private final int staleRetrievals;
+    private final StripedCounter suppressed = new StripedCounter();
+    private volatile int retrieval;
+
+    /**
+     * @param staleRetrievals number of retrievals without samples after which a series is forgotten
+     */
+    public SeriesHighWaterMark(int staleRetrievals) {
+        this.staleRetrievals = Math.max(1, staleRetrievals);
+    }
+
+    /**
+     * @return the epoch of the last sample written for the series, Long.MIN_VALUE if none
+     */
+    public long get(long seriesHash) {
+        return this.marks.get(seriesHash, Long.MIN_VALUE);
+    }
+
+    /**
+     * Moves the high water mark of the series forward, it never goes back.
+     */
+    public void advance(long seriesHash, long epoch) {
+        this.marks.putIfGreater(seriesHash, epoch, this.retrieval);
+    }
+
+    /**
+     * Counts samples which were not written because they were not newer than the high water mark.
+     */
+    public void suppressed(int count) {
+        this.suppressed.add(count);
+    }
+
+    /**
+     * Starts a new retrieval and evicts stale series when the eviction is due.
+     *
+     * @return number of evicted series
+     */
+    public int startRetrieval() {
+        this.retrieval++;
+        if(this.retrieval % this.staleRetrievals != 0) {
+            return 0;
+        }
+        return this.marks.evictOlderThan(this.retrieval - this.staleRetrievals);
+    }
+
+    /**
+     * @return samples suppressed since the last call
+     */
+    public long takeSuppressed() {
+        return this.suppressed.sumThenReset();
+    }
+
+    /**
+     * Writes all high water marks as count followed by (hash, epoch) pairs.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        this.marks.writeTo(out);
+    }
+
+    /**
+     * Reads high water marks written by {@link #writeTo(DataOutput)}, they count as written in the current retrieval.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        this.marks.readFrom(in, this.retrieval);
+    }
+
+    public int size() {
+        return this.marks.size();
+    }
+}
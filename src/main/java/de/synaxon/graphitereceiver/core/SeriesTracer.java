@@ -0,0 +1,212 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.utils.LongLongHashMap;
+import de.synaxon.graphitereceiver.utils.Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * SeriesTracer records what the pipeline stages do with a few selected series, instead of debug logging every series.
+ *
+ * A series is selected when its path matches the glob or, with sampling, when the hash of its path is 0 modulo N,
+ * so the same 1 in N series are followed across stages and retrievals. Every stage of a selected series records its
+ * input, output and time into a ring buffer of the last capacity events.
+ *
+ * The selection is changed at runtime with the control file, a properties file with the keys match, sample and dump.
+ * It is read by {@link #poll()} when it was modified; dump names the file the ring buffer is written to.
+ */
+public class SeriesTracer {
+
+    private static class Event {
+        private final long time;
+        private final String thread;
+        private final String path;
+        private final String stage;
+        private final String input;
+        private final String output;
+        private final long nanos;
+
+        Event(String path, String stage, String input, String output, long nanos) {
+            this.time = System.currentTimeMillis();
+            this.thread = Thread.currentThread().getName();
+            this.path = path;
+            this.stage = stage;
+            this.input = input;
+            this.output = output;
+            this.nanos = nanos;
+        }
+    }
+
+    private static class Selection {
+        private final Pattern match;
+        private final int sample;
+
+        Selection(Pattern match, int sample) {
+            this.match = match;
+            this.sample = sample;
+        }
+    }
+
+    private Log logger = LogFactory.getLog(SeriesTracer.class);
+    private final Event[] events;
+    private final File controlFile;
+    private volatile Selection selection;
+    private int next;
+    private long recorded;
+    private long controlModified;
+
+    /**
+     * @param match glob of the traced paths, may be null
+     * @param sample trace 1 in sample series, 0 to disable
+     * @param capacity number of events kept
+     * @param controlFile path of the control file, may be null
+     */
+    public SeriesTracer(String match, int sample, int capacity, String controlFile) {
+        this.events = new Event[Math.max(1, capacity)];
+        this.controlFile = (controlFile == null || controlFile.isEmpty()) ? null : new File(controlFile);
+        this.select(match, sample);
+    }
+
+    /**
+     * Replaces the selection, following events are recorded for the new selection only.
+     */
+    public void select(String match, int sample) {
+        Pattern pattern = null;
+        if(match != null && !match.isEmpty()) {
+            try {
+                pattern = Utils.globToPattern(match);
+            } catch (IllegalArgumentException e) {
+                logger.warn(e.getMessage() + ", tracing by match disabled.");
+                match = null;
+            }
+        }
+        this.selection = new Selection(pattern, Math.max(0, sample));
+        logger.info("Tracing series matching: " + ((match == null) ? "" : match) + " sample: 1/" + sample);
+    }
+
+    /**
+     * @return true if the stages of the series are recorded
+     */
+    public boolean isTraced(String path) {
+        Selection current = this.selection;
+        if(current.match == null && current.sample == 0) {
+            return false;
+        }
+        if(current.match != null && current.match.matcher(path).matches()) {
+            return true;
+        }
+        return current.sample > 0 && (LongLongHashMap.hash(path) & Long.MAX_VALUE) % current.sample == 0;
+    }
+
+    /**
+     * @param nanos time spent in the stage
+     */
+    public synchronized void record(String path, String stage, String input, String output, long nanos) {
+        this.events[this.next] = new Event(path, stage, input, output, nanos);
+        this.next = (this.next + 1) % this.events.length;
+        this.recorded++;
+    }
+
+    /**
+     * Writes the recorded events, oldest first, as tab separated lines: time, thread, path, stage, input, output and
+     * microseconds.
+     */
+    public void dump(Writer out) throws IOException {
+        Event[] copy;
+        int start;
+        synchronized (this) {
+            copy = this.events.clone();
+            start = this.next;
+        }
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for(int i = 0; i < copy.length; i++) {
+            Event event = copy[(start + i) % copy.length];
+            if(event == null) {
+                continue;
+            }
+            out.write(format.format(new Date(event.time)) + "\t" + event.thread + "\t" + event.path + "\t" + event.stage
+                    + "\t" + event.input + "\t" + event.output + "\t" + (event.nanos / 1000) + "\n");
+        }
+        out.flush();
+    }
+
+    public void dump(String path) {
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(path));
+            this.dump(out);
+            logger.info("Trace of " + this.getRecorded() + " events dumped to " + path);
+        } catch (IOException e) {
+            logger.error("Can't dump trace to " + path, e);
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.debug("Can't close trace dump " + path);
+                }
+            }
+        }
+    }
+
+    public synchronized long getRecorded() {
+        return this.recorded;
+    }
+
+    /**
+     * Applies the control file if it was modified since the last call.
+     */
+    public void poll() {
+        if(this.controlFile == null || !this.controlFile.exists()) {
+            return;
+        }
+        long modified = this.controlFile.lastModified();
+        if(modified == this.controlModified) {
+            return;
+        }
+        this.controlModified = modified;
+        Properties control = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(this.controlFile);
+            control.load(in);
+        } catch (IOException e) {
+            logger.error("Can't read trace control file " + this.controlFile.getPath(), e);
+            return;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.debug("Can't close trace control file " + this.controlFile.getPath());
+                }
+            }
+        }
+        int sample = 0;
+        try {
+            sample = Integer.parseInt(control.getProperty("sample", "0").trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Trace control sample is not a number, sampling disabled.");
+        }
+        this.select(control.getProperty("match", "").trim(), sample);
+        String dump = control.getProperty("dump", "").trim();
+        if(!dump.isEmpty()) {
+            this.dump(dump);
+        }
+    }
+}
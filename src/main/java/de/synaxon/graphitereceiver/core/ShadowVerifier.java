@@ -0,0 +1,424 @@
+package de.synaxon.graphitereceiver.core;
+
+import com.vmware.ee.statsfeeder.MOREFRetriever;
+import com.vmware.ee.statsfeeder.PerfMetricSet;
+import com.vmware.ee.statsfeeder.PerfMetricSet.PerfMetric;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import de.synaxon.graphitereceiver.domain.EntityType;
+import de.synaxon.graphitereceiver.domain.MapPrefixSuffix;
+import de.synaxon.graphitereceiver.domain.Rule;
+import de.synaxon.graphitereceiver.utils.Calculate;
+import de.synaxon.graphitereceiver.utils.RuleUtils;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+import de.synaxon.graphitereceiver.utils.Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * ShadowVerifier runs the legacy code path of the receiver (Utils.getEName, RuleUtils, Utils.getNode and Calculate
+ * on a graphiteTree map, as receiveStats did before the descriptor caches and path templates) for 1 in sample metric
+ * sets and compares its lines with the lines of the receiver. Only the receiver writes to the sinks.
+ *
+ * A metric set is selected by the hash of its entity, counter and instance, so the same series are verified in
+ * every retrieval. The receiver hands every datapoint it emits for a selected metric set to {@link #observe}, and
+ * calls {@link #skip} when it deliberately sends something else than the legacy path would (routing, load shedding, new
+ * series guard, resampling, duplicate suppression). Series of derived rollups are not compared.
+ *
+ * Differences in node path, value and timestamp are appended with the samples of the metric set to the log file,
+ * which is rotated to log file.1 when it reaches maxLogSize.
+ */
+public class ShadowVerifier {
+
+    private static class Line {
+        private final String path;
+        private final double value;
+        private final long epoch;
+
+        Line(String path, double value, long epoch) {
+            this.path = path;
+            this.value = value;
+            this.epoch = epoch;
+        }
+
+        @Override
+        public String toString() {
+            return this.path + " " + this.value + " " + this.epoch;
+        }
+    }
+
+    private static class Capture {
+        private final List<Line> lines = new ArrayList<Line>();
+        private String rollup;
+        private String prefix;
+        private String cluster;
+        private String skipped;
+    }
+
+    private Log logger = LogFactory.getLog(ShadowVerifier.class);
+    private final int sample;
+    private final double tolerance;
+    private final File logFile;
+    private final long maxLogSize;
+    private final Map<String, String> clusterMap;
+    private final Map<String, List<Rule>> rules;
+    private final String prefix;
+    private final boolean useEntityTypePrefix;
+    private final boolean useFqdn;
+    private final boolean placeRollupInTheEnd;
+    private final boolean isHostMap;
+    private final boolean globalInstance;
+    private final boolean disableInstanceMetrics;
+    private final boolean onlyOneSample;
+    private final int frequencyInSeconds;
+    private final ThreadLocal<Capture> captures = new ThreadLocal<Capture>();
+    private final StripedCounter verified = new StripedCounter();
+    private final StripedCounter mismatched = new StripedCounter();
+    private final StripedCounter skippedCount = new StripedCounter();
+    private Writer log;
+    private long logSize;
+
+    /**
+     * @param sample verify 1 in sample metric sets
+     * @param tolerance accepted relative difference of the values, 0 for exact
+     * @param logPath file the mismatches are appended to
+     * @param maxLogSize bytes after which the log file is rotated
+     * @param rules names transformation rules, may be null
+     * @param frequencyInSeconds frequency of the retrievals
+     */
+    public ShadowVerifier(int sample, double tolerance, String logPath, long maxLogSize, Map<String, String> clusterMap,
+                          Map<String, List<Rule>> rules, String prefix, boolean useEntityTypePrefix, boolean useFqdn,
+                          boolean placeRollupInTheEnd, boolean isHostMap, boolean globalInstance,
+                          boolean disableInstanceMetrics, boolean onlyOneSample, int frequencyInSeconds) {
+        this.sample = Math.max(1, sample);
+        this.tolerance = Math.max(0, tolerance);
+        this.logFile = new File(logPath);
+        this.maxLogSize = maxLogSize;
+        this.clusterMap = clusterMap;
+        this.rules = rules;
+        this.prefix = prefix;
+        this.useEntityTypePrefix = useEntityTypePrefix;
+        this.useFqdn = useFqdn;
+        this.placeRollupInTheEnd = placeRollupInTheEnd;
+        this.isHostMap = isHostMap;
+        this.globalInstance = globalInstance;
+        this.disableInstanceMetrics = disableInstanceMetrics;
+        this.onlyOneSample = onlyOneSample;
+        this.frequencyInSeconds = frequencyInSeconds;
+        logger.info("Shadow verification of 1 in " + this.sample + " metric sets, mismatches logged to " + this.logFile.getPath());
+    }
+
+    /**
+     * Starts capturing the datapoints of the current thread if the metric set is selected.
+     *
+     * @return true if the metric set is verified, {@link #end} must be called then
+     */
+    public boolean begin(PerfMetricSet metricSet) {
+        if(metricSet == null || !this.isSelected(metricSet)) {
+            return false;
+        }
+        this.captures.set(new Capture());
+        return true;
+    }
+
+    /**
+     * Records a datapoint the receiver emits for the metric set being verified by this thread.
+     */
+    public void observe(DataPoint dataPoint) {
+        Capture capture = this.captures.get();
+        if(capture == null || dataPoint.getPath() == null) {
+            return;
+        }
+        if(capture.rollup == null) {
+            capture.rollup = dataPoint.getRollup();
+            capture.prefix = dataPoint.getPrefix();
+            capture.cluster = dataPoint.getCluster();
+        }
+        // derived rollups are sibling series the legacy path does not have
+        if(capture.rollup.equals(dataPoint.getRollup())) {
+            capture.lines.add(new Line(dataPoint.getPath(), dataPoint.getValue(), dataPoint.getEpoch()));
+        }
+    }
+
+    /**
+     * The receiver deliberately handles the metric set being verified by this thread differently, it is not compared.
+     */
+    public void skip(String reason) {
+        Capture capture = this.captures.get();
+        if(capture != null && capture.skipped == null) {
+            capture.skipped = reason;
+        }
+    }
+
+    /**
+     * Runs the legacy path for the metric set and compares it with the captured datapoints.
+     *
+     * @param hostMap current alternate prefix/suffix map, may be null
+     */
+    public void end(String entityName, PerfMetricSet metricSet, MOREFRetriever morefRetriever, Map<String, MapPrefixSuffix> hostMap) {
+        Capture capture = this.captures.get();
+        this.captures.remove();
+        if(capture == null) {
+            return;
+        }
+        if(capture.skipped != null) {
+            this.skippedCount.increment();
+            return;
+        }
+        List<Line> legacy = new ArrayList<Line>();
+        String legacyError = null;
+        try {
+            this.legacy(entityName, metricSet, (capture.prefix == null) ? this.prefix : capture.prefix, morefRetriever, hostMap, legacy);
+        } catch (Exception e) {
+            // the legacy receiver logged and dropped the metric set
+            legacy.clear();
+            legacyError = e.toString();
+        }
+        this.verified.increment();
+        List<String> differences = this.compare(legacy, capture.lines);
+        if(!differences.isEmpty()) {
+            this.mismatched.increment();
+            this.log(entityName, metricSet, capture, legacy, legacyError, differences);
+        }
+    }
+
+    public long takeVerified() {
+        return this.verified.sumThenReset();
+    }
+
+    public long takeMismatched() {
+        return this.mismatched.sumThenReset();
+    }
+
+    public long takeSkipped() {
+        return this.skippedCount.sumThenReset();
+    }
+
+    private boolean isSelected(PerfMetricSet metricSet) {
+        int hash = String.valueOf(metricSet.getEntityName()).hashCode();
+        hash = hash * 31 + String.valueOf(metricSet.getCounterName()).hashCode();
+        hash = hash * 31 + ((metricSet.getInstanceId() == null) ? 0 : metricSet.getInstanceId().hashCode());
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & Integer.MAX_VALUE) % this.sample == 0;
+    }
+
+    /**
+     * The receiveStats and sendMetric of the legacy receiver, writing lines instead of printing them. Datastores and
+     * resource pools are looked up in the cluster map like VMs and ESX hosts. The prefix is the one of the destination
+     * group when the series is routed.
+     */
+    private void legacy(String entityName, PerfMetricSet metricSet, String prefix, MOREFRetriever morefRetriever, Map<String, MapPrefixSuffix> hostMap, List<Line> lines) throws Exception {
+        String entityNameParsed = "";
+        String cluster = null;
+        EntityType entityType = EntityType.fromEntityName(metricSet.getEntityName());
+        if(entityType.isClustered()) {
+            entityNameParsed = morefRetriever.parseEntityName(metricSet.getEntityName());
+            if(entityNameParsed.equals("")) {
+                return;
+            }
+            cluster = this.clusterMap.get(entityType.getClusterKey(entityNameParsed.replace(" ", "_")));
+            if(cluster == null || cluster.equals("")) {
+                return;
+            }
+        }
+
+        String instanceName = (this.rules("instanceName") != null) ? RuleUtils.applyRules(metricSet.getInstanceId(), this.rules("instanceName")) : metricSet.getInstanceId();
+        if(this.globalInstance && (instanceName == null || instanceName.isEmpty())) {
+            instanceName = "global";
+        }
+        String hostName = null;
+        if(entityName.contains("[VirtualMachine]")) {
+            hostName = (this.rules("hostName") != null) ? RuleUtils.applyRules(entityNameParsed, this.rules("hostName")) : entityNameParsed;
+        }
+        String eName = Utils.getEName(this.useEntityTypePrefix, this.useFqdn, entityName, entityNameParsed, this.rules("eName"));
+        if(cluster != null) {
+            cluster = (this.rules("cluster") != null) ? RuleUtils.applyRules(cluster, this.rules("cluster")) : cluster;
+        }
+
+        String[] counterInfo = Utils.splitCounterName(metricSet.getCounterName());
+        String rollup = counterInfo[2];
+        Map<String, String> graphiteTree = new HashMap<String, String>();
+        graphiteTree.put("graphite_prefix", prefix);
+        graphiteTree.put("cluster", cluster);
+        graphiteTree.put("eName", eName);
+        graphiteTree.put("groupName", counterInfo[0]);
+        graphiteTree.put("instanceName", instanceName);
+        graphiteTree.put("metricName", counterInfo[1]);
+        graphiteTree.put("statType", metricSet.getStatType());
+        graphiteTree.put("rollup", rollup);
+        graphiteTree.put("counterName", metricSet.getCounterName());
+        graphiteTree.put("hostName", hostName);
+        String node = Utils.getNode(graphiteTree, this.placeRollupInTheEnd, this.isHostMap, hostMap);
+        if(node == null || (this.disableInstanceMetrics && instanceName != null && !instanceName.isEmpty())) {
+            return;
+        }
+
+        if(!this.onlyOneSample) {
+            Iterator<PerfMetric> metrics = metricSet.getMetrics();
+            while (metrics.hasNext()) {
+                PerfMetric sample = metrics.next();
+                lines.add(new Line(node, Double.parseDouble(sample.getValue()), Calculate.parseEpoch(sample.getTimestamp())));
+            }
+            return;
+        }
+        if(this.frequencyInSeconds % metricSet.getInterval() != 0) {
+            return;
+        }
+        String value;
+        if(rollup.equals("average")) {
+            value = Calculate.average(metricSet.getMetrics());
+        } else if(rollup.equals("latest")) {
+            value = Calculate.latest(metricSet.getMetrics());
+        } else if(rollup.equals("maximum")) {
+            value = Calculate.maximun(metricSet.getMetrics());
+        } else if(rollup.equals("minimum")) {
+            value = Calculate.minimun(metricSet.getMetrics());
+        } else if(rollup.equals("summation")) {
+            value = Calculate.sumation(metricSet.getMetrics());
+        } else {
+            throw new IllegalArgumentException("Not supported Rollup agration: " + rollup);
+        }
+        String[] split = value.split(" ");
+        double parsed = Double.parseDouble(split[0]);
+        if(node.contains("_percent_")) {
+            parsed = parsed / 100;
+        }
+        lines.add(new Line(node, parsed, Long.parseLong(split[1])));
+    }
+
+    private List<Rule> rules(String target) {
+        return (this.rules == null) ? null : this.rules.get(target);
+    }
+
+    /**
+     * @return the differences, empty if the receiver wrote exactly the legacy lines
+     */
+    private List<String> compare(List<Line> legacy, List<Line> primary) {
+        Map<String, List<Line>> legacyPaths = byPath(legacy);
+        Map<String, List<Line>> primaryPaths = byPath(primary);
+        List<String> differences = new ArrayList<String>();
+        for(Map.Entry<String, List<Line>> entry : legacyPaths.entrySet()) {
+            List<Line> other = primaryPaths.get(entry.getKey());
+            if(other == null) {
+                differences.add("path missing: " + entry.getKey());
+                continue;
+            }
+            if(other.size() != entry.getValue().size()) {
+                differences.add("samples: " + entry.getKey() + " legacy " + entry.getValue().size() + " receiver " + other.size());
+                continue;
+            }
+            for(int i = 0; i < other.size(); i++) {
+                Line expected = entry.getValue().get(i);
+                Line actual = other.get(i);
+                if(!this.sameValue(expected.value, actual.value)) {
+                    differences.add("value: " + entry.getKey() + " legacy " + expected.value + " receiver " + actual.value);
+                }
+                if(expected.epoch != actual.epoch) {
+                    differences.add("timestamp: " + entry.getKey() + " legacy " + expected.epoch + " receiver " + actual.epoch);
+                }
+            }
+        }
+        for(String path : primaryPaths.keySet()) {
+            if(!legacyPaths.containsKey(path)) {
+                differences.add("path added: " + path);
+            }
+        }
+        return differences;
+    }
+
+    private boolean sameValue(double expected, double actual) {
+        if(Double.compare(expected, actual) == 0) {
+            return true;
+        }
+        return Math.abs(expected - actual) <= this.tolerance * Math.max(Math.abs(expected), Math.abs(actual));
+    }
+
+    private static Map<String, List<Line>> byPath(List<Line> lines) {
+        Map<String, List<Line>> result = new LinkedHashMap<String, List<Line>>();
+        for(Line line : lines) {
+            List<Line> same = result.get(line.path);
+            if(same == null) {
+                same = new ArrayList<Line>();
+                result.put(line.path, same);
+            }
+            same.add(line);
+        }
+        return result;
+    }
+
+    private void log(String entityName, PerfMetricSet metricSet, Capture capture, List<Line> legacy, String legacyError, List<String> differences) {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder record = new StringBuilder(512);
+        record.append(format.format(new Date())).append(" mismatch entity=").append(entityName)
+                .append(" metricEntity=").append(metricSet.getEntityName())
+                .append(" counter=").append(metricSet.getCounterName())
+                .append(" instance=").append(metricSet.getInstanceId())
+                .append(" interval=").append(metricSet.getInterval())
+                .append(" statType=").append(metricSet.getStatType())
+                .append(" cluster=").append(capture.cluster).append('\n');
+        for(String difference : differences) {
+            record.append("  ").append(difference).append('\n');
+        }
+        record.append("  samples:");
+        Iterator<PerfMetric> metrics = metricSet.getMetrics();
+        while (metrics.hasNext()) {
+            PerfMetric sample = metrics.next();
+            record.append(' ').append(sample.getValue()).append('@').append(sample.getTimestamp());
+        }
+        record.append('\n');
+        if(legacyError != null) {
+            record.append("  legacy error: ").append(legacyError).append('\n');
+        }
+        for(Line line : legacy) {
+            record.append("  legacy:   ").append(line).append('\n');
+        }
+        for(Line line : capture.lines) {
+            record.append("  receiver: ").append(line).append('\n');
+        }
+        this.append(record.toString());
+    }
+
+    private synchronized void append(String record) {
+        try {
+            if(this.log != null && this.logSize + record.length() > this.maxLogSize) {
+                this.log.close();
+                this.log = null;
+                File rotated = new File(this.logFile.getPath() + ".1");
+                if(rotated.exists() && !rotated.delete()) {
+                    logger.warn("Can't delete " + rotated.getPath());
+                }
+                if(!this.logFile.renameTo(rotated)) {
+                    logger.warn("Can't rotate " + this.logFile.getPath());
+                }
+            }
+            if(this.log == null) {
+                this.log = new BufferedWriter(new FileWriter(this.logFile, true));
+                this.logSize = this.logFile.length();
+            }
+            this.log.write(record);
+            this.log.flush();
+            this.logSize += record.length();
+        } catch (IOException e) {
+            logger.error("Can't write shadow verification log " + this.logFile.getPath(), e);
+            this.log = null;
+        }
+    }
+}
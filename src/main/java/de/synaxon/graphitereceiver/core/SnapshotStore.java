@@ -0,0 +1,196 @@
+package de.synaxon.graphitereceiver.core;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SnapshotStore persists the cluster map and the derived per series state to a compact binary file, so a restarted
+ * receiver can resolve metrics immediately instead of waiting for the full vCenter traversal.
+ *
+ * Layout: magic, version, creation time, the distinct cluster names, the entity to cluster index pairs and the
+ * series high water marks (see {@link SeriesHighWaterMark#writeTo}) and, since version 2, the known series of the
+ * {@link NewSeriesGuard}. The file is written to a temporary file first
+ * and renamed, so a crash never leaves a half written snapshot.
+ */
+public class SnapshotStore {
+
+    private static final int MAGIC = 0x47525331;
+    private static final int VERSION = 2;
+
+    private Log logger = LogFactory.getLog(SnapshotStore.class);
+    private final File file;
+
+    public SnapshotStore(String path) {
+        this.file = new File(path);
+    }
+
+    /**
+     * Saves the snapshot.
+     *
+     * @param highWaterMark series state, may be null
+     * @param newSeriesGuard known series, may be null
+     */
+    public synchronized void save(Map<String, String> clusterMap, SeriesHighWaterMark highWaterMark, NewSeriesGuard newSeriesGuard) {
+        long start = System.currentTimeMillis();
+        File tmp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(start);
+
+            Map<String, Integer> clusterIndex = new HashMap<String, Integer>();
+            List<String> clusters = new ArrayList<String>();
+            Map<String, String> entities = new HashMap<String, String>(clusterMap);
+            for(String cluster : entities.values()) {
+                if(!clusterIndex.containsKey(cluster)) {
+                    clusterIndex.put(cluster, clusters.size());
+                    clusters.add(cluster);
+                }
+            }
+            out.writeInt(clusters.size());
+            for(String cluster : clusters) {
+                out.writeUTF(cluster);
+            }
+            out.writeInt(entities.size());
+            for(Map.Entry<String, String> entry : entities.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeVarInt(out, clusterIndex.get(entry.getValue()));
+            }
+
+            out.writeBoolean(highWaterMark != null);
+            if(highWaterMark != null) {
+                highWaterMark.writeTo(out);
+            }
+            out.writeBoolean(newSeriesGuard != null);
+            if(newSeriesGuard != null) {
+                newSeriesGuard.writeTo(out);
+            }
+            out.close();
+            out = null;
+
+            if(this.file.exists() && !this.file.delete()) {
+                logger.error("Can't replace snapshot " + this.file.getPath());
+                return;
+            }
+            if(!tmp.renameTo(this.file)) {
+                logger.error("Can't rename snapshot " + tmp.getPath());
+                return;
+            }
+            logger.info("Snapshot saved: " + entities.size() + " entities in " + (System.currentTimeMillis() - start) + " ms to " + this.file.getPath());
+        } catch (IOException e) {
+            logger.error("Can't save snapshot " + this.file.getPath(), e);
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.debug("Can't close snapshot " + tmp.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the snapshot into the given cluster map and series state.
+     *
+     * @param highWaterMark series state, may be null
+     * @param newSeriesGuard known series, may be null
+     * @param maxAgeMillis snapshots older than this are ignored
+     * @return true if a snapshot was loaded
+     */
+    public synchronized boolean load(Map<String, String> clusterMap, SeriesHighWaterMark highWaterMark, NewSeriesGuard newSeriesGuard, long maxAgeMillis) {
+        if(!this.file.exists()) {
+            logger.info("No snapshot found at " + this.file.getPath());
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            int version = 0;
+            if(in.readInt() != MAGIC || ((version = in.readInt()) != 1 && version != VERSION)) {
+                logger.warn("Snapshot " + this.file.getPath() + " has an unknown format, ignoring it.");
+                return false;
+            }
+            long created = in.readLong();
+            if(start - created > maxAgeMillis) {
+                logger.info("Snapshot " + this.file.getPath() + " is older than " + maxAgeMillis + " ms, ignoring it.");
+                return false;
+            }
+            String[] clusters = new String[in.readInt()];
+            for(int i = 0; i < clusters.length; i++) {
+                clusters[i] = in.readUTF();
+            }
+            Map<String, String> entities = new HashMap<String, String>();
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String entity = in.readUTF();
+                entities.put(entity, clusters[readVarInt(in)]);
+            }
+            if(in.readBoolean()) {
+                if(highWaterMark != null) {
+                    highWaterMark.readFrom(in);
+                } else {
+                    // skip the (hash, epoch) pairs
+                    in.skipBytes(in.readInt() * 16);
+                }
+            }
+            if(version >= 2 && in.readBoolean() && newSeriesGuard != null) {
+                newSeriesGuard.readFrom(in);
+            }
+            clusterMap.putAll(entities);
+            logger.info("Snapshot loaded: " + entities.size() + " entities in " + (System.currentTimeMillis() - start) + " ms from " + this.file.getPath());
+            return true;
+        } catch (EOFException e) {
+            logger.warn("Snapshot " + this.file.getPath() + " is truncated, ignoring it.");
+            return false;
+        } catch (IOException e) {
+            logger.error("Can't load snapshot " + this.file.getPath(), e);
+            return false;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.debug("Can't close snapshot " + this.file.getPath());
+                }
+            }
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,188 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import de.synaxon.graphitereceiver.domain.Rollup;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TopKSelector bounds the number of per instance series of a counter. For every (entity, counter) only the K
+ * instances with the highest value of the retrieval are kept, the values of all other instances are folded into one
+ * "other" instance with the rollup of the counter (sum for summation, min and max for minimum and maximum, the mean
+ * otherwise).
+ *
+ * Instance datapoints are offered while the retrieval runs and kept in a min heap of size K per series group, the
+ * selected datapoints and the "other" datapoint are written at the end of the retrieval by {@link #drain(Writer)}.
+ * K is configured per counter group with top_k_instances, e.g. "virtualDisk=5,net=3,*=10"; groups without K and the
+ * aggregate and global instances are not affected.
+ */
+public class TopKSelector {
+
+    public static final String OTHER_INSTANCE = "other";
+
+    /**
+     * Receives the selected datapoints.
+     */
+    public interface Writer {
+        void write(DataPoint dataPoint);
+    }
+
+    private static final Comparator<DataPoint> BY_VALUE = new Comparator<DataPoint>() {
+        public int compare(DataPoint a, DataPoint b) {
+            return Double.compare(a.getValue(), b.getValue());
+        }
+    };
+
+    private static class Group {
+        private final int k;
+        private final PriorityQueue<DataPoint> heap;
+        private final DataPoint other;
+        private int folded;
+        private double sum;
+        private double min = Double.MAX_VALUE;
+        private double max = -Double.MAX_VALUE;
+
+        Group(int k, DataPoint template, String otherPath) {
+            this.k = k;
+            this.heap = new PriorityQueue<DataPoint>(k, BY_VALUE);
+            this.other = template.copy();
+            this.other.setInstance(OTHER_INSTANCE);
+            this.other.setPath(otherPath);
+        }
+
+        synchronized void offer(DataPoint dataPoint) {
+            if(this.heap.size() < this.k) {
+                this.heap.add(dataPoint.copy());
+                return;
+            }
+            if(dataPoint.getValue() > this.heap.peek().getValue()) {
+                this.fold(this.heap.poll());
+                this.heap.add(dataPoint.copy());
+            } else {
+                this.fold(dataPoint);
+            }
+        }
+
+        synchronized void drain(Writer writer) {
+            for(DataPoint dataPoint : this.heap) {
+                writer.write(dataPoint);
+            }
+            if(this.folded == 0) {
+                return;
+            }
+            double value;
+            switch (Rollup.fromName(this.other.getRollup())) {
+                case SUMMATION:
+                    value = this.sum;
+                    break;
+                case MAXIMUM:
+                    value = this.max;
+                    break;
+                case MINIMUM:
+                    value = this.min;
+                    break;
+                default:
+                    value = this.sum / this.folded;
+            }
+            this.other.setValue(value);
+            writer.write(this.other);
+        }
+
+        private void fold(DataPoint dataPoint) {
+            this.folded++;
+            this.sum += dataPoint.getValue();
+            this.min = Math.min(this.min, dataPoint.getValue());
+            this.max = Math.max(this.max, dataPoint.getValue());
+            if(dataPoint.getEpoch() > this.other.getEpoch()) {
+                this.other.setEpoch(dataPoint.getEpoch());
+            }
+        }
+    }
+
+    private Log logger = LogFactory.getLog(TopKSelector.class);
+    private final Map<String, Integer> limits = new HashMap<String, Integer>();
+    private final int defaultLimit;
+    private volatile ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+    /**
+     * @param config value of top_k_instances, "group=K" pairs separated by ',' where group "*" sets the default
+     */
+    public TopKSelector(String config) {
+        int defaultLimit = 0;
+        for(String entry : config.split(",")) {
+            String[] pair = entry.split("=", 2);
+            if(pair.length != 2) {
+                continue;
+            }
+            try {
+                int k = Integer.parseInt(pair[1].trim());
+                if(k < 1) {
+                    logger.warn("top_k_instances K must be at least 1, ignoring " + entry);
+                } else if(pair[0].trim().equals("*")) {
+                    defaultLimit = k;
+                } else {
+                    this.limits.put(pair[0].trim(), k);
+                }
+            } catch (NumberFormatException e) {
+                logger.warn("top_k_instances K is not a number, ignoring " + entry);
+            }
+        }
+        this.defaultLimit = defaultLimit;
+    }
+
+    /**
+     * @return K of the counter group, 0 if its instances are not limited
+     */
+    public int getLimit(String group) {
+        Integer k = this.limits.get(group);
+        return (k == null) ? this.defaultLimit : k;
+    }
+
+    /**
+     * @return true if the datapoint is an instance of a limited counter group and must be offered
+     */
+    public boolean applies(DataPoint dataPoint) {
+        String instance = dataPoint.getInstance();
+        if(instance == null || instance.isEmpty() || instance.equals("global")) {
+            return false;
+        }
+        return this.getLimit(dataPoint.getGroup()) > 0;
+    }
+
+    /**
+     * @param otherPath path of the "other" instance, it identifies the (entity, counter) of the datapoint
+     */
+    public void offer(DataPoint dataPoint, String otherPath) {
+        Group group = this.groups.get(otherPath);
+        if(group == null) {
+            group = new Group(this.getLimit(dataPoint.getGroup()), dataPoint, otherPath);
+            Group existing = this.groups.putIfAbsent(otherPath, group);
+            if(existing != null) {
+                group = existing;
+            }
+        }
+        group.offer(dataPoint);
+    }
+
+    /**
+     * Writes the selected datapoints of the retrieval and starts the next one.
+     *
+     * @return number of folded instance datapoints
+     */
+    public long drain(Writer writer) {
+        Map<String, Group> drained = this.groups;
+        this.groups = new ConcurrentHashMap<String, Group>();
+        long folded = 0;
+        for(Group group : drained.values()) {
+            group.drain(writer);
+            folded += group.folded;
+        }
+        return folded;
+    }
+}
@@ -0,0 +1,68 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.utils.NumberEncoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ValuePrecision holds the number of decimals written per counter group from the value_precision property:
+ * <pre>
+ *     cpu=2,mem=0,*=shortest
+ * </pre>
+ * "shortest" writes the fewest decimals which parse back to the same value, it is also the default for groups
+ * without entry when "*" is not given. See {@link NumberEncoder}.
+ */
+public class ValuePrecision {
+
+    private static final String SHORTEST = "shortest";
+
+    private Log logger = LogFactory.getLog(ValuePrecision.class);
+    private final Map<String, Integer> decimals = new HashMap<String, Integer>();
+    private int defaultDecimals = NumberEncoder.SHORTEST;
+
+    /**
+     * @param precision value of value_precision, may be null or empty
+     */
+    public ValuePrecision(String precision) {
+        if(precision == null || precision.trim().isEmpty()) {
+            return;
+        }
+        for(String entry : precision.split(",")) {
+            String[] pair = entry.trim().split("=");
+            if(pair.length != 2) {
+                logger.warn("Ignoring invalid value_precision entry: " + entry);
+                continue;
+            }
+            int value;
+            if(SHORTEST.equals(pair[1].trim())) {
+                value = NumberEncoder.SHORTEST;
+            } else {
+                try {
+                    value = Math.min(Integer.parseInt(pair[1].trim()), NumberEncoder.MAX_DECIMALS);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring invalid value_precision entry: " + entry);
+                    continue;
+                }
+            }
+            if("*".equals(pair[0].trim())) {
+                this.defaultDecimals = value;
+            } else {
+                this.decimals.put(pair[0].trim(), value);
+            }
+        }
+    }
+
+    /**
+     * @return decimals for the counter group, {@link NumberEncoder#SHORTEST} for the shortest round trip
+     */
+    public int getDecimals(String group) {
+        if(this.decimals.isEmpty() || group == null) {
+            return this.defaultDecimals;
+        }
+        Integer value = this.decimals.get(group);
+        return (value == null) ? this.defaultDecimals : value;
+    }
+}
@@ -0,0 +1,58 @@
+package de.synaxon.graphitereceiver.core.capture;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Constants and helpers shared by {@link CaptureWriter} and {@link CaptureReader}.
+ *
+ * A capture file starts with magic, version, capture start in millis and the StatsFeeder frequency. It is followed by
+ * records of type byte, varint payload length and payload. Strings are written once as STRING record and referenced
+ * by their varint id afterwards, id 0 is null. Times are varint millis since the capture start, sample timestamps
+ * varint epoch seconds.
+ */
+final class CaptureFormat {
+
+    static final int MAGIC = 0x47524331;
+    static final int VERSION = 1;
+
+    static final int STRING = 1;
+    static final int START_RETRIEVAL = 2;
+    static final int END_RETRIEVAL = 3;
+    static final int ENTITY = 4;
+    static final int METRIC_SET = 5;
+    static final int CLUSTER_MAP = 6;
+
+    private CaptureFormat() {
+    }
+
+    static DateFormat timestampFormat() {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dateFormat;
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,136 @@
+package de.synaxon.graphitereceiver.core.capture;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CaptureReader reads a file written by {@link CaptureWriter} and hands the records to a {@link Handler} in file
+ * order. A truncated last record, e.g. of a receiver which was killed, ends the file.
+ */
+public class CaptureReader implements Closeable {
+
+    /**
+     * Receives the records of the capture, offsets are millis since the capture start.
+     */
+    public interface Handler {
+        void startRetrieval(long offset);
+
+        void endRetrieval(long offset);
+
+        void entity(String metricEntityName, String parsedName);
+
+        void clusterMap(Map<String, String> clusterMap);
+
+        void metricSet(long offset, String entityName, ReplayedMetricSet metricSet);
+    }
+
+    private final DataInputStream in;
+    private final long captureStart;
+    private final long frequencyInSeconds;
+    private final List<String> strings = new ArrayList<String>();
+    private final DateFormat timestampFormat = CaptureFormat.timestampFormat();
+
+    public CaptureReader(String path) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+        if(this.in.readInt() != CaptureFormat.MAGIC || this.in.readInt() != CaptureFormat.VERSION) {
+            this.in.close();
+            throw new IOException(path + " is not a capture file of this version.");
+        }
+        this.captureStart = this.in.readLong();
+        this.frequencyInSeconds = this.in.readLong();
+        this.strings.add(null);
+    }
+
+    public long getCaptureStart() {
+        return this.captureStart;
+    }
+
+    public long getFrequencyInSeconds() {
+        return this.frequencyInSeconds;
+    }
+
+    /**
+     * Reads all records.
+     *
+     * @return number of records read
+     */
+    public long read(Handler handler) throws IOException {
+        long records = 0;
+        while(true) {
+            int type;
+            byte[] data;
+            try {
+                type = this.in.readUnsignedByte();
+                data = new byte[(int) CaptureFormat.readVarLong(this.in)];
+                this.in.readFully(data);
+            } catch (EOFException e) {
+                return records;
+            }
+            this.dispatch(type, new DataInputStream(new ByteArrayInputStream(data)), handler);
+            records++;
+        }
+    }
+
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    private void dispatch(int type, DataInputStream record, Handler handler) throws IOException {
+        switch (type) {
+            case CaptureFormat.STRING:
+                this.strings.add(record.readUTF());
+                break;
+            case CaptureFormat.START_RETRIEVAL:
+                handler.startRetrieval(CaptureFormat.readVarLong(record));
+                break;
+            case CaptureFormat.END_RETRIEVAL:
+                handler.endRetrieval(CaptureFormat.readVarLong(record));
+                break;
+            case CaptureFormat.ENTITY:
+                handler.entity(this.string(record), this.string(record));
+                break;
+            case CaptureFormat.CLUSTER_MAP:
+                int size = (int) CaptureFormat.readVarLong(record);
+                Map<String, String> clusterMap = new HashMap<String, String>(size * 2);
+                for(int i = 0; i < size; i++) {
+                    clusterMap.put(this.string(record), this.string(record));
+                }
+                handler.clusterMap(clusterMap);
+                break;
+            case CaptureFormat.METRIC_SET:
+                long offset = CaptureFormat.readVarLong(record);
+                String entityName = this.string(record);
+                String metricEntityName = this.string(record);
+                String instanceId = this.string(record);
+                String counterName = this.string(record);
+                String statType = this.string(record);
+                int interval = (int) CaptureFormat.readVarLong(record);
+                int samples = (int) CaptureFormat.readVarLong(record);
+                List<ReplayedMetricSet.ReplayedMetric> metrics = new ArrayList<ReplayedMetricSet.ReplayedMetric>(samples);
+                for(int i = 0; i < samples; i++) {
+                    String timestamp = this.timestampFormat.format(new Date(CaptureFormat.readVarLong(record) * 1000));
+                    metrics.add(new ReplayedMetricSet.ReplayedMetric(timestamp, record.readUTF()));
+                }
+                handler.metricSet(offset, entityName, new ReplayedMetricSet(metricEntityName, instanceId, counterName, statType, interval, metrics));
+                break;
+            default:
+                // records of newer writers are skipped
+                break;
+        }
+    }
+
+    private String string(DataInputStream record) throws IOException {
+        return this.strings.get((int) CaptureFormat.readVarLong(record));
+    }
+}
@@ -0,0 +1,204 @@
+package de.synaxon.graphitereceiver.core.capture;
+
+import com.vmware.ee.statsfeeder.MOREFRetriever;
+import com.vmware.ee.statsfeeder.PerfMetricSet;
+import com.vmware.ee.statsfeeder.PerfMetricSet.PerfMetric;
+import de.synaxon.graphitereceiver.domain.EntityType;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * CaptureWriter records everything reaching receiveStats together with the retrieval boundaries, the parsed entity
+ * names and the cluster map, so the stream can be replayed by {@link ReplayDriver} without vCenter.
+ *
+ * All methods are synchronized, capturing serializes the StatsFeeder worker threads. The capture stops when the
+ * file reaches maxBytes.
+ */
+public class CaptureWriter {
+
+    private Log logger = LogFactory.getLog(CaptureWriter.class);
+    private final String path;
+    private final long maxBytes;
+    private final long start;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(4096);
+    private final DataOutputStream payload = new DataOutputStream(this.payloadBytes);
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final Map<String, Boolean> entities = new HashMap<String, Boolean>();
+    private final DateFormat timestampFormat = CaptureFormat.timestampFormat();
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param maxBytes size after which the capture stops
+     */
+    public CaptureWriter(String path, long frequencyInSeconds, long maxBytes) throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.start = System.currentTimeMillis();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 64 * 1024));
+        this.out.writeInt(CaptureFormat.MAGIC);
+        this.out.writeInt(CaptureFormat.VERSION);
+        this.out.writeLong(this.start);
+        this.out.writeLong(frequencyInSeconds);
+        logger.info("Capturing metric stream to " + path);
+    }
+
+    public synchronized void startRetrieval() {
+        try {
+            this.begin();
+            CaptureFormat.writeVarLong(this.payload, this.offset());
+            this.end(CaptureFormat.START_RETRIEVAL);
+        } catch (IOException e) {
+            this.fail(e);
+        }
+    }
+
+    public synchronized void endRetrieval() {
+        try {
+            this.begin();
+            CaptureFormat.writeVarLong(this.payload, this.offset());
+            this.end(CaptureFormat.END_RETRIEVAL);
+            this.out.flush();
+        } catch (IOException e) {
+            this.fail(e);
+        }
+    }
+
+    public synchronized void clusterMap(Map<String, String> clusterMap) {
+        try {
+            Map<String, String> copy = new HashMap<String, String>(clusterMap);
+            for(Map.Entry<String, String> entry : copy.entrySet()) {
+                this.string(entry.getKey());
+                this.string(entry.getValue());
+            }
+            this.begin();
+            CaptureFormat.writeVarLong(this.payload, copy.size());
+            for(Map.Entry<String, String> entry : copy.entrySet()) {
+                CaptureFormat.writeVarLong(this.payload, this.string(entry.getKey()));
+                CaptureFormat.writeVarLong(this.payload, this.string(entry.getValue()));
+            }
+            this.end(CaptureFormat.CLUSTER_MAP);
+        } catch (IOException e) {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records one metric set, the parsed name of its entity is recorded the first time the entity is seen.
+     */
+    public synchronized void metricSet(String entityName, PerfMetricSet metricSet, MOREFRetriever morefRetriever) {
+        if(this.closed || metricSet == null) {
+            return;
+        }
+        try {
+            String metricEntityName = metricSet.getEntityName();
+            if(!this.entities.containsKey(metricEntityName)) {
+                this.entities.put(metricEntityName, Boolean.TRUE);
+                String parsed = EntityType.fromEntityName(metricEntityName).isClustered() ? morefRetriever.parseEntityName(metricEntityName) : "";
+                int nameId = this.string(metricEntityName);
+                int parsedId = this.string(parsed);
+                this.begin();
+                CaptureFormat.writeVarLong(this.payload, nameId);
+                CaptureFormat.writeVarLong(this.payload, parsedId);
+                this.end(CaptureFormat.ENTITY);
+            }
+            int entityId = this.string(entityName);
+            int metricEntityId = this.string(metricEntityName);
+            int instanceId = this.string(metricSet.getInstanceId());
+            int counterId = this.string(metricSet.getCounterName());
+            int statTypeId = this.string(metricSet.getStatType());
+
+            this.begin();
+            CaptureFormat.writeVarLong(this.payload, this.offset());
+            CaptureFormat.writeVarLong(this.payload, entityId);
+            CaptureFormat.writeVarLong(this.payload, metricEntityId);
+            CaptureFormat.writeVarLong(this.payload, instanceId);
+            CaptureFormat.writeVarLong(this.payload, counterId);
+            CaptureFormat.writeVarLong(this.payload, statTypeId);
+            CaptureFormat.writeVarLong(this.payload, metricSet.getInterval());
+            CaptureFormat.writeVarLong(this.payload, metricSet.size());
+            Iterator<PerfMetric> metrics = metricSet.getMetrics();
+            while(metrics.hasNext()) {
+                PerfMetric metric = metrics.next();
+                CaptureFormat.writeVarLong(this.payload, this.timestampFormat.parse(metric.getTimestamp()).getTime() / 1000);
+                this.payload.writeUTF(metric.getValue());
+            }
+            this.end(CaptureFormat.METRIC_SET);
+        } catch (IOException e) {
+            this.fail(e);
+        } catch (ParseException e) {
+            logger.warn("Can't capture metric set of " + entityName + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            logger.error("Can't close capture " + this.path, e);
+        }
+        logger.info("Capture " + this.path + " closed, " + this.written + " bytes.");
+    }
+
+    private long offset() {
+        return System.currentTimeMillis() - this.start;
+    }
+
+    /**
+     * @return id of the string, writes a STRING record the first time
+     */
+    private int string(String value) throws IOException {
+        if(value == null) {
+            return 0;
+        }
+        Integer id = this.strings.get(value);
+        if(id != null) {
+            return id;
+        }
+        id = this.strings.size() + 1;
+        this.strings.put(value, id);
+        this.begin();
+        this.payload.writeUTF(value);
+        this.end(CaptureFormat.STRING);
+        return id;
+    }
+
+    private void begin() {
+        this.payloadBytes.reset();
+    }
+
+    private void end(int type) throws IOException {
+        if(this.closed) {
+            return;
+        }
+        this.out.writeByte(type);
+        CaptureFormat.writeVarLong(this.out, this.payloadBytes.size());
+        this.payloadBytes.writeTo(this.out);
+        this.written += this.payloadBytes.size() + 2;
+        if(this.written >= this.maxBytes) {
+            logger.warn("Capture " + this.path + " reached " + this.maxBytes + " bytes, capturing stopped.");
+            this.close();
+        }
+    }
+
+    private void fail(IOException e) {
+        logger.error("Can't write capture " + this.path + ", capturing stopped.", e);
+        this.close();
+    }
+}
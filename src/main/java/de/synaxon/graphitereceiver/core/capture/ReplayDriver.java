@@ -0,0 +1,193 @@
+package de.synaxon.graphitereceiver.core.capture;
+
+import com.vmware.ee.common.VimConnection;
+import com.vmware.ee.statsfeeder.Configuration;
+import com.vmware.ee.statsfeeder.ExecutionContext;
+import com.vmware.ee.statsfeeder.MOREFRetriever;
+import de.synaxon.graphitereceiver.core.MetricsReceiver;
+import de.synaxon.graphitereceiver.core.SnapshotStore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * ReplayDriver feeds a capture file through a {@link MetricsReceiver} without vCenter, at the original pace or at
+ * maximum speed, and reports the throughput. With the sinks pointed at a local listener the output of two versions
+ * can be compared byte for byte.
+ * <pre>
+ *     java -cp ... de.synaxon.graphitereceiver.core.capture.ReplayDriver capture.bin receiver.properties [--max-speed]
+ * </pre>
+ * The properties file holds the receiver properties as in the StatsFeeder configuration. The cluster map of the
+ * capture is handed to the receiver as snapshot and cluster_map_offline is set, so the receiver never calls vCenter.
+ */
+public class ReplayDriver {
+
+    private static class ReplayConfiguration extends Configuration {
+        private final int frequencyInSeconds;
+
+        ReplayConfiguration(int frequencyInSeconds) {
+            this.frequencyInSeconds = frequencyInSeconds;
+        }
+
+        @Override
+        public Integer getFrequencyInSeconds() {
+            return this.frequencyInSeconds;
+        }
+    }
+
+    private static class ReplayMorefRetriever extends MOREFRetriever {
+        private final Map<String, String> parsedNames;
+
+        ReplayMorefRetriever(Map<String, String> parsedNames) {
+            this.parsedNames = parsedNames;
+        }
+
+        @Override
+        public String parseEntityName(String entityName) {
+            String parsed = this.parsedNames.get(entityName);
+            return (parsed == null) ? "" : parsed;
+        }
+
+        @Override
+        public String getContainerName(String entityName) {
+            return entityName;
+        }
+    }
+
+    private static class ReplayContext extends ExecutionContext {
+        private final Configuration configuration;
+        private final MOREFRetriever morefRetriever;
+
+        ReplayContext(Configuration configuration, MOREFRetriever morefRetriever) {
+            this.configuration = configuration;
+            this.morefRetriever = morefRetriever;
+        }
+
+        @Override
+        public Configuration getConfiguration() {
+            return this.configuration;
+        }
+
+        @Override
+        public MOREFRetriever getMorefRetriever() {
+            return this.morefRetriever;
+        }
+
+        @Override
+        public VimConnection getConnection() {
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("usage: ReplayDriver <capture file> <receiver properties> [--max-speed]");
+            System.exit(1);
+        }
+        boolean maxSpeed = args.length > 2 && args[2].equals("--max-speed");
+
+        // first pass: cluster map and parsed entity names of the whole capture
+        final Map<String, String> clusterMap = new HashMap<String, String>();
+        final Map<String, String> parsedNames = new HashMap<String, String>();
+        CaptureReader reader = new CaptureReader(args[0]);
+        long frequencyInSeconds = reader.getFrequencyInSeconds();
+        try {
+            reader.read(new CaptureReader.Handler() {
+                public void startRetrieval(long offset) {
+                }
+
+                public void endRetrieval(long offset) {
+                }
+
+                public void entity(String metricEntityName, String parsedName) {
+                    parsedNames.put(metricEntityName, parsedName);
+                }
+
+                public void clusterMap(Map<String, String> map) {
+                    clusterMap.putAll(map);
+                }
+
+                public void metricSet(long offset, String entityName, ReplayedMetricSet metricSet) {
+                }
+            });
+        } finally {
+            reader.close();
+        }
+
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(args[1]);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        File snapshot = File.createTempFile("graphitereceiver-replay", ".snapshot");
+        snapshot.deleteOnExit();
+        new SnapshotStore(snapshot.getPath()).save(clusterMap, null, null);
+        props.setProperty("snapshot_file", snapshot.getPath());
+        props.setProperty("snapshot_max_age", String.valueOf(Integer.MAX_VALUE));
+        props.setProperty("cluster_map_offline", "true");
+        props.remove("capture_file");
+
+        final MetricsReceiver receiver = new MetricsReceiver("replay", props);
+        receiver.setExecutionContext(new ReplayContext(new ReplayConfiguration((int) frequencyInSeconds), new ReplayMorefRetriever(parsedNames)));
+
+        final boolean paced = !maxSpeed;
+        final long replayStart = System.currentTimeMillis();
+        final long[] counts = new long[3];
+        reader = new CaptureReader(args[0]);
+        try {
+            reader.read(new CaptureReader.Handler() {
+                public void startRetrieval(long offset) {
+                    this.pace(offset);
+                    receiver.onStartRetrieval();
+                    counts[0]++;
+                }
+
+                public void endRetrieval(long offset) {
+                    this.pace(offset);
+                    receiver.onEndRetrieval();
+                }
+
+                public void entity(String metricEntityName, String parsedName) {
+                }
+
+                public void clusterMap(Map<String, String> map) {
+                }
+
+                public void metricSet(long offset, String entityName, ReplayedMetricSet metricSet) {
+                    this.pace(offset);
+                    receiver.receiveStats(entityName, metricSet);
+                    counts[1]++;
+                    counts[2] += metricSet.size();
+                }
+
+                private void pace(long offset) {
+                    if(!paced) {
+                        return;
+                    }
+                    long wait = replayStart + offset - System.currentTimeMillis();
+                    if(wait > 0) {
+                        try {
+                            Thread.sleep(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        receiver.shutdown();
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - replayStart);
+        System.out.println("Replayed " + counts[0] + " retrievals, " + counts[1] + " metric sets, " + counts[2] + " samples in " + elapsed + " ms ("
+                + (counts[1] * 1000 / elapsed) + " metric sets/s, " + (counts[2] * 1000 / elapsed) + " samples/s)");
+    }
+}
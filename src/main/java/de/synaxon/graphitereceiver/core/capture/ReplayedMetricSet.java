@@ -0,0 +1,87 @@
+package de.synaxon.graphitereceiver.core.capture;
+
+import com.vmware.ee.statsfeeder.PerfMetricSet;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A metric set read from a capture file, it answers the getters the receiver uses like the StatsFeeder original.
+ */
+public class ReplayedMetricSet extends PerfMetricSet {
+
+    /**
+     * One captured sample.
+     */
+    public static class ReplayedMetric extends PerfMetricSet.PerfMetric {
+        private final String timestamp;
+        private final String value;
+
+        public ReplayedMetric(String timestamp, String value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        @Override
+        public String getValue() {
+            return this.value;
+        }
+
+        @Override
+        public String getTimestamp() {
+            return this.timestamp;
+        }
+    }
+
+    private final String entityName;
+    private final String instanceId;
+    private final String counterName;
+    private final String statType;
+    private final int interval;
+    private final List<? extends PerfMetric> metrics;
+
+    public ReplayedMetricSet(String entityName, String instanceId, String counterName, String statType, int interval, List<? extends PerfMetric> metrics) {
+        this.entityName = entityName;
+        this.instanceId = instanceId;
+        this.counterName = counterName;
+        this.statType = statType;
+        this.interval = interval;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String getEntityName() {
+        return this.entityName;
+    }
+
+    @Override
+    public String getInstanceId() {
+        return this.instanceId;
+    }
+
+    @Override
+    public String getCounterName() {
+        return this.counterName;
+    }
+
+    @Override
+    public String getStatType() {
+        return this.statType;
+    }
+
+    @Override
+    public int getInterval() {
+        return this.interval;
+    }
+
+    @Override
+    public int size() {
+        return this.metrics.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<PerfMetric> getMetrics() {
+        return (Iterator<PerfMetric>) this.metrics.iterator();
+    }
+}
@@ -0,0 +1,181 @@
+package de.synaxon.graphitereceiver.core.recent;
+
+/**
+ * GorillaBlock stores (epoch, value) pairs in the compression of Facebook's Gorilla paper: timestamps as delta of
+ * delta, values as XOR with the previous value. Regular 20 second samples of a slowly changing counter take a few
+ * bits per point instead of 16 bytes.
+ *
+ * Epochs must be increasing. A block is not thread safe, {@link RecentSeries} synchronizes.
+ */
+public class GorillaBlock {
+
+    private long[] bits = new long[4];
+    private int bitPosition;
+    private int count;
+    private long firstEpoch;
+    private long lastEpoch;
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeading = Integer.MAX_VALUE;
+    private int lastTrailing;
+
+    /**
+     * Reads the points of a block in time order.
+     */
+    public interface Visitor {
+        void visit(long epoch, double value);
+    }
+
+    public void append(long epoch, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if(this.count == 0) {
+            this.firstEpoch = epoch;
+            this.writeBits(epoch, 64);
+            this.writeBits(valueBits, 64);
+        } else {
+            this.appendEpoch(epoch);
+            this.appendValue(valueBits);
+        }
+        this.lastEpoch = epoch;
+        this.lastValueBits = valueBits;
+        this.count++;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public long getFirstEpoch() {
+        return this.firstEpoch;
+    }
+
+    public long getLastEpoch() {
+        return this.lastEpoch;
+    }
+
+    public double getLastValue() {
+        return Double.longBitsToDouble(this.lastValueBits);
+    }
+
+    /**
+     * @return bytes used by the encoded points
+     */
+    public int getBytes() {
+        return this.bits.length * 8;
+    }
+
+    /**
+     * Decodes all points.
+     */
+    public void forEach(Visitor visitor) {
+        if(this.count == 0) {
+            return;
+        }
+        int[] position = new int[1];
+        long epoch = this.readBits(position, 64);
+        long valueBits = this.readBits(position, 64);
+        visitor.visit(epoch, Double.longBitsToDouble(valueBits));
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for(int i = 1; i < this.count; i++) {
+            long deltaOfDelta;
+            if(this.readBits(position, 1) == 0) {
+                deltaOfDelta = 0;
+            } else if(this.readBits(position, 1) == 0) {
+                deltaOfDelta = signExtend(this.readBits(position, 7), 7);
+            } else if(this.readBits(position, 1) == 0) {
+                deltaOfDelta = signExtend(this.readBits(position, 9), 9);
+            } else if(this.readBits(position, 1) == 0) {
+                deltaOfDelta = signExtend(this.readBits(position, 12), 12);
+            } else {
+                deltaOfDelta = signExtend(this.readBits(position, 32), 32);
+            }
+            delta += deltaOfDelta;
+            epoch += delta;
+
+            if(this.readBits(position, 1) == 1) {
+                if(this.readBits(position, 1) == 1) {
+                    leading = (int) this.readBits(position, 5);
+                    int length = (int) this.readBits(position, 6) + 1;
+                    trailing = 64 - leading - length;
+                }
+                int length = 64 - leading - trailing;
+                valueBits ^= this.readBits(position, length) << trailing;
+            }
+            visitor.visit(epoch, Double.longBitsToDouble(valueBits));
+        }
+    }
+
+    private void appendEpoch(long epoch) {
+        long delta = epoch - this.lastEpoch;
+        long deltaOfDelta = delta - this.lastDelta;
+        this.lastDelta = delta;
+        if(deltaOfDelta == 0) {
+            this.writeBits(0, 1);
+        } else if(deltaOfDelta >= -64 && deltaOfDelta < 64) {
+            this.writeBits(0x2, 2);
+            this.writeBits(deltaOfDelta, 7);
+        } else if(deltaOfDelta >= -256 && deltaOfDelta < 256) {
+            this.writeBits(0x6, 3);
+            this.writeBits(deltaOfDelta, 9);
+        } else if(deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+            this.writeBits(0xE, 4);
+            this.writeBits(deltaOfDelta, 12);
+        } else {
+            this.writeBits(0xF, 4);
+            this.writeBits(deltaOfDelta, 32);
+        }
+    }
+
+    private void appendValue(long valueBits) {
+        long xor = valueBits ^ this.lastValueBits;
+        if(xor == 0) {
+            this.writeBits(0, 1);
+            return;
+        }
+        this.writeBits(1, 1);
+        // leading zeros are stored in 5 bits
+        int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if(this.lastLeading != Integer.MAX_VALUE && leading >= this.lastLeading && trailing >= this.lastTrailing) {
+            this.writeBits(0, 1);
+            this.writeBits(xor >>> this.lastTrailing, 64 - this.lastLeading - this.lastTrailing);
+        } else {
+            int length = 64 - leading - trailing;
+            this.writeBits(1, 1);
+            this.writeBits(leading, 5);
+            this.writeBits(length - 1, 6);
+            this.writeBits(xor >>> trailing, length);
+            this.lastLeading = leading;
+            this.lastTrailing = trailing;
+        }
+    }
+
+    private void writeBits(long value, int length) {
+        if(this.bitPosition + length > this.bits.length * 64) {
+            long[] bits = new long[this.bits.length * 2];
+            System.arraycopy(this.bits, 0, bits, 0, this.bits.length);
+            this.bits = bits;
+        }
+        for(int i = length - 1; i >= 0; i--) {
+            if(((value >>> i) & 1) != 0) {
+                this.bits[this.bitPosition >>> 6] |= 1L << (63 - (this.bitPosition & 63));
+            }
+            this.bitPosition++;
+        }
+    }
+
+    private long readBits(int[] position, int length) {
+        long value = 0;
+        for(int i = 0; i < length; i++) {
+            int p = position[0]++;
+            value = (value << 1) | ((this.bits[p >>> 6] >>> (63 - (p & 63))) & 1);
+        }
+        return value;
+    }
+
+    private static long signExtend(long value, int length) {
+        return (value << (64 - length)) >> (64 - length);
+    }
+}
@@ -0,0 +1,90 @@
+package de.synaxon.graphitereceiver.core.recent;
+
+import java.util.ArrayDeque;
+
+/**
+ * The recent points of one series as a queue of {@link GorillaBlock}s, each covering blockSeconds. Blocks older than
+ * the window are dropped when a point is appended or the store is purged.
+ */
+public class RecentSeries {
+
+    private final ArrayDeque<GorillaBlock> blocks = new ArrayDeque<GorillaBlock>();
+
+    /**
+     * @return false if the point is not newer than the last point of the series
+     */
+    public synchronized boolean append(long epoch, double value, long blockSeconds, long windowSeconds) {
+        GorillaBlock current = this.blocks.peekLast();
+        if(current != null && epoch <= current.getLastEpoch()) {
+            return false;
+        }
+        if(current == null || epoch - current.getFirstEpoch() >= blockSeconds) {
+            current = new GorillaBlock();
+            this.blocks.addLast(current);
+        }
+        current.append(epoch, value);
+        this.expire(epoch - windowSeconds);
+        return true;
+    }
+
+    /**
+     * Drops the blocks whose points are all older than the given epoch.
+     *
+     * @return true if the series is empty now
+     */
+    public synchronized boolean expire(long oldestEpoch) {
+        while(!this.blocks.isEmpty() && this.blocks.peekFirst().getLastEpoch() < oldestEpoch) {
+            this.blocks.removeFirst();
+        }
+        return this.blocks.isEmpty();
+    }
+
+    /**
+     * @return the newest point as {epoch, value}, null if the series is empty
+     */
+    public synchronized double[] latest() {
+        GorillaBlock current = this.blocks.peekLast();
+        if(current == null) {
+            return null;
+        }
+        return new double[] { current.getLastEpoch(), current.getLastValue() };
+    }
+
+    /**
+     * @return up to n newest points in time order, epochs and values in two arrays, none for a negative n
+     */
+    public synchronized double[][] last(int n) {
+        final int total = this.size();
+        final int skip = Math.max(0, total - Math.max(0, n));
+        final double[][] points = new double[2][total - skip];
+        final int[] index = new int[1];
+        for(GorillaBlock block : this.blocks) {
+            block.forEach(new GorillaBlock.Visitor() {
+                public void visit(long epoch, double value) {
+                    int i = index[0]++ - skip;
+                    if(i >= 0) {
+                        points[0][i] = epoch;
+                        points[1][i] = value;
+                    }
+                }
+            });
+        }
+        return points;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for(GorillaBlock block : this.blocks) {
+            size += block.size();
+        }
+        return size;
+    }
+
+    public synchronized int getBytes() {
+        int bytes = 0;
+        for(GorillaBlock block : this.blocks) {
+            bytes += block.getBytes();
+        }
+        return bytes;
+    }
+}
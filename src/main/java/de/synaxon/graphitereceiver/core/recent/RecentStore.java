@@ -0,0 +1,111 @@
+package de.synaxon.graphitereceiver.core.recent;
+
+import de.synaxon.graphitereceiver.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * RecentStore keeps the last windowSeconds of every series written by the receiver in Gorilla compressed blocks.
+ *
+ * Memory is bounded by maxSeries: points of new series are rejected while the store is full, series without points
+ * in the window are removed by {@link #purge(long)} once per retrieval.
+ */
+public class RecentStore {
+
+    private final ConcurrentHashMap<String, RecentSeries> series = new ConcurrentHashMap<String, RecentSeries>();
+    private final long windowSeconds;
+    private final long blockSeconds;
+    private final int maxSeries;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public RecentStore(long windowSeconds, int maxSeries) {
+        this.windowSeconds = Math.max(60, windowSeconds);
+        this.blockSeconds = Math.max(60, this.windowSeconds / 4);
+        this.maxSeries = maxSeries;
+    }
+
+    public void append(String path, long epoch, double value) {
+        RecentSeries points = this.series.get(path);
+        if(points == null) {
+            if(this.series.size() >= this.maxSeries) {
+                this.rejected.incrementAndGet();
+                return;
+            }
+            points = new RecentSeries();
+            RecentSeries existing = this.series.putIfAbsent(path, points);
+            if(existing != null) {
+                points = existing;
+            }
+        }
+        points.append(epoch, value, this.blockSeconds, this.windowSeconds);
+    }
+
+    /**
+     * Removes points older than the window and series without points.
+     *
+     * @param nowEpoch current time in epoch seconds
+     * @return number of removed series
+     */
+    public int purge(long nowEpoch) {
+        int removed = 0;
+        for(Map.Entry<String, RecentSeries> entry : this.series.entrySet()) {
+            if(entry.getValue().expire(nowEpoch - this.windowSeconds)) {
+                this.series.remove(entry.getKey(), entry.getValue());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public RecentSeries get(String path) {
+        return this.series.get(path);
+    }
+
+    /**
+     * @param glob Graphite style pattern: '*' within one path element, '?' one character, {a,b} alternatives
+     * @param limit maximum number of paths returned
+     * @return matching paths, sorted
+     */
+    public List<String> match(String glob, int limit) {
+        List<String> paths = new ArrayList<String>();
+        if(!Utils.isGlob(glob)) {
+            if(this.series.containsKey(glob)) {
+                paths.add(glob);
+            }
+            return paths;
+        }
+        Pattern pattern = Utils.globToPattern(glob);
+        for(String path : this.series.keySet()) {
+            if(pattern.matcher(path).matches()) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return (paths.size() > limit) ? paths.subList(0, limit) : paths;
+    }
+
+    public int size() {
+        return this.series.size();
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for(RecentSeries points : this.series.values()) {
+            bytes += points.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return points of new series rejected since the last call because the store was full
+     */
+    public long takeRejected() {
+        return this.rejected.getAndSet(0);
+    }
+}
@@ -0,0 +1,249 @@
+package de.synaxon.graphitereceiver.core.recent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * RecentStoreServer answers queries on the {@link RecentStore} over HTTP with JSON:
+ * <pre>
+ *     /latest?match=vmware.*.*.cpu.ready_summation_delta      [{"path":..,"timestamp":..,"value":..},..]
+ *     /points?match=vmware.c1.vm01.mem.*&amp;n=10               [{"path":..,"points":[[timestamp,value],..]},..]
+ *     /series?match=vmware.c1.*                               ["path",..]
+ * </pre>
+ * match is a Graphite style glob, at most maxResults series are returned. n must not be negative and is capped at
+ * {@link #MAX_POINTS}.
+ */
+public class RecentStoreServer {
+
+    /**
+     * Upper bound of the points returned per series by /points.
+     */
+    public static final int MAX_POINTS = 10000;
+
+    private Log logger = LogFactory.getLog(RecentStoreServer.class);
+    private final RecentStore store;
+    private final int maxResults;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public RecentStoreServer(RecentStore store, String bindAddress, int port, int maxResults) throws IOException {
+        this.store = store;
+        this.maxResults = maxResults;
+        this.server = HttpServer.create(new InetSocketAddress(bindAddress, port), 16);
+        this.server.createContext("/latest", new QueryHandler() {
+            void answer(String match, Map<String, String> params, StringBuilder json) {
+                latest(match, json);
+            }
+        });
+        this.server.createContext("/points", new QueryHandler() {
+            void answer(String match, Map<String, String> params, StringBuilder json) {
+                int n = 10;
+                if(params.containsKey("n")) {
+                    n = Integer.parseInt(params.get("n"));
+                }
+                if(n < 0) {
+                    throw new BadQueryException("n must not be negative");
+                }
+                n = Math.min(n, MAX_POINTS);
+                points(match, n, json);
+            }
+        });
+        this.server.createContext("/series", new QueryHandler() {
+            void answer(String match, Map<String, String> params, StringBuilder json) {
+                series(match, json);
+            }
+        });
+        this.executor = Executors.newFixedThreadPool(2);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+        logger.info("Recent store endpoint listening on " + bindAddress + ":" + this.getPort());
+    }
+
+    /**
+     * @return the port listened on, the one chosen by the system when created with port 0
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+    /**
+     * A query parameter out of range, answered with 400 and the message.
+     */
+    private static class BadQueryException extends RuntimeException {
+        BadQueryException(String message) {
+            super(message);
+        }
+    }
+
+    private abstract class QueryHandler implements HttpHandler {
+
+        abstract void answer(String match, Map<String, String> params, StringBuilder json);
+
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            StringBuilder json = new StringBuilder();
+            try {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String match = params.get("match");
+                if(match == null || match.isEmpty()) {
+                    status = 400;
+                    json.append("{\"error\":\"match is missing\"}");
+                } else {
+                    this.answer(match, params, json);
+                }
+            } catch (NumberFormatException e) {
+                status = 400;
+                json.setLength(0);
+                json.append("{\"error\":\"n is not a number\"}");
+            } catch (BadQueryException e) {
+                status = 400;
+                json.setLength(0);
+                json.append("{\"error\":\"").append(e.getMessage()).append("\"}");
+            } catch (RuntimeException e) {
+                logger.error("Recent store query failed: " + exchange.getRequestURI(), e);
+                status = 500;
+                json.setLength(0);
+                json.append("{\"error\":\"query failed\"}");
+            }
+            byte[] body = json.toString().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @throws BadQueryException if match is not a valid glob
+     */
+    private List<String> match(String match) {
+        try {
+            return this.store.match(match, this.maxResults);
+        } catch (IllegalArgumentException e) {
+            throw new BadQueryException("match is not a valid glob");
+        }
+    }
+
+    private void latest(String match, StringBuilder json) {
+        json.append('[');
+        boolean first = true;
+        for(String path : this.match(match)) {
+            RecentSeries series = this.store.get(path);
+            double[] point = (series == null) ? null : series.latest();
+            if(point == null) {
+                continue;
+            }
+            if(!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"path\":");
+            appendString(json, path);
+            json.append(",\"timestamp\":").append((long) point[0]).append(",\"value\":");
+            appendNumber(json, point[1]);
+            json.append('}');
+        }
+        json.append(']');
+    }
+
+    private void points(String match, int n, StringBuilder json) {
+        json.append('[');
+        boolean first = true;
+        for(String path : this.match(match)) {
+            RecentSeries series = this.store.get(path);
+            if(series == null) {
+                continue;
+            }
+            double[][] points = series.last(n);
+            if(!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"path\":");
+            appendString(json, path);
+            json.append(",\"points\":[");
+            for(int i = 0; i < points[0].length; i++) {
+                if(i > 0) {
+                    json.append(',');
+                }
+                json.append('[').append((long) points[0][i]).append(',');
+                appendNumber(json, points[1][i]);
+                json.append(']');
+            }
+            json.append("]}");
+        }
+        json.append(']');
+    }
+
+    private void series(String match, StringBuilder json) {
+        json.append('[');
+        List<String> paths = this.match(match);
+        for(int i = 0; i < paths.size(); i++) {
+            if(i > 0) {
+                json.append(',');
+            }
+            appendString(json, paths.get(i));
+        }
+        json.append(']');
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if(query == null) {
+            return params;
+        }
+        for(String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if(separator > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"), URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static void appendNumber(StringBuilder json, double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value)) {
+            json.append("null");
+        } else {
+            json.append(value);
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if(c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,97 @@
+package de.synaxon.graphitereceiver.core.relay;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ConsistentHashRing places metric paths on destinations the way carbon-relay does with
+ * RELAY_METHOD = consistent-hashing, so graphite-web finds the series on the carbon node the relay sends them to.
+ *
+ * Every destination has replicas positions: the first 16 bits of md5("('host', 'instance'):i"), "None" without
+ * instance, moved up on collision. A path goes to the first position at or after the first 16 bits of md5(path),
+ * wrapping around.
+ */
+public class ConsistentHashRing<T> {
+
+    private final int[] positions;
+    private final List<T> nodes;
+
+    /**
+     * @param keys destinations as host and instance (may be null) pairs, in the order of the values
+     */
+    public ConsistentHashRing(List<String[]> keys, List<T> values, int replicas) {
+        MessageDigest md5 = md5();
+        long[] entries = new long[keys.size() * replicas];
+        Set<Integer> used = new HashSet<Integer>();
+        int count = 0;
+        for(int n = 0; n < keys.size(); n++) {
+            String[] key = keys.get(n);
+            String node = "('" + key[0] + "', " + ((key[1] == null) ? "None" : "'" + key[1] + "'") + ")";
+            for(int i = 0; i < replicas; i++) {
+                int position = position(md5, node + ":" + i);
+                while(used.contains(position)) {
+                    position++;
+                }
+                used.add(position);
+                // position in the high bits, node index in the low bits, sorted by position
+                entries[count++] = ((long) position << 32) | n;
+            }
+        }
+        Arrays.sort(entries, 0, count);
+        this.positions = new int[count];
+        this.nodes = new ArrayList<T>(count);
+        for(int i = 0; i < count; i++) {
+            this.positions[i] = (int) (entries[i] >>> 32);
+            this.nodes.add(values.get((int) entries[i]));
+        }
+    }
+
+    /**
+     * @param md5 digest of the calling thread, see {@link #md5()}
+     */
+    public T get(MessageDigest md5, byte[] path, int offset, int length) {
+        md5.reset();
+        md5.update(path, offset, length);
+        byte[] digest = md5.digest();
+        int position = ((digest[0] & 0xFF) << 8) | (digest[1] & 0xFF);
+        int index = Arrays.binarySearch(this.positions, position);
+        if(index < 0) {
+            index = -index - 1;
+        }
+        return this.nodes.get(index % this.positions.length);
+    }
+
+    public T get(String path) {
+        try {
+            byte[] bytes = path.getBytes("UTF-8");
+            return this.get(md5(), bytes, 0, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available.", e);
+        }
+    }
+
+    private static int position(MessageDigest md5, String key) {
+        md5.reset();
+        byte[] digest;
+        try {
+            digest = md5.digest(key.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return ((digest[0] & 0xFF) << 8) | (digest[1] & 0xFF);
+    }
+}
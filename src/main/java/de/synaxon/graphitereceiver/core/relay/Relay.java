@@ -0,0 +1,224 @@
+package de.synaxon.graphitereceiver.core.relay;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relay is a standalone process shared by the receivers of several StatsFeeder instances on one machine. The
+ * receivers send to it with the "relay" sink type over a loopback connection in the {@link RelayProtocol} framing,
+ * the relay batches the lines of all sources and holds one persistent connection per carbon node.
+ * <pre>
+ *     java -cp graphite-receiver.jar de.synaxon.graphitereceiver.core.relay.Relay relay.properties
+ * </pre>
+ * Properties:
+ * <pre>
+ *     relay_bind             address to listen on, default 127.0.0.1
+ *     relay_port             port to listen on, default 2103
+ *     relay_destinations     carbon nodes host:port[:instance], comma separated, default 127.0.0.1:2003
+ *     relay_replicas         positions of every node on the {@link ConsistentHashRing}, default 100 like carbon
+ *     relay_buffer_size      megabytes buffered per node while it is unreachable, default 256
+ *     relay_flush_interval   milliseconds a line waits for a batch to fill, default 200
+ *     relay_stats_interval   seconds between the statistics logged, default 60
+ * </pre>
+ */
+public class Relay {
+
+    private Log logger = LogFactory.getLog(Relay.class);
+    private final List<RelayDestination> destinations = new ArrayList<RelayDestination>();
+    private final ConsistentHashRing<RelayDestination> ring;
+    private final AtomicLong receivedLines = new AtomicLong();
+    private final AtomicLong sources = new AtomicLong();
+    private ServerSocket serverSocket;
+
+    /**
+     * @param destinations carbon nodes host:port[:instance], comma separated
+     */
+    public Relay(String destinations, int replicas, long bufferBytes, long flushMillis) {
+        List<String[]> keys = new ArrayList<String[]>();
+        for(String entry : destinations.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if(parts.length < 2) {
+                throw new IllegalArgumentException("Invalid relay destination: " + entry);
+            }
+            this.destinations.add(new RelayDestination(parts[0], Integer.parseInt(parts[1]), bufferBytes, flushMillis));
+            keys.add(new String[] {parts[0], (parts.length > 2) ? parts[2] : null});
+        }
+        this.ring = new ConsistentHashRing<RelayDestination>(keys, this.destinations, replicas);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("Usage: Relay <relay.properties>");
+            System.exit(1);
+        }
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        final Relay relay = new Relay(props.getProperty("relay_destinations", "127.0.0.1:2003"),
+                Integer.parseInt(props.getProperty("relay_replicas", "100")),
+                Long.parseLong(props.getProperty("relay_buffer_size", "256")) * 1024 * 1024,
+                Long.parseLong(props.getProperty("relay_flush_interval", "200")));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                relay.stop();
+            }
+        }, "GraphiteRelay-Shutdown"));
+        relay.start(props.getProperty("relay_bind", "127.0.0.1"), Integer.parseInt(props.getProperty("relay_port", "2103")),
+                Long.parseLong(props.getProperty("relay_stats_interval", "60")) * 1000);
+        relay.serve();
+    }
+
+    public void start(String bind, int port, final long statsMillis) throws IOException {
+        for(RelayDestination destination : this.destinations) {
+            destination.start();
+        }
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bind));
+        logger.info("Relay listening on " + bind + ":" + this.serverSocket.getLocalPort() + " for " + this.destinations.size() + " carbon nodes.");
+        Thread stats = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(true) {
+                        Thread.sleep(statsMillis);
+                        logStats();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "GraphiteRelay-Stats");
+        stats.setDaemon(true);
+        stats.start();
+    }
+
+    /**
+     * Accepts sources until the relay is stopped, every source is read by its own thread.
+     */
+    public void serve() {
+        while(!this.serverSocket.isClosed()) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        readSource(socket);
+                    }
+                }, "GraphiteRelay-Source-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if(!this.serverSocket.isClosed()) {
+                    logger.error("Relay can't accept connections.", e);
+                }
+            }
+        }
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            logger.debug("Can't close relay socket.");
+        }
+        for(RelayDestination destination : this.destinations) {
+            destination.stop(5000);
+        }
+        this.logStats();
+    }
+
+    private void readSource(Socket socket) {
+        String source = String.valueOf(socket.getRemoteSocketAddress());
+        MessageDigest md5 = ConsistentHashRing.md5();
+        byte[] frame = new byte[64 * 1024];
+        this.sources.incrementAndGet();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            source = RelayProtocol.readHello(in) + "@" + source;
+            logger.info("Relay source connected: " + source);
+            while(true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int lines = in.readInt();
+                if(length < 0 || length > RelayProtocol.MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if(length > frame.length) {
+                    frame = new byte[length];
+                }
+                in.readFully(frame, 0, length);
+                this.route(md5, frame, length);
+                this.receivedLines.addAndGet(lines);
+            }
+            logger.info("Relay source disconnected: " + source);
+        } catch (IOException e) {
+            logger.warn("Relay source " + source + " failed: " + e.getMessage());
+        } finally {
+            this.sources.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Can't close source " + source);
+            }
+        }
+    }
+
+    /**
+     * Hands every line of the frame to the carbon node of its path.
+     */
+    private void route(MessageDigest md5, byte[] frame, int length) {
+        int start = 0;
+        while(start < length) {
+            int end = start;
+            int pathEnd = -1;
+            while(end < length && frame[end] != '\n') {
+                if(pathEnd < 0 && frame[end] == ' ') {
+                    pathEnd = end;
+                }
+                end++;
+            }
+            if(pathEnd > start) {
+                this.ring.get(md5, frame, start, pathEnd - start).add(frame, start, end - start);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void logStats() {
+        StringBuilder stats = new StringBuilder();
+        stats.append("Relay sources: ").append(this.sources.get())
+                .append(" received lines: ").append(this.receivedLines.getAndSet(0));
+        for(RelayDestination destination : this.destinations) {
+            stats.append(" | ").append(destination.getName())
+                    .append(destination.isConnected() ? " up" : " down")
+                    .append(" sent: ").append(destination.takeSentLines())
+                    .append(" dropped: ").append(destination.takeDroppedLines())
+                    .append(" queued bytes: ").append(destination.getQueuedBytes());
+        }
+        logger.info(stats.toString());
+    }
+}
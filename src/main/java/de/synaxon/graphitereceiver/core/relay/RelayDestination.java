@@ -0,0 +1,238 @@
+package de.synaxon.graphitereceiver.core.relay;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * RelayDestination is one carbon node of the {@link Relay}. Lines of all sources are appended to the current batch,
+ * full batches and, every flushMillis, the partial batch are queued and written by the sender thread over one
+ * persistent connection.
+ *
+ * While carbon is unreachable the queue grows up to maxBytes, then the oldest batches are dropped, except the one
+ * the sender is writing. The sender reconnects with a backoff doubling from one second up to a minute.
+ */
+public class RelayDestination {
+
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final long MAX_BACKOFF = 60000;
+
+    private static class Batch {
+        private final byte[] data;
+        private final int lines;
+
+        Batch(byte[] data, int lines) {
+            this.data = data;
+            this.lines = lines;
+        }
+    }
+
+    private Log logger = LogFactory.getLog(RelayDestination.class);
+    private final String host;
+    private final int port;
+    private final long maxBytes;
+    private final long flushMillis;
+    private final ArrayDeque<Batch> queue = new ArrayDeque<Batch>();
+    private byte[] current = new byte[BATCH_SIZE];
+    private int position;
+    private int lines;
+    private long queuedBytes;
+    private long sentLines;
+    private long droppedLines;
+    private Batch sending;
+    private boolean connected;
+    private volatile boolean running = true;
+
+    /**
+     * @param maxBytes maximum bytes queued while carbon is unreachable
+     * @param flushMillis maximum time a line waits in a partial batch
+     */
+    public RelayDestination(String host, int port, long maxBytes, long flushMillis) {
+        this.host = host;
+        this.port = port;
+        this.maxBytes = maxBytes;
+        this.flushMillis = flushMillis;
+    }
+
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        }, "GraphiteRelay-" + this.host + ":" + this.port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the partial batch and waits up to timeoutMillis for the queue to drain, then stops the sender.
+     */
+    public void stop(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            this.enqueueCurrent();
+            try {
+                while(!this.queue.isEmpty() && this.connected && System.currentTimeMillis() < deadline) {
+                    this.wait(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.running = false;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Appends one line, without line terminator.
+     */
+    public synchronized void add(byte[] data, int offset, int length) {
+        if(this.position + length + 1 > this.current.length) {
+            this.enqueueCurrent();
+            if(length + 1 > this.current.length) {
+                this.current = new byte[length + 1];
+            }
+        }
+        System.arraycopy(data, offset, this.current, this.position, length);
+        this.position += length;
+        this.current[this.position++] = '\n';
+        this.lines++;
+    }
+
+    public String getName() {
+        return this.host + ":" + this.port;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return this.queuedBytes + this.position;
+    }
+
+    public synchronized long takeSentLines() {
+        long sent = this.sentLines;
+        this.sentLines = 0;
+        return sent;
+    }
+
+    public synchronized long takeDroppedLines() {
+        long dropped = this.droppedLines;
+        this.droppedLines = 0;
+        return dropped;
+    }
+
+    public synchronized boolean isConnected() {
+        return this.connected;
+    }
+
+    private void enqueueCurrent() {
+        if(this.position == 0) {
+            return;
+        }
+        byte[] data = new byte[this.position];
+        System.arraycopy(this.current, 0, data, 0, this.position);
+        this.queue.addLast(new Batch(data, this.lines));
+        this.queuedBytes += data.length;
+        this.position = 0;
+        this.lines = 0;
+        Iterator<Batch> batches = this.queue.iterator();
+        while(this.queuedBytes > this.maxBytes && batches.hasNext()) {
+            Batch oldest = batches.next();
+            if(oldest == this.queue.peekLast()) {
+                break;
+            }
+            if(oldest == this.sending) {
+                // counted as sent once written
+                continue;
+            }
+            batches.remove();
+            this.queuedBytes -= oldest.data.length;
+            this.droppedLines += oldest.lines;
+        }
+        this.notifyAll();
+    }
+
+    private synchronized Batch nextBatch() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + this.flushMillis;
+        while(this.running && this.queue.isEmpty()) {
+            long wait = deadline - System.currentTimeMillis();
+            if(wait <= 0) {
+                this.enqueueCurrent();
+                deadline = System.currentTimeMillis() + this.flushMillis;
+                continue;
+            }
+            this.wait(wait);
+        }
+        this.sending = this.queue.peekFirst();
+        return this.sending;
+    }
+
+    private synchronized void sent(Batch batch) {
+        this.queue.remove(batch);
+        this.queuedBytes -= batch.data.length;
+        this.sentLines += batch.lines;
+        this.sending = null;
+    }
+
+    private void sendLoop() {
+        Socket socket = null;
+        OutputStream out = null;
+        long backoff = 1000;
+        while(this.running) {
+            try {
+                Batch batch = this.nextBatch();
+                if(batch == null) {
+                    continue;
+                }
+                if(out == null) {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(this.host, this.port), 10000);
+                    socket.setTcpNoDelay(false);
+                    out = socket.getOutputStream();
+                    synchronized (this) {
+                        this.connected = true;
+                    }
+                    logger.info("Relay connected to " + this.getName());
+                    backoff = 1000;
+                }
+                out.write(batch.data);
+                out.flush();
+                this.sent(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                logger.warn("Relay can't send to " + this.getName() + ", retrying in " + backoff + " ms: " + e.getMessage());
+                close(socket);
+                socket = null;
+                out = null;
+                synchronized (this) {
+                    this.connected = false;
+                    // the batch is written again after the backoff unless it is dropped meanwhile
+                    this.sending = null;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+        close(socket);
+    }
+
+    private void close(Socket socket) {
+        if(socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Can't close connection to " + this.getName());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.synaxon.graphitereceiver.core.relay;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Framing between the receivers and the {@link Relay}.
+ *
+ * A connection starts with a hello: magic, version and the source name as UTF-8 with a 16 bit length. It is
+ * followed by frames of payload length, line count and the payload, a block of complete Graphite plaintext lines.
+ * All integers are big endian, so one 64 KB chunk of a lane costs 8 bytes of framing.
+ */
+public final class RelayProtocol {
+
+    static final int MAGIC = 0x47525231;
+    static final int VERSION = 1;
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private RelayProtocol() {
+    }
+
+    public static void writeHello(OutputStream out, String source) throws IOException {
+        byte[] name = source.getBytes("UTF-8");
+        byte[] hello = new byte[10 + name.length];
+        putInt(hello, 0, MAGIC);
+        putInt(hello, 4, VERSION);
+        hello[8] = (byte) (name.length >>> 8);
+        hello[9] = (byte) name.length;
+        System.arraycopy(name, 0, hello, 10, name.length);
+        out.write(hello);
+    }
+
+    public static void writeFrameHeader(OutputStream out, int length, int lines) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        putInt(header, 4, lines);
+        out.write(header);
+    }
+
+    /**
+     * @return the source name
+     * @throws IOException if the peer does not speak the relay protocol
+     */
+    static String readHello(DataInputStream in) throws IOException {
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a relay connection.");
+        }
+        int version = in.readInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported relay protocol version " + version);
+        }
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        return new String(name, "UTF-8");
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,109 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.core.LanePool;
+import de.synaxon.graphitereceiver.core.PacedEmitter;
+import de.synaxon.graphitereceiver.core.ValuePrecision;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import de.synaxon.graphitereceiver.utils.NumberEncoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base class for the line based sinks. Every sink owns a {@link LanePool} to its backend, so striped writers,
+ * the forced reconnect and paced emission work the same for all protocols. Subclasses only format the line.
+ */
+public abstract class AbstractLaneSink implements MetricSink {
+
+    protected Log logger = LogFactory.getLog(getClass());
+    private final String name;
+    private final LanePool lanePool;
+    private final PacedEmitter pacedEmitter;
+    private final long frequencyInSeconds;
+    private long retrievalStart;
+    private ValuePrecision valuePrecision = new ValuePrecision(null);
+    private final ThreadLocal<StringBuilder> lineBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * @param pacedEmitter emitter for paced emission, null to send at the end of the retrieval
+     */
+    protected AbstractLaneSink(String name, LanePool lanePool, PacedEmitter pacedEmitter, long frequencyInSeconds) {
+        this.name = name;
+        this.lanePool = lanePool;
+        this.pacedEmitter = pacedEmitter;
+        this.frequencyInSeconds = frequencyInSeconds;
+        this.lanePool.setDeferred(pacedEmitter != null);
+    }
+
+    public void setValuePrecision(ValuePrecision valuePrecision) {
+        this.valuePrecision = valuePrecision;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public void open() {
+        if(this.pacedEmitter != null) {
+            this.pacedEmitter.awaitCompletion();
+            if(this.pacedEmitter.getLastLagMillis() > 0) {
+                logger.warn("Sink " + this.name + " previous retrieval was sent " + this.pacedEmitter.getLastLagMillis() + " ms after its pacing window.");
+            }
+            if(this.pacedEmitter.getLastShedLines() > 0) {
+                logger.warn("Sink " + this.name + " shed " + this.pacedEmitter.getLastShedLines() + " low priority lines of the previous retrieval.");
+            }
+        }
+        this.retrievalStart = System.currentTimeMillis();
+        this.lanePool.open();
+    }
+
+    public void write(DataPoint dataPoint) {
+        StringBuilder line = this.lineBuilder.get();
+        line.setLength(0);
+        this.format(dataPoint, line);
+        if(line.length() > 0) {
+            this.lanePool.currentLane().write(line, dataPoint.getPriority());
+        }
+    }
+
+    public boolean isBehind() {
+        return this.pacedEmitter != null && this.pacedEmitter.getLastLagMillis() > 0;
+    }
+
+    public void close() {
+        if(this.pacedEmitter != null) {
+            this.lanePool.flush();
+            this.pacedEmitter.schedule(this.lanePool, this.frequencyInSeconds, this.retrievalStart);
+        } else {
+            this.lanePool.close();
+        }
+        logger.debug("Sink " + this.name + " lines written: " + this.lanePool.getLinesCount());
+    }
+
+    public void shutdown() {
+        if(this.pacedEmitter != null) {
+            this.pacedEmitter.shutdown();
+        }
+        this.lanePool.disconnect();
+    }
+
+    /**
+     * Appends the line for the datapoint without line terminator, nothing to skip it.
+     */
+    protected abstract void format(DataPoint dataPoint, StringBuilder line);
+
+    /**
+     * Appends the value with the precision of its counter group.
+     */
+    protected StringBuilder appendValue(StringBuilder line, DataPoint dataPoint) {
+        return NumberEncoder.append(line, dataPoint.getValue(), this.valuePrecision.getDecimals(dataPoint.getGroup()));
+    }
+
+    protected static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+}
@@ -0,0 +1,23 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.core.LanePool;
+import de.synaxon.graphitereceiver.core.PacedEmitter;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+
+/**
+ * Graphite plaintext protocol: {@code path value timestamp}, the path is rendered by the
+ * {@link de.synaxon.graphitereceiver.core.PathTemplate}.
+ */
+public class GraphitePlaintextSink extends AbstractLaneSink {
+
+    public GraphitePlaintextSink(String name, LanePool lanePool, PacedEmitter pacedEmitter, long frequencyInSeconds) {
+        super(name, lanePool, pacedEmitter, frequencyInSeconds);
+    }
+
+    @Override
+    protected void format(DataPoint dataPoint, StringBuilder line) {
+        line.append(dataPoint.getPath()).append(' ');
+        this.appendValue(line, dataPoint).append(' ')
+                .append(dataPoint.getEpoch());
+    }
+}
@@ -0,0 +1,51 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.core.LanePool;
+import de.synaxon.graphitereceiver.core.PacedEmitter;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+
+/**
+ * Graphite tagged series (Graphite 1.1+):
+ * {@code prefix.group.metric;cluster=..;etype=..;entity=..;instance=..;rollup=..;stattype=.. value timestamp}.
+ * Entity and instance become tags, so all instances of a counter share one name in the whisper index.
+ */
+public class GraphiteTaggedSink extends AbstractLaneSink {
+
+    public GraphiteTaggedSink(String name, LanePool lanePool, PacedEmitter pacedEmitter, long frequencyInSeconds) {
+        super(name, lanePool, pacedEmitter, frequencyInSeconds);
+    }
+
+    @Override
+    protected void format(DataPoint dataPoint, StringBuilder line) {
+        line.append(dataPoint.getPrefix()).append('.')
+                .append(dataPoint.getGroup()).append('.')
+                .append(dataPoint.getMetric());
+        appendTag(line, "cluster", dataPoint.getCluster());
+        appendTag(line, "etype", dataPoint.getEntityType());
+        appendTag(line, "entity", dataPoint.getEntity());
+        appendTag(line, "instance", dataPoint.getInstance());
+        appendTag(line, "rollup", dataPoint.getRollup());
+        appendTag(line, "stattype", dataPoint.getStatType());
+        line.append(' ');
+        this.appendValue(line, dataPoint)
+                .append(' ').append(dataPoint.getEpoch());
+    }
+
+    /**
+     * Tag values must not be empty, must not contain ';' or start with '~', and a space would end the path.
+     */
+    private static void appendTag(StringBuilder line, String tag, String value) {
+        if(isEmpty(value)) {
+            return;
+        }
+        line.append(';').append(tag).append('=');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == ';' || c == ' ' || (c == '~' && i == 0)) {
+                line.append('_');
+            } else {
+                line.append(c);
+            }
+        }
+    }
+}
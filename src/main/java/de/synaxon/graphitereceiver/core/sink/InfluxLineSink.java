@@ -0,0 +1,54 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.core.LanePool;
+import de.synaxon.graphitereceiver.core.PacedEmitter;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+
+/**
+ * InfluxDB line protocol over TCP (telegraf socket_listener or an InfluxDB relay):
+ * {@code group,prefix=..,cluster=..,etype=..,entity=..,instance=..,rollup=..,stattype=.. metric=value timestamp_ns}.
+ */
+public class InfluxLineSink extends AbstractLaneSink {
+
+    public InfluxLineSink(String name, LanePool lanePool, PacedEmitter pacedEmitter, long frequencyInSeconds) {
+        super(name, lanePool, pacedEmitter, frequencyInSeconds);
+    }
+
+    @Override
+    protected void format(DataPoint dataPoint, StringBuilder line) {
+        escape(line, dataPoint.getGroup(), false);
+        appendTag(line, "prefix", dataPoint.getPrefix());
+        appendTag(line, "cluster", dataPoint.getCluster());
+        appendTag(line, "etype", dataPoint.getEntityType());
+        appendTag(line, "entity", dataPoint.getEntity());
+        appendTag(line, "instance", dataPoint.getInstance());
+        appendTag(line, "rollup", dataPoint.getRollup());
+        appendTag(line, "stattype", dataPoint.getStatType());
+        line.append(' ');
+        escape(line, dataPoint.getMetric(), true);
+        line.append('=');
+        this.appendValue(line, dataPoint)
+                .append(' ').append(dataPoint.getEpoch()).append("000000000");
+    }
+
+    private static void appendTag(StringBuilder line, String tag, String value) {
+        if(isEmpty(value)) {
+            return;
+        }
+        line.append(',').append(tag).append('=');
+        escape(line, value, true);
+    }
+
+    /**
+     * Commas and spaces are escaped everywhere, equal signs only in tags and field keys.
+     */
+    private static void escape(StringBuilder line, String value, boolean escapeEquals) {
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == ',' || c == ' ' || (escapeEquals && c == '=')) {
+                line.append('\\');
+            }
+            line.append(c);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.domain.DataPoint;
+
+/**
+ * A MetricSink receives structured datapoints from the MetricsReceiver and writes them to one backend in its
+ * own protocol. Several sinks may be active at the same time, each one with its own connections and batching.
+ *
+ * {@link #write(DataPoint)} is called concurrently from the StatsFeeder worker threads, {@link #open()} and
+ * {@link #close()} once per retrieval.
+ */
+public interface MetricSink {
+
+    String getName();
+
+    /**
+     * Called at the start of each retrieval.
+     */
+    void open();
+
+    /**
+     * Writes one datapoint. The datapoint is reused by the caller and must not be kept.
+     */
+    void write(DataPoint dataPoint);
+
+    /**
+     * @return true if the sink did not manage to send the previous retrieval in time
+     */
+    boolean isBehind();
+
+    /**
+     * Called at the end of each retrieval, all datapoints written during the retrieval must be sent or scheduled.
+     */
+    void close();
+
+    /**
+     * Releases background resources when the receiver stops.
+     */
+    void shutdown();
+}
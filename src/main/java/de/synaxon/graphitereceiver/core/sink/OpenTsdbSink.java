@@ -0,0 +1,56 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.core.LanePool;
+import de.synaxon.graphitereceiver.core.PacedEmitter;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+
+/**
+ * OpenTSDB telnet protocol:
+ * {@code put prefix.group.metric timestamp value cluster=.. etype=.. entity=.. instance=.. rollup=.. stattype=..}.
+ */
+public class OpenTsdbSink extends AbstractLaneSink {
+
+    public OpenTsdbSink(String name, LanePool lanePool, PacedEmitter pacedEmitter, long frequencyInSeconds) {
+        super(name, lanePool, pacedEmitter, frequencyInSeconds);
+    }
+
+    @Override
+    protected void format(DataPoint dataPoint, StringBuilder line) {
+        line.append("put ");
+        sanitize(line, dataPoint.getPrefix());
+        line.append('.');
+        sanitize(line, dataPoint.getGroup());
+        line.append('.');
+        sanitize(line, dataPoint.getMetric());
+        line.append(' ').append(dataPoint.getEpoch()).append(' ');
+        this.appendValue(line, dataPoint);
+        appendTag(line, "cluster", dataPoint.getCluster());
+        appendTag(line, "etype", dataPoint.getEntityType());
+        appendTag(line, "entity", dataPoint.getEntity());
+        appendTag(line, "instance", dataPoint.getInstance());
+        appendTag(line, "rollup", dataPoint.getRollup());
+        appendTag(line, "stattype", dataPoint.getStatType());
+    }
+
+    private static void appendTag(StringBuilder line, String tag, String value) {
+        if(isEmpty(value)) {
+            return;
+        }
+        line.append(' ').append(tag).append('=');
+        sanitize(line, value);
+    }
+
+    /**
+     * OpenTSDB allows letters, digits, '-', '_', '.' and '/' in metric names and tags.
+     */
+    private static void sanitize(StringBuilder line, String value) {
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.' || c == '/') {
+                line.append(c);
+            } else {
+                line.append('_');
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.core.recent.RecentStore;
+import de.synaxon.graphitereceiver.core.recent.RecentStoreServer;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the recent points of every series in a {@link RecentStore} which is queried over the embedded HTTP endpoint
+ * of {@link RecentStoreServer}, so alert polling does not need to read from Graphite.
+ */
+public class RecentStoreSink implements MetricSink {
+
+    private Log logger = LogFactory.getLog(RecentStoreSink.class);
+    private final String name;
+    private final RecentStore store;
+    private final RecentStoreServer server;
+
+    /**
+     * @param server endpoint of the store, may be null
+     */
+    public RecentStoreSink(String name, RecentStore store, RecentStoreServer server) {
+        this.name = name;
+        this.store = store;
+        this.server = server;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public void open() {
+    }
+
+    public void write(DataPoint dataPoint) {
+        this.store.append(dataPoint.getPath(), dataPoint.getEpoch(), dataPoint.getValue());
+    }
+
+    public boolean isBehind() {
+        return false;
+    }
+
+    public void close() {
+        int removed = this.store.purge(System.currentTimeMillis() / 1000);
+        long rejected = this.store.takeRejected();
+        logger.debug("Sink " + this.name + " series: " + this.store.size() + " removed: " + removed + " bytes: " + this.store.getBytes());
+        if(rejected > 0) {
+            logger.warn("Sink " + this.name + " is full, rejected " + rejected + " points of new series.");
+        }
+    }
+
+    public void shutdown() {
+        if(this.server != null) {
+            this.server.stop();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.synaxon.graphitereceiver.core.sink;
+
+import de.synaxon.graphitereceiver.core.LanePool;
+import de.synaxon.graphitereceiver.core.PacedEmitter;
+import de.synaxon.graphitereceiver.core.ValuePrecision;
+import de.synaxon.graphitereceiver.core.recent.RecentStore;
+import de.synaxon.graphitereceiver.core.recent.RecentStoreServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Builds the sinks configured in the "sinks" property, a comma separated list of {@code name:type} or {@code type}.
+ * Supported types are graphite, graphite_tagged, influx, opentsdb, relay (plaintext lines framed for the local
+ * {@link de.synaxon.graphitereceiver.core.relay.Relay}, default 127.0.0.1:2103) and recent (see {@link RecentStoreSink}). Every sink reads its own
+ * {@code <name>_host}, {@code <name>_port} and {@code <name>_lanes} properties, host falls back to "host" and the
+ * Graphite sinks fall back to "port". Values are written with {@code <name>_value_precision}, falling back to
+ * "value_precision" (see {@link ValuePrecision}). Without "sinks" a single plaintext Graphite sink named graphite is created.
+ */
+public class SinkFactory {
+
+    private static Log logger = LogFactory.getLog(SinkFactory.class);
+
+    /**
+     * @param props receiver properties
+     * @param lanes default number of lanes per sink
+     * @param disconnectAfter forced reconnect after this number of lines, -1 to disable
+     * @param pacedWindow fraction of the window for paced emission, 0 to disable
+     * @param shedLow true if paced emission drops the low priority output unsent when the next retrieval starts
+     * @param frequencyInSeconds StatsFeeder frequency
+     */
+    public static List<MetricSink> createSinks(Properties props, int lanes, int disconnectAfter, double pacedWindow, boolean shedLow, long frequencyInSeconds) {
+        List<MetricSink> sinks = new LinkedList<MetricSink>();
+        String sinkList = props.getProperty("sinks");
+        if(sinkList == null || sinkList.trim().isEmpty()) {
+            sinkList = "graphite";
+        }
+        for(String entry : sinkList.split(",")) {
+            entry = entry.trim();
+            if(entry.isEmpty()) {
+                continue;
+            }
+            String name = entry;
+            String type = entry;
+            int separator = entry.indexOf(':');
+            if(separator > 0) {
+                name = entry.substring(0, separator).trim();
+                type = entry.substring(separator + 1).trim();
+            }
+            MetricSink sink = createSink(props, name, type, lanes, disconnectAfter, pacedWindow, shedLow, frequencyInSeconds);
+            if(sink != null) {
+                sinks.add(sink);
+            }
+        }
+        return sinks;
+    }
+
+    private static MetricSink createSink(Properties props, String name, String type, int lanes, int disconnectAfter, double pacedWindow, boolean shedLow, long frequencyInSeconds) {
+        if("recent".equals(type)) {
+            return createRecentStoreSink(props, name);
+        }
+        boolean graphite = "graphite".equals(type) || "graphite_tagged".equals(type);
+        String defaultPort;
+        if(graphite) {
+            defaultPort = props.getProperty("port", "2003");
+        } else if("influx".equals(type)) {
+            defaultPort = "8094";
+        } else if("opentsdb".equals(type)) {
+            defaultPort = "4242";
+        } else if("relay".equals(type)) {
+            defaultPort = "2103";
+        } else {
+            logger.error("Sink " + name + " has an unknown type: " + type);
+            return null;
+        }
+        boolean relay = "relay".equals(type);
+        String host = props.getProperty(name + "_host", relay ? "127.0.0.1" : props.getProperty("host"));
+        int port;
+        int sinkLanes;
+        try {
+            port = Integer.parseInt(props.getProperty(name + "_port", defaultPort));
+            sinkLanes = Integer.parseInt(props.getProperty(name + "_lanes", String.valueOf(lanes)));
+        } catch (NumberFormatException e) {
+            logger.error("Sink " + name + " port or lanes is not a number.");
+            return null;
+        }
+
+        // the relay balances among the carbon nodes, the connection to it is kept
+        LanePool lanePool = new LanePool(sinkLanes, host, port, relay ? -1 : disconnectAfter);
+        if(relay) {
+            lanePool.setFramed(name);
+        }
+        PacedEmitter pacedEmitter = (pacedWindow > 0) ? new PacedEmitter(pacedWindow, shedLow) : null;
+        logger.info("Sink " + name + " type: " + type + " host: " + host + " port: " + port + " lanes: " + lanePool.size());
+
+        AbstractLaneSink sink;
+        if("graphite".equals(type) || relay) {
+            sink = new GraphitePlaintextSink(name, lanePool, pacedEmitter, frequencyInSeconds);
+        } else if("graphite_tagged".equals(type)) {
+            sink = new GraphiteTaggedSink(name, lanePool, pacedEmitter, frequencyInSeconds);
+        } else if("influx".equals(type)) {
+            sink = new InfluxLineSink(name, lanePool, pacedEmitter, frequencyInSeconds);
+        } else {
+            sink = new OpenTsdbSink(name, lanePool, pacedEmitter, frequencyInSeconds);
+        }
+        sink.setValuePrecision(new ValuePrecision(props.getProperty(name + "_value_precision", props.getProperty("value_precision"))));
+        return sink;
+    }
+
+    /**
+     * The recent store keeps {@code <name>_window} seconds of at most {@code <name>_max_series} series and is
+     * queried on {@code <name>_bind}:{@code <name>_port}, port 0 disables the endpoint.
+     */
+    private static MetricSink createRecentStoreSink(Properties props, String name) {
+        long window;
+        int maxSeries;
+        int port;
+        int maxResults;
+        try {
+            window = Long.parseLong(props.getProperty(name + "_window", "900"));
+            maxSeries = Integer.parseInt(props.getProperty(name + "_max_series", "500000"));
+            port = Integer.parseInt(props.getProperty(name + "_port", "8077"));
+            maxResults = Integer.parseInt(props.getProperty(name + "_max_results", "10000"));
+        } catch (NumberFormatException e) {
+            logger.error("Sink " + name + " window, max_series, port or max_results is not a number.");
+            return null;
+        }
+        String bind = props.getProperty(name + "_bind", "127.0.0.1");
+        RecentStore store = new RecentStore(window, maxSeries);
+        RecentStoreServer server = null;
+        if(port > 0) {
+            try {
+                server = new RecentStoreServer(store, bind, port, maxResults);
+            } catch (IOException e) {
+                logger.error("Sink " + name + " can't start the endpoint on " + bind + ":" + port + ", the store is not queryable.", e);
+            }
+        }
+        logger.info("Sink " + name + " type: recent window: " + window + " s max series: " + maxSeries + " endpoint: " + bind + ":" + port);
+        return new RecentStoreSink(name, store, server);
+    }
+}
@@ -0,0 +1,110 @@
+package de.synaxon.graphitereceiver.domain;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything the receiver derives from a counter name like "cpu.usage.average", computed once per counter and
+ * immutable afterwards.
+ *
+ * The leaf of the node path (metric, rollup and stat type) is pre-built for the stat types vSphere uses.
+ */
+public class CounterDescriptor {
+
+    private static final String[] STAT_TYPES = { "absolute", "delta", "rate" };
+
+    private final String counterName;
+    private final String group;
+    private final String metric;
+    private final String rollupName;
+    private final Rollup rollup;
+    private final boolean percent;
+    private final String[] leaves = new String[STAT_TYPES.length];
+    private final String[] leavesRollupInTheEnd = new String[STAT_TYPES.length];
+    private final List<CounterDescriptor> derived;
+
+    /**
+     * @param counterName counter name as "group.metric.rollup", the metric may contain dots, see {@link #isValid}
+     */
+    public CounterDescriptor(String counterName) {
+        this(counterName, Collections.<CounterDescriptor>emptyList());
+    }
+
+    /**
+     * @param derived descriptors of the rollups computed from the samples of this counter, e.g. cpu.usage.maximum
+     *                for cpu.usage.average
+     */
+    public CounterDescriptor(String counterName, List<CounterDescriptor> derived) {
+        this.counterName = counterName;
+        this.derived = Collections.unmodifiableList(derived);
+        int first = counterName.indexOf('.');
+        int last = counterName.lastIndexOf('.');
+        this.group = counterName.substring(0, first);
+        // like Utils.splitCounterName a counter "group.metric" has the rollup "metric"
+        this.metric = (first == last) ? counterName.substring(first + 1) : counterName.substring(first + 1, last);
+        this.rollupName = counterName.substring(last + 1);
+        this.rollup = Rollup.fromName(this.rollupName);
+        this.percent = (this.metric + "_").contains("_percent_");
+        for(int i = 0; i < STAT_TYPES.length; i++) {
+            this.leaves[i] = this.buildLeaf(STAT_TYPES[i], false);
+            this.leavesRollupInTheEnd[i] = this.buildLeaf(STAT_TYPES[i], true);
+        }
+    }
+
+    /**
+     * @return true if the counter name has at least a group and a metric
+     */
+    public static boolean isValid(String counterName) {
+        return counterName != null && counterName.indexOf('.') > 0;
+    }
+
+    public String getCounterName() {
+        return counterName;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public String getRollupName() {
+        return rollupName;
+    }
+
+    public Rollup getRollup() {
+        return rollup;
+    }
+
+    public List<CounterDescriptor> getDerived() {
+        return derived;
+    }
+
+    /**
+     * @return true if the values are percentages in hundredths and are scaled to percent
+     */
+    public boolean isPercent() {
+        return percent;
+    }
+
+    /**
+     * @return the last node path element, metricName_rollup_statType or metricName_statType_rollup
+     */
+    public String getLeaf(String statType, boolean placeRollupInTheEnd) {
+        for(int i = 0; i < STAT_TYPES.length; i++) {
+            if(STAT_TYPES[i].equals(statType)) {
+                return placeRollupInTheEnd ? this.leavesRollupInTheEnd[i] : this.leaves[i];
+            }
+        }
+        return this.buildLeaf(statType, placeRollupInTheEnd);
+    }
+
+    private String buildLeaf(String statType, boolean placeRollupInTheEnd) {
+        if(placeRollupInTheEnd) {
+            return this.metric + "_" + statType + "_" + this.rollupName;
+        }
+        return this.metric + "_" + this.rollupName + "_" + statType;
+    }
+}
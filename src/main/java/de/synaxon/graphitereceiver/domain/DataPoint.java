@@ -0,0 +1,192 @@
+package de.synaxon.graphitereceiver.domain;
+
+/**
+ * One value of one series before it is flattened into a protocol line.
+ *
+ * The receiver fills a DataPoint once per metric set and only changes value and epoch for every sample, so a sink
+ * must not keep a reference to it after {@code write} returns.
+ */
+public class DataPoint {
+
+    /**
+     * Destination of datapoints written to all sinks.
+     */
+    public static final int ALL_DESTINATIONS = -1;
+
+    private String prefix;
+    private String cluster;
+    private String entityType;
+    private String entity;
+    private String group;
+    private String instance;
+    private String metric;
+    private String statType;
+    private String rollup;
+    private String path;
+    private double value;
+    private long epoch;
+    private Priority priority = Priority.NORMAL;
+    private boolean traced;
+    private int destination = ALL_DESTINATIONS;
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(String cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @return short entity type as used by use_entity_type_prefix: vm, esx, dts or rp
+     */
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public void setEntityType(String entityType) {
+        this.entityType = entityType;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public void setEntity(String entity) {
+        this.entity = entity;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    /**
+     * @return instance name, null or empty for the aggregate of the entity
+     */
+    public String getInstance() {
+        return instance;
+    }
+
+    public void setInstance(String instance) {
+        this.instance = instance;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public void setMetric(String metric) {
+        this.metric = metric;
+    }
+
+    public String getStatType() {
+        return statType;
+    }
+
+    public void setStatType(String statType) {
+        this.statType = statType;
+    }
+
+    public String getRollup() {
+        return rollup;
+    }
+
+    public void setRollup(String rollup) {
+        this.rollup = rollup;
+    }
+
+    /**
+     * @return flattened Graphite path as rendered by the PathTemplate
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public void setValue(double value) {
+        this.value = value;
+    }
+
+    /**
+     * @return timestamp in seconds since the epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return true if the stages of the series are recorded by the SeriesTracer
+     */
+    public boolean isTraced() {
+        return traced;
+    }
+
+    public void setTraced(boolean traced) {
+        this.traced = traced;
+    }
+
+    /**
+     * @return index of the destination group of the Router, {@link #ALL_DESTINATIONS} for all sinks
+     */
+    public int getDestination() {
+        return destination;
+    }
+
+    public void setDestination(int destination) {
+        this.destination = destination;
+    }
+
+    /**
+     * @return a copy which may be kept after {@code write} returns
+     */
+    public DataPoint copy() {
+        DataPoint copy = new DataPoint();
+        copy.prefix = this.prefix;
+        copy.cluster = this.cluster;
+        copy.entityType = this.entityType;
+        copy.entity = this.entity;
+        copy.group = this.group;
+        copy.instance = this.instance;
+        copy.metric = this.metric;
+        copy.statType = this.statType;
+        copy.rollup = this.rollup;
+        copy.path = this.path;
+        copy.value = this.value;
+        copy.epoch = this.epoch;
+        copy.priority = this.priority;
+        copy.traced = this.traced;
+        copy.destination = this.destination;
+        return copy;
+    }
+}
@@ -0,0 +1,141 @@
+package de.synaxon.graphitereceiver.domain;
+
+/**
+ * Everything the receiver derives from the entity of a metric set, computed once per entity and shared by all
+ * counters of that entity.
+ */
+public class EntityDescriptor {
+
+    private String entityName;
+    private EntityType entityType;
+    private String parsedName;
+    private String entityKey;
+    private String cluster;
+    private String eName;
+    private String hostName;
+    private boolean hostMapped;
+    private MapPrefixSuffix mapPrefixSuffix;
+    private boolean valid;
+    private Route route;
+    private int generation;
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public void setEntityName(String entityName) {
+        this.entityName = entityName;
+    }
+
+    public EntityType getEntityType() {
+        return entityType;
+    }
+
+    public void setEntityType(EntityType entityType) {
+        this.entityType = entityType;
+    }
+
+    /**
+     * @return entity name as returned by MOREFRetriever.parseEntityName, empty for other entity types
+     */
+    public String getParsedName() {
+        return parsedName;
+    }
+
+    public void setParsedName(String parsedName) {
+        this.parsedName = parsedName;
+    }
+
+    /**
+     * @return parsed name with spaces replaced by "_", the key of the cluster map
+     */
+    public String getEntityKey() {
+        return entityKey;
+    }
+
+    public void setEntityKey(String entityKey) {
+        this.entityKey = entityKey;
+    }
+
+    /**
+     * @return cluster name after the cluster rules, null if unknown
+     */
+    public String getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(String cluster) {
+        this.cluster = cluster;
+    }
+
+    public String getEName() {
+        return eName;
+    }
+
+    public void setEName(String eName) {
+        this.eName = eName;
+    }
+
+    /**
+     * @return VM name after the hostName rules, null for other entity types
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    public void setHostName(String hostName) {
+        this.hostName = hostName;
+    }
+
+    /**
+     * @return true if the alternate VM prefix/suffix map applies to this entity
+     */
+    public boolean isHostMapped() {
+        return hostMapped;
+    }
+
+    public void setHostMapped(boolean hostMapped) {
+        this.hostMapped = hostMapped;
+    }
+
+    /**
+     * @return the alternate prefix/suffix entry, null if the VM is not in the map
+     */
+    public MapPrefixSuffix getMapPrefixSuffix() {
+        return mapPrefixSuffix;
+    }
+
+    public void setMapPrefixSuffix(MapPrefixSuffix mapPrefixSuffix) {
+        this.mapPrefixSuffix = mapPrefixSuffix;
+    }
+
+    /**
+     * @return false if the entity name could not be parsed
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    /**
+     * @return route of the series of the entity, null without routing rules
+     */
+    public Route getRoute() {
+        return route;
+    }
+
+    public void setRoute(Route route) {
+        this.route = route;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(int generation) {
+        this.generation = generation;
+    }
+}
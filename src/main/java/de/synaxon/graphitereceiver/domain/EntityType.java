@@ -0,0 +1,86 @@
+package de.synaxon.graphitereceiver.domain;
+
+/**
+ * Managed entity types known to the receiver, with the prefix used by use_entity_type_prefix.
+ */
+public enum EntityType {
+
+    VIRTUAL_MACHINE("[VirtualMachine]", "vm"),
+    HOST_SYSTEM("[HostSystem]", "esx"),
+    DATASTORE("[Datastore]", "dts"),
+    RESOURCE_POOL("[ResourcePool]", "rp"),
+    OTHER("", "");
+
+    private final String marker;
+    private final String shortName;
+
+    EntityType(String marker, String shortName) {
+        this.marker = marker;
+        this.shortName = shortName;
+    }
+
+    /**
+     * @param entityName StatsFeeder entity name, e.g. "[VirtualMachine]vm01"
+     */
+    public static EntityType fromEntityName(String entityName) {
+        for(EntityType type : values()) {
+            if(type != OTHER && entityName.contains(type.marker)) {
+                return type;
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * @return the vSphere managed object type, e.g. VirtualMachine, empty for unknown types
+     */
+    public String getManagedObjectType() {
+        return (this == OTHER) ? "" : this.marker.substring(1, this.marker.length() - 1);
+    }
+
+    /**
+     * @return vm, esx, dts, rp or empty for unknown types
+     */
+    public String getShortName() {
+        return shortName;
+    }
+
+    /**
+     * @return true for the types kept in the cluster map
+     */
+    public boolean isClustered() {
+        return this != OTHER;
+    }
+
+    /**
+     * @return true for the types {@link de.synaxon.graphitereceiver.utils.Utils#resolveClusters} can look up
+     */
+    public boolean isResolvable() {
+        return this == VIRTUAL_MACHINE || this == HOST_SYSTEM;
+    }
+
+    /**
+     * Datastores and resource pools are kept in the cluster map with their type marker, so their names can't
+     * collide with VM and ESX names.
+     *
+     * @param entityKey entity name with spaces replaced by "_"
+     * @return key of the entity in the cluster map
+     */
+    public String getClusterKey(String entityKey) {
+        return (this == DATASTORE || this == RESOURCE_POOL) ? this.marker + entityKey : entityKey;
+    }
+
+    /**
+     * @return the cluster map key of a managed object name as found by the vCenter traversal
+     */
+    public static String clusterKey(String managedObjectType, String name) {
+        String entityKey = name.replace(" ", "_");
+        if("Datastore".equals(managedObjectType)) {
+            return DATASTORE.getClusterKey(entityKey);
+        }
+        if("ResourcePool".equals(managedObjectType) || "VirtualApp".equals(managedObjectType)) {
+            return RESOURCE_POOL.getClusterKey(entityKey);
+        }
+        return entityKey;
+    }
+}
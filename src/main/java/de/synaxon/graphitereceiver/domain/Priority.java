@@ -0,0 +1,11 @@
+package de.synaxon.graphitereceiver.domain;
+
+/**
+ * Priority class of a series. High priority output is sent first and never shed, low priority output is shed
+ * first when the receiver falls behind its retrieval frequency.
+ */
+public enum Priority {
+    HIGH,
+    NORMAL,
+    LOW
+}
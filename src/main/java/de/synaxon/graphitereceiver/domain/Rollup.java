@@ -0,0 +1,36 @@
+package de.synaxon.graphitereceiver.domain;
+
+/**
+ * Rollup types of vSphere performance counters, the last part of the counter name.
+ */
+public enum Rollup {
+
+    AVERAGE("average"),
+    LATEST("latest"),
+    MAXIMUM("maximum"),
+    MINIMUM("minimum"),
+    SUMMATION("summation"),
+    UNSUPPORTED("");
+
+    private final String rollupName;
+
+    Rollup(String rollupName) {
+        this.rollupName = rollupName;
+    }
+
+    /**
+     * @return the rollup, UNSUPPORTED for rollups the receiver can't aggregate (e.g. none)
+     */
+    public static Rollup fromName(String rollupName) {
+        for(Rollup rollup : values()) {
+            if(rollup != UNSUPPORTED && rollup.rollupName.equals(rollupName)) {
+                return rollup;
+            }
+        }
+        return UNSUPPORTED;
+    }
+
+    public String getRollupName() {
+        return rollupName;
+    }
+}
@@ -0,0 +1,94 @@
+package de.synaxon.graphitereceiver.domain;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The destination group the series of an entity are sent to, with the prefix of their paths. A route of an entity
+ * matched by routing rules with a counter group condition resolves the destination per counter group, once per group.
+ */
+public class Route {
+
+    /**
+     * Series without matching routing rule, they are dropped.
+     */
+    public static final Route UNROUTED = new Route(-1, "", null);
+
+    private final int destination;
+    private final String name;
+    private final String prefix;
+    private final Route fallback;
+    private final Pattern[] groups;
+    private final Route[] groupRoutes;
+    private final Map<String, Route> resolved;
+
+    public Route(int destination, String name, String prefix) {
+        this.destination = destination;
+        this.name = name;
+        this.prefix = prefix;
+        this.fallback = null;
+        this.groups = null;
+        this.groupRoutes = null;
+        this.resolved = null;
+    }
+
+    /**
+     * @param fallback route of the counter groups matching none of the groups
+     * @param groups counter group patterns in rule order
+     * @param groupRoutes route of each counter group pattern
+     */
+    public Route(Route fallback, List<Pattern> groups, List<Route> groupRoutes) {
+        this.destination = fallback.destination;
+        this.name = fallback.name;
+        this.prefix = fallback.prefix;
+        this.fallback = fallback;
+        this.groups = groups.toArray(new Pattern[groups.size()]);
+        this.groupRoutes = groupRoutes.toArray(new Route[groupRoutes.size()]);
+        this.resolved = new ConcurrentHashMap<String, Route>();
+    }
+
+    /**
+     * @return the route of the counter group
+     */
+    public Route forGroup(String group) {
+        if(this.groups == null) {
+            return this;
+        }
+        if(group == null) {
+            return this.fallback;
+        }
+        Route route = this.resolved.get(group);
+        if(route == null) {
+            route = this.fallback;
+            for(int i = 0; i < this.groups.length; i++) {
+                if(this.groups[i].matcher(group).matches()) {
+                    route = this.groupRoutes[i];
+                    break;
+                }
+            }
+            this.resolved.put(group, route);
+        }
+        return route;
+    }
+
+    public boolean isRouted() {
+        return this.destination >= 0;
+    }
+
+    /**
+     * @return index of the destination group, see {@link DataPoint#getDestination()}
+     */
+    public int getDestination() {
+        return destination;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+}
@@ -14,10 +14,24 @@ import java.util.TimeZone;
 public class Calculate {
 
     private static final Log logger = LogFactory.getLog(Calculate.class);
-    private static final DateFormat SDF = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    // SimpleDateFormat is not thread safe, every StatsFeeder worker thread gets its own instance
+    private static final ThreadLocal<DateFormat> SDF = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return dateFormat;
+        }
+    };
+
+    /**
+     * @return epoch seconds of a StatsFeeder timestamp
+     */
+    public static long parseEpoch(String timestamp) throws ParseException {
+        return SDF.get().parse(timestamp).getTime() / 1000;
+    }
 
     public static String average(Iterator<PerfMetric> metrics) throws ParseException {
-        SDF.setTimeZone(TimeZone.getTimeZone("UTC"));
         int size = 0;
         double value = 0;
         String timestamp = "";
@@ -28,11 +42,10 @@ public class Calculate {
             timestamp = perfMetric.getTimestamp();
             size++;
         }
-        return String.valueOf(value/size) + " " + (SDF.parse(timestamp).getTime() / 1000);
+        return String.valueOf(value/size) + " " + (SDF.get().parse(timestamp).getTime() / 1000);
     }
 
     public static String latest(Iterator<PerfMetric> metrics) throws ParseException {
-        SDF.setTimeZone(TimeZone.getTimeZone("UTC"));
         String value = "";
         String timestamp = "";
         while (metrics.hasNext()) {
@@ -40,11 +53,10 @@ public class Calculate {
             value = perfMetric.getValue();
             timestamp = perfMetric.getTimestamp();
         }
-        return value + " " + (SDF.parse(timestamp).getTime() / 1000);
+        return value + " " + (SDF.get().parse(timestamp).getTime() / 1000);
     }
 
     public static String maximun(Iterator<PerfMetric> metrics) throws ParseException {
-        SDF.setTimeZone(TimeZone.getTimeZone("UTC"));
         double value = 0;
         String timestamp = "";
         while (metrics.hasNext()) {
@@ -55,11 +67,10 @@ public class Calculate {
             }
             timestamp = perfMetric.getTimestamp();
         }
-        return String.valueOf(value) + " " + (SDF.parse(timestamp).getTime() / 1000);
+        return String.valueOf(value) + " " + (SDF.get().parse(timestamp).getTime() / 1000);
     }
 
     public static String minimun(Iterator<PerfMetric> metrics) throws ParseException {
-        SDF.setTimeZone(TimeZone.getTimeZone("UTC"));
         double value = 0;
         String timestamp = "";
         while (metrics.hasNext()) {
@@ -70,11 +81,10 @@ public class Calculate {
             }
             timestamp = perfMetric.getTimestamp();
         }
-        return String.valueOf(value) + " " + (SDF.parse(timestamp).getTime() / 1000);
+        return String.valueOf(value) + " " + (SDF.get().parse(timestamp).getTime() / 1000);
     }
 
     public static String sumation(Iterator<PerfMetric> metrics) throws ParseException {
-        SDF.setTimeZone(TimeZone.getTimeZone("UTC"));
         double value = 0;
         String timestamp = "";
 
@@ -89,6 +99,6 @@ public class Calculate {
             count++;
             values = values + " " + value;
         }
-        return String.valueOf(value) + " " + (SDF.parse(timestamp).getTime() / 1000);
+        return String.valueOf(value) + " " + (SDF.get().parse(timestamp).getTime() / 1000);
     }
 }
@@ -0,0 +1,147 @@
+package de.synaxon.graphitereceiver.utils;
+
+/**
+ * Open addressing hash map from long to long without boxing. Every entry also carries an int stamp
+ * (usually the retrieval number of the last update) so stale entries can be evicted with {@link #evictOlderThan(int)}.
+ *
+ * The key 0 is reserved for empty slots, use {@link #hash(CharSequence)} to build keys. The map is not thread safe.
+ */
+public class LongLongHashMap {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private long[] values;
+    private int[] stamps;
+    private int size;
+    private int threshold;
+
+    public LongLongHashMap(int expectedSize) {
+        int capacity = 16;
+        while(capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        this.allocate(capacity);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the characters, never 0.
+     */
+    public static long hash(CharSequence value) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return (hash == 0) ? 1 : hash;
+    }
+
+    public boolean containsKey(long key) {
+        return this.keys[this.indexOf(key)] == key;
+    }
+
+    /**
+     * @return the value for key or defaultValue if the key is unknown
+     */
+    public long get(long key, long defaultValue) {
+        int index = this.indexOf(key);
+        return (this.keys[index] == key) ? this.values[index] : defaultValue;
+    }
+
+    public int getStamp(long key, int defaultValue) {
+        int index = this.indexOf(key);
+        return (this.keys[index] == key) ? this.stamps[index] : defaultValue;
+    }
+
+    public void put(long key, long value, int stamp) {
+        int index = this.indexOf(key);
+        if(this.keys[index] != key) {
+            this.keys[index] = key;
+            if(++this.size > this.threshold) {
+                this.values[index] = value;
+                this.stamps[index] = stamp;
+                this.allocate(this.keys.length << 1);
+                return;
+            }
+        }
+        this.values[index] = value;
+        this.stamps[index] = stamp;
+    }
+
+    /**
+     * Removes all entries with a stamp lower than minStamp.
+     *
+     * @return number of evicted entries
+     */
+    public int evictOlderThan(int minStamp) {
+        int before = this.size;
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        int[] oldStamps = this.stamps;
+        this.allocate(oldKeys.length);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != 0 && oldStamps[i] >= minStamp) {
+                this.insert(oldKeys[i], oldValues[i], oldStamps[i]);
+            }
+        }
+        return before - this.size;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public void clear() {
+        this.allocate(this.keys.length);
+    }
+
+    /**
+     * Calls the visitor for every entry, used to persist the map.
+     */
+    public void forEach(Visitor visitor) {
+        for(int i = 0; i < this.keys.length; i++) {
+            if(this.keys[i] != 0) {
+                visitor.visit(this.keys[i], this.values[i], this.stamps[i]);
+            }
+        }
+    }
+
+    public interface Visitor {
+        void visit(long key, long value, int stamp);
+    }
+
+    private int indexOf(long key) {
+        int mask = this.keys.length - 1;
+        int index = (int) (key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+        while(this.keys[index] != 0 && this.keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        int[] oldStamps = this.stamps;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.stamps = new int[capacity];
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.size = 0;
+        if(oldKeys != null && oldKeys.length != capacity) {
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != 0) {
+                    this.insert(oldKeys[i], oldValues[i], oldStamps[i]);
+                }
+            }
+        }
+    }
+
+    private void insert(long key, long value, int stamp) {
+        int index = this.indexOf(key);
+        this.keys[index] = key;
+        this.values[index] = value;
+        this.stamps[index] = stamp;
+        this.size++;
+    }
+}
@@ -0,0 +1,109 @@
+package de.synaxon.graphitereceiver.utils;
+
+import java.math.BigDecimal;
+
+/**
+ * NumberEncoder appends values as ASCII digits directly to the line, without the intermediate Strings of
+ * {@code String.valueOf(double)}.
+ *
+ * Integer values are written without decimal point. Other values are written with the fewest decimals (up to
+ * {@link #MAX_DECIMALS}) which parse back to the same double, or rounded half up to a fixed number of decimals with the
+ * trailing zeros removed. Values outside of the range of exact long arithmetic, NaN and infinity fall back to
+ * {@code StringBuilder.append(double)}.
+ */
+public class NumberEncoder {
+
+    /**
+     * Decimals of the shortest round trip mode.
+     */
+    public static final int SHORTEST = -1;
+
+    public static final int MAX_DECIMALS = 15;
+
+    private static final long EXACT_LIMIT = 1L << 53;
+
+    // fractions of the scaled value closer than this (plus the error of the product) to .5 are rounded on the decimal digits
+    private static final double TIE_DISTANCE = 1e-7;
+
+    private static final double[] POW10 = new double[MAX_DECIMALS + 1];
+    private static final long[] LONG_POW10 = new long[MAX_DECIMALS + 1];
+
+    static {
+        POW10[0] = 1;
+        LONG_POW10[0] = 1;
+        for(int i = 1; i <= MAX_DECIMALS; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+            LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+        }
+    }
+
+    /**
+     * @param decimals number of decimals, {@link #SHORTEST} for the shortest representation which round trips
+     */
+    public static StringBuilder append(StringBuilder out, double value, int decimals) {
+        if(Double.isNaN(value) || Double.isInfinite(value)) {
+            return out.append(value);
+        }
+        double abs = Math.abs(value);
+        if(abs < EXACT_LIMIT && value == (long) value) {
+            return out.append((long) value);
+        }
+        if(decimals == SHORTEST) {
+            for(int d = 1; d <= MAX_DECIMALS; d++) {
+                double scaled = abs * POW10[d];
+                if(scaled >= EXACT_LIMIT) {
+                    break;
+                }
+                long digits = Math.round(scaled);
+                // long to double and the division by an exact power of ten are correctly rounded, so this is
+                // the double a reader parses from the digits
+                if(digits / POW10[d] == abs) {
+                    return appendScaled(out, value < 0, digits, d);
+                }
+            }
+            return out.append(value);
+        }
+        int d = Math.min(Math.max(decimals, 0), MAX_DECIMALS);
+        double scaled = abs * POW10[d];
+        if(scaled >= EXACT_LIMIT) {
+            return out.append(value);
+        }
+        long digits = Math.round(scaled);
+        if(Math.abs(scaled - Math.floor(scaled) - 0.5) < TIE_DISTANCE + scaled * 1e-15) {
+            // the product may be rounded across the tie, rare enough to decide on the exact decimal digits
+            digits = roundDecimal(abs, d);
+        }
+        return appendScaled(out, value < 0, digits, d);
+    }
+
+    /**
+     * Rounds the decimal representation of the value half up to the given decimals, as String.format does.
+     */
+    private static long roundDecimal(double abs, int decimals) {
+        return new BigDecimal(Double.toString(abs)).setScale(decimals, BigDecimal.ROUND_HALF_UP).unscaledValue().longValue();
+    }
+
+    /**
+     * Appends digits / 10^decimals without trailing zeros.
+     */
+    private static StringBuilder appendScaled(StringBuilder out, boolean negative, long digits, int decimals) {
+        while(decimals > 0 && digits % 10 == 0) {
+            digits /= 10;
+            decimals--;
+        }
+        if(negative && digits != 0) {
+            out.append('-');
+        }
+        long integer = digits / LONG_POW10[decimals];
+        out.append(integer);
+        if(decimals == 0) {
+            return out;
+        }
+        out.append('.');
+        long fraction = digits - integer * LONG_POW10[decimals];
+        for(int i = decimals - 1; i >= 0; i--) {
+            out.append((char) ('0' + (fraction / LONG_POW10[i]) % 10));
+        }
+        return out;
+    }
+}
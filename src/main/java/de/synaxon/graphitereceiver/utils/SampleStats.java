@@ -0,0 +1,73 @@
+package de.synaxon.graphitereceiver.utils;
+
+import com.vmware.ee.statsfeeder.PerfMetricSet.PerfMetric;
+import de.synaxon.graphitereceiver.domain.Rollup;
+
+import java.text.ParseException;
+import java.util.Iterator;
+
+/**
+ * SampleStats reads the samples of a metric set once and answers every rollup from the result, so several rollups
+ * of one counter cost one pass over the samples.
+ */
+public class SampleStats {
+
+    private int count;
+    private double sum;
+    private double min;
+    private double max;
+    private double latest;
+    private long epoch;
+
+    /**
+     * Reads all samples, the epoch is the one of the newest sample as in {@link Calculate}.
+     */
+    public void read(Iterator<PerfMetric> metrics) throws ParseException {
+        this.count = 0;
+        this.sum = 0;
+        this.min = Double.MAX_VALUE;
+        this.max = -Double.MAX_VALUE;
+        String timestamp = null;
+        while(metrics.hasNext()) {
+            PerfMetric metric = metrics.next();
+            double value = Double.parseDouble(metric.getValue());
+            this.sum += value;
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+            this.latest = value;
+            timestamp = metric.getTimestamp();
+            this.count++;
+        }
+        if(timestamp != null) {
+            this.epoch = Calculate.parseEpoch(timestamp);
+        }
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    public long getEpoch() {
+        return this.epoch;
+    }
+
+    /**
+     * @return the value of the rollup, NaN for UNSUPPORTED
+     */
+    public double getValue(Rollup rollup) {
+        switch (rollup) {
+            case AVERAGE:
+                return this.sum / this.count;
+            case LATEST:
+                return this.latest;
+            case MAXIMUM:
+                return this.max;
+            case MINIMUM:
+                return this.min;
+            case SUMMATION:
+                return this.sum;
+            default:
+                return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.synaxon.graphitereceiver.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * SegmentedLongMap maps 64 bit series hashes to a long value with the retrieval stamp of the last update, in
+ * {@link LongLongHashMap} segments locked separately so the worker threads rarely contend. Entries not updated for
+ * some retrievals are evicted, the entries are saved with the snapshot as count followed by (hash, value) pairs.
+ */
+public class SegmentedLongMap {
+
+    private static final int SEGMENTS = 16;
+
+    private final LongLongHashMap[] segments = new LongLongHashMap[SEGMENTS];
+
+    /**
+     * @param expectedSegmentSize initial capacity of every segment
+     */
+    public SegmentedLongMap(int expectedSegmentSize) {
+        for(int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new LongLongHashMap(expectedSegmentSize);
+        }
+    }
+
+    public long get(long key, long defaultValue) {
+        LongLongHashMap segment = this.segment(key);
+        synchronized (segment) {
+            return segment.get(key, defaultValue);
+        }
+    }
+
+    public void put(long key, long value, int stamp) {
+        LongLongHashMap segment = this.segment(key);
+        synchronized (segment) {
+            segment.put(key, value, stamp);
+        }
+    }
+
+    /**
+     * Sets the value if the key is new or the value is greater than the current one.
+     */
+    public void putIfGreater(long key, long value, int stamp) {
+        LongLongHashMap segment = this.segment(key);
+        synchronized (segment) {
+            if(!segment.containsKey(key) || value > segment.get(key, 0)) {
+                segment.put(key, value, stamp);
+            }
+        }
+    }
+
+    /**
+     * Sets the stamp of the key, the value is kept.
+     *
+     * @return false if the key is not present
+     */
+    public boolean touch(long key, int stamp) {
+        LongLongHashMap segment = this.segment(key);
+        synchronized (segment) {
+            if(!segment.containsKey(key)) {
+                return false;
+            }
+            if(segment.getStamp(key, stamp) != stamp) {
+                segment.put(key, segment.get(key, 0), stamp);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of evicted entries with a stamp older than minStamp
+     */
+    public int evictOlderThan(int minStamp) {
+        int evicted = 0;
+        for(LongLongHashMap segment : this.segments) {
+            synchronized (segment) {
+                evicted += segment.evictOlderThan(minStamp);
+            }
+        }
+        return evicted;
+    }
+
+    public int size() {
+        int size = 0;
+        for(LongLongHashMap segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes all entries as count followed by (hash, value) pairs.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        long[][][] copies = new long[SEGMENTS][][];
+        int count = 0;
+        for(int s = 0; s < SEGMENTS; s++) {
+            LongLongHashMap segment = this.segments[s];
+            synchronized (segment) {
+                final long[][] entries = new long[][] { new long[segment.size()], new long[segment.size()] };
+                segment.forEach(new LongLongHashMap.Visitor() {
+                    private int index;
+
+                    public void visit(long key, long value, int stamp) {
+                        entries[0][index] = key;
+                        entries[1][index++] = value;
+                    }
+                });
+                copies[s] = entries;
+                count += entries[0].length;
+            }
+        }
+        out.writeInt(count);
+        for(long[][] entries : copies) {
+            for(int i = 0; i < entries[0].length; i++) {
+                out.writeLong(entries[0][i]);
+                out.writeLong(entries[1][i]);
+            }
+        }
+    }
+
+    /**
+     * Reads entries written by {@link #writeTo(DataOutput)} with the given stamp, keys already present are kept.
+     */
+    public void readFrom(DataInput in, int stamp) throws IOException {
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            long key = in.readLong();
+            long value = in.readLong();
+            LongLongHashMap segment = this.segment(key);
+            synchronized (segment) {
+                if(!segment.containsKey(key)) {
+                    segment.put(key, value, stamp);
+                }
+            }
+        }
+    }
+
+    private LongLongHashMap segment(long key) {
+        return this.segments[(int) (key >>> 60) & (SEGMENTS - 1)];
+    }
+}
@@ -0,0 +1,57 @@
+package de.synaxon.graphitereceiver.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated from many threads. Every thread adds to its own stripe, the stripes are summed on read,
+ * so concurrent StatsFeeder workers do not contend on a single value.
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = 32;
+    // 8 longs apart so that two stripes do not share a cache line
+    private static final int PADDING = 8;
+    private static final AtomicInteger nextStripe = new AtomicInteger();
+    private static final ThreadLocal<Integer> stripe = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % STRIPES;
+        }
+    };
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long delta) {
+        this.cells.addAndGet(stripe.get() * PADDING, delta);
+    }
+
+    public void increment() {
+        this.add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for(int i = 0; i < STRIPES; i++) {
+            sum += this.cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for(int i = 0; i < STRIPES; i++) {
+            this.cells.set(i * PADDING, 0);
+        }
+    }
+
+    /**
+     * @return the sum and resets the counter
+     */
+    public long sumThenReset() {
+        long sum = 0;
+        for(int i = 0; i < STRIPES; i++) {
+            sum += this.cells.getAndSet(i * PADDING, 0);
+        }
+        return sum;
+    }
+}
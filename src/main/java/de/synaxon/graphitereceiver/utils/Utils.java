@@ -13,19 +13,28 @@ import com.vmware.vim25.RetrieveOptions;
 import com.vmware.vim25.RetrieveResult;
 import com.vmware.vim25.RuntimeFaultFaultMsg;
 import com.vmware.vim25.TraversalSpec;
+import de.synaxon.graphitereceiver.domain.EntityType;
 import de.synaxon.graphitereceiver.domain.MapPrefixSuffix;
 import de.synaxon.graphitereceiver.domain.Rule;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class Utils {
 
     private static Log logger = LogFactory.getLog(Utils.class);
+    private static final Pattern MANAGED_OBJECT_ID = Pattern.compile("(vm|host)-\\d+");
 
     public static String[] splitCounterName(String counterName) {
         //should split string in a 3 componet array
@@ -51,10 +60,25 @@ public class Utils {
      * initClusterHostMap is a self recursive method for generating VM/ESX to Cluster Hash Map.
      * In the first iteration it gathers all clusters and in consecutive calls for each cluster it updates Hash Map.
      * The logic here is use ComputeResource Entity as a base for gathering all virtual machines and ESX Hosts.
+     * The same per cluster traversal adds the resource pools of the cluster and the datastores mounted by its hosts,
+     * a datastore shared by several clusters stays with the first one. They are keyed with their type marker, see
+     * {@link EntityType#getClusterKey}.
+     * Metric sets only name their resource pool, so a pool name found in several clusters (every cluster has a root
+     * pool "Resources") can't be mapped and is left out of the map, its metrics are dropped like those of any entity
+     * without cluster.
      * As part of configurations, GraphiteReceiver invokes this method at regular intervals (configured) and during runtime
      * if VM/ESX does not exist in the hash map.
      */
     public static boolean initClusterHostMap(String clusterName, ManagedObjectReference rootFolder, ExecutionContext context, Map<String,String> clusterMap){
+        Set<String> ambiguousPools = new TreeSet<String>();
+        boolean result = initClusterHostMap(clusterName, rootFolder, context, clusterMap, ambiguousPools);
+        if(!ambiguousPools.isEmpty()) {
+            logger.warn("Resource pool names found in several clusters, their metrics are dropped: " + ambiguousPools);
+        }
+        return result;
+    }
+
+    private static boolean initClusterHostMap(String clusterName, ManagedObjectReference rootFolder, ExecutionContext context, Map<String,String> clusterMap, Set<String> ambiguousPools){
         try {
             if(clusterName == null){
                 clusterMap.clear();
@@ -70,9 +94,20 @@ public class Utils {
                     List<DynamicProperty> dynamicProperties = objectContent.getPropSet();
                     if(clusterName != null){
                         String dpsGet = String.valueOf(dynamicProperties.get(0).getVal());
-                        clusterMap.put(dpsGet.replace(" ", "_"), clusterName.replace(" ", "_"));
+                        String type = objectContent.getObj().getType();
+                        String key = EntityType.clusterKey(type, dpsGet);
+                        String cluster = clusterName.replace(" ", "_");
+                        if("Datastore".equals(type)) {
+                            if(!clusterMap.containsKey(key)) {
+                                clusterMap.put(key, cluster);
+                            }
+                        } else if("ResourcePool".equals(type) || "VirtualApp".equals(type)) {
+                            addResourcePool(key, dpsGet, cluster, clusterMap, ambiguousPools);
+                        } else {
+                            clusterMap.put(key, cluster);
+                        }
                     } else {
-                        initClusterHostMap((String) (dynamicProperties.get(0).getVal()), objectContent.getObj(), context, clusterMap);
+                        initClusterHostMap((String) (dynamicProperties.get(0).getVal()), objectContent.getObj(), context, clusterMap, ambiguousPools);
                     }
                 }
 
@@ -89,6 +124,235 @@ public class Utils {
         }
     }
 
+    /**
+     * resolveClusters looks up the cluster of a few VMs and ESX hosts which are missing in the cluster map.
+     * Entities with a managed object reference are read by reference only: the host of the VMs, the parent of the
+     * hosts and then the name of the parents, so the cost does not grow with the inventory.
+     * Entities without reference, or whose reference vCenter does not know, fall back to one container view per
+     * entity type read with only the name and the host (VM) or parent (ESX) property. That scan pages through every
+     * VM or ESX host of the inventory.
+     *
+     * @param vms VM names as used in the cluster map (spaces replaced by "_") to their reference, null if unknown
+     * @param hosts ESX names as used in the cluster map to their reference, null if unknown
+     * @param result entity name to cluster name (spaces replaced by "_") for all entities found
+     * @return false if vCenter could not be queried
+     */
+    public static boolean resolveClusters(Map<String, ManagedObjectReference> vms, Map<String, ManagedObjectReference> hosts, ExecutionContext context, Map<String,String> result){
+        try {
+            VimConnection connection = context.getConnection();
+            // managed object references have no equals, they are keyed by type and value
+            Map<String, ManagedObjectReference> references = new HashMap<String, ManagedObjectReference>();
+            Map<String, List<String>> byVm = new HashMap<String, List<String>>();
+            Map<String, List<String>> byHost = new HashMap<String, List<String>>();
+            Map<String, List<String>> byParent = new HashMap<String, List<String>>();
+            Set<String> scanVms = new HashSet<String>();
+            Set<String> scanHosts = new HashSet<String>();
+
+            // the ESX host of every VM with reference, the others are scanned by name
+            groupByReference(vms, byVm, references, scanVms);
+            Map<String, Object> vmHosts = retrieveReferenced(connection, byVm.keySet(), references, "VirtualMachine", "runtime.host");
+            for(Map.Entry<String, List<String>> entry : byVm.entrySet()) {
+                ManagedObjectReference host = (ManagedObjectReference) vmHosts.get(entry.getKey());
+                if(host == null) {
+                    scanVms.addAll(entry.getValue());
+                } else {
+                    addNames(byHost, references, host, entry.getValue());
+                }
+            }
+            if(!scanVms.isEmpty()) {
+                collectReferences(connection, "VirtualMachine", "runtime.host", scanVms, byHost, references);
+            }
+
+            // the parent of every ESX host with reference, the others are scanned by name
+            Map<String, List<String>> byHostReference = new HashMap<String, List<String>>();
+            groupByReference(hosts, byHostReference, references, scanHosts);
+            Map<String, Object> hostParents = retrieveReferenced(connection, byHostReference.keySet(), references, "HostSystem", "parent");
+            for(Map.Entry<String, List<String>> entry : byHostReference.entrySet()) {
+                ManagedObjectReference parent = (ManagedObjectReference) hostParents.get(entry.getKey());
+                if(parent == null) {
+                    scanHosts.addAll(entry.getValue());
+                } else {
+                    addNames(byParent, references, parent, entry.getValue());
+                }
+            }
+            if(!scanHosts.isEmpty()) {
+                collectReferences(connection, "HostSystem", "parent", scanHosts, byParent, references);
+            }
+
+            // the parent of the ESX host of every VM found, then the name of all parents
+            for(Map.Entry<String, Object> entry : retrieveProperty(connection, byHost.keySet(), references, "HostSystem", "parent").entrySet()) {
+                addNames(byParent, references, (ManagedObjectReference) entry.getValue(), byHost.get(entry.getKey()));
+            }
+            for(Map.Entry<String, Object> entry : retrieveProperty(connection, byParent.keySet(), references, "ComputeResource", "name").entrySet()) {
+                String cluster = String.valueOf(entry.getValue()).replace(" ", "_");
+                for(String name : byParent.get(entry.getKey())) {
+                    result.put(name, cluster);
+                }
+            }
+            return true;
+        } catch(Exception e){
+            logger.error("Failed to resolve clusters: " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param metricEntityName StatsFeeder entity name, the managed object id follows the type marker when the name
+     *                         carries one, e.g. "[VirtualMachine]vm-42"
+     * @return the reference of a VM or ESX host, null if the entity name carries no managed object id
+     */
+    public static ManagedObjectReference getReference(EntityType entityType, String metricEntityName) {
+        if(!entityType.isResolvable() || metricEntityName == null) {
+            return null;
+        }
+        String marker = "[" + entityType.getManagedObjectType() + "]";
+        int start = metricEntityName.indexOf(marker);
+        if(start < 0) {
+            return null;
+        }
+        String value = metricEntityName.substring(start + marker.length()).trim();
+        if(!MANAGED_OBJECT_ID.matcher(value).matches()) {
+            return null;
+        }
+        ManagedObjectReference reference = new ManagedObjectReference();
+        reference.setType(entityType.getManagedObjectType());
+        reference.setValue(value);
+        return reference;
+    }
+
+    private static void groupByReference(Map<String, ManagedObjectReference> entities, Map<String, List<String>> byReference, Map<String, ManagedObjectReference> references, Set<String> unreferenced) {
+        for(Map.Entry<String, ManagedObjectReference> entity : entities.entrySet()) {
+            if(entity.getValue() == null) {
+                unreferenced.add(entity.getKey());
+            } else {
+                List<String> names = new ArrayList<String>();
+                names.add(entity.getKey());
+                addNames(byReference, references, entity.getValue(), names);
+            }
+        }
+    }
+
+    private static void addNames(Map<String, List<String>> byReference, Map<String, ManagedObjectReference> references, ManagedObjectReference reference, List<String> names) {
+        String key = getReferenceKey(reference);
+        references.put(key, reference);
+        List<String> found = byReference.get(key);
+        if(found == null) {
+            found = new ArrayList<String>();
+            byReference.put(key, found);
+        }
+        found.addAll(names);
+    }
+
+    /**
+     * Reads one property of managed objects known only from the entity names. vCenter refuses the whole call when
+     * one of them no longer exists, then none is found and all are scanned by name.
+     */
+    private static Map<String, Object> retrieveReferenced(VimConnection connection, Collection<String> keys, Map<String, ManagedObjectReference> references, String type, String property) throws InvalidPropertyFaultMsg {
+        try {
+            return retrieveProperty(connection, keys, references, type, property);
+        } catch (RuntimeFaultFaultMsg e) {
+            logger.debug("Lookup of " + keys.size() + " " + type + " by reference failed, looking them up by name: " + e.getLocalizedMessage());
+            return new HashMap<String, Object>();
+        }
+    }
+
+    private static String getReferenceKey(ManagedObjectReference reference) {
+        return reference.getType() + ":" + reference.getValue();
+    }
+
+    private static void collectReferences(VimConnection connection, String type, String property, Set<String> names, Map<String, List<String>> result, Map<String, ManagedObjectReference> references) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+        List<String> types = new ArrayList<String>();
+        types.add(type);
+        ManagedObjectReference view = connection.getVimPort().createContainerView(connection.getViewManager(), connection.getRootFolder(), types, true);
+        try {
+            ObjectSpec objectSpec = new ObjectSpec();
+            objectSpec.setObj(view);
+            objectSpec.setSkip(true);
+            TraversalSpec traversalSpec = new TraversalSpec();
+            traversalSpec.setName("traverseEntities");
+            traversalSpec.setPath("view");
+            traversalSpec.setSkip(false);
+            traversalSpec.setType("ContainerView");
+            objectSpec.getSelectSet().add(traversalSpec);
+
+            PropertySpec propertySpec = getPropertySpec(type);
+            propertySpec.getPathSet().add(property);
+            PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
+            propertyFilterSpec.getObjectSet().add(objectSpec);
+            propertyFilterSpec.getPropSet().add(propertySpec);
+            List<PropertyFilterSpec> propertyFilterSpecs = new LinkedList<PropertyFilterSpec>();
+            propertyFilterSpecs.add(propertyFilterSpec);
+
+            RetrieveResult retrieveResult = connection.getVimPort().retrievePropertiesEx(connection.getPropertyCollector(), propertyFilterSpecs, new RetrieveOptions());
+            while(retrieveResult != null) {
+                for(ObjectContent objectContent : retrieveResult.getObjects()) {
+                    String name = null;
+                    ManagedObjectReference reference = null;
+                    for(DynamicProperty dynamicProperty : objectContent.getPropSet()) {
+                        if("name".equals(dynamicProperty.getName())) {
+                            name = String.valueOf(dynamicProperty.getVal()).replace(" ", "_");
+                        } else {
+                            reference = (ManagedObjectReference) dynamicProperty.getVal();
+                        }
+                    }
+                    if(name != null && reference != null && names.contains(name)) {
+                        String key = getReferenceKey(reference);
+                        references.put(key, reference);
+                        List<String> found = result.get(key);
+                        if(found == null) {
+                            found = new ArrayList<String>();
+                            result.put(key, found);
+                        }
+                        found.add(name);
+                    }
+                }
+                if(retrieveResult.getToken() == null) {
+                    break;
+                }
+                retrieveResult = connection.getVimPort().continueRetrievePropertiesEx(connection.getPropertyCollector(), retrieveResult.getToken());
+            }
+        } finally {
+            connection.getVimPort().destroyView(view);
+        }
+    }
+
+    /**
+     * Reads one property of the given managed objects without any traversal.
+     */
+    private static Map<String, Object> retrieveProperty(VimConnection connection, Collection<String> keys, Map<String, ManagedObjectReference> references, String type, String property) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+        Map<String, Object> result = new HashMap<String, Object>();
+        if(keys.isEmpty()) {
+            return result;
+        }
+        PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
+        for(String key : keys) {
+            ObjectSpec objectSpec = new ObjectSpec();
+            objectSpec.setObj(references.get(key));
+            objectSpec.setSkip(false);
+            propertyFilterSpec.getObjectSet().add(objectSpec);
+        }
+        PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType(type);
+        propertySpec.getPathSet().add(property);
+        propertyFilterSpec.getPropSet().add(propertySpec);
+        List<PropertyFilterSpec> propertyFilterSpecs = new LinkedList<PropertyFilterSpec>();
+        propertyFilterSpecs.add(propertyFilterSpec);
+
+        RetrieveResult retrieveResult = connection.getVimPort().retrievePropertiesEx(connection.getPropertyCollector(), propertyFilterSpecs, new RetrieveOptions());
+        while(retrieveResult != null) {
+            for(ObjectContent objectContent : retrieveResult.getObjects()) {
+                if(!objectContent.getPropSet().isEmpty()) {
+                    result.put(getReferenceKey(objectContent.getObj()), objectContent.getPropSet().get(0).getVal());
+                }
+            }
+            if(retrieveResult.getToken() == null) {
+                break;
+            }
+            retrieveResult = connection.getVimPort().continueRetrievePropertiesEx(connection.getPropertyCollector(), retrieveResult.getToken());
+        }
+        return result;
+    }
+
     private static TraversalSpec getTraversalSpec(String clusterName){
         TraversalSpec traversalSpec = new TraversalSpec();
         traversalSpec.setName("traverseEntities");
@@ -103,6 +367,12 @@ public class Utils {
         }else{
             traversalSpecAux.setType("HostSystem");
             traversalSpecAux.setPath("vm");
+
+            TraversalSpec datastores = new TraversalSpec();
+            datastores.setType("HostSystem");
+            datastores.setPath("datastore");
+            datastores.setSkip(false);
+            traversalSpec.getSelectSet().add(datastores);
         }
         traversalSpecAux.setSkip(false);
         traversalSpec.getSelectSet().add(traversalSpecAux);
@@ -115,11 +385,31 @@ public class Utils {
         return propertySpec;
     }
 
+    /**
+     * Adds a resource pool unless its name is already known in another cluster, then the name is removed and kept in
+     * ambiguousPools so the following clusters don't add it again.
+     */
+    private static void addResourcePool(String key, String name, String cluster, Map<String,String> clusterMap, Set<String> ambiguousPools) {
+        if(ambiguousPools.contains(name)) {
+            return;
+        }
+        String previous = clusterMap.get(key);
+        if(previous != null && !previous.equals(cluster)) {
+            clusterMap.remove(key);
+            ambiguousPools.add(name);
+        } else {
+            clusterMap.put(key, cluster);
+        }
+    }
+
     private static RetrieveResult getRetrieveResult(String clusterName, VimConnection connection, ManagedObjectReference rootFolder) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
         List<String> clusterList = new ArrayList<String>();
         clusterList.add("ComputeResource");
         clusterList.add("HostSystem");
         clusterList.add("VirtualMachine");
+        if(clusterName != null) {
+            clusterList.add("ResourcePool");
+        }
 
         ManagedObjectReference rootFolderAux = (clusterName == null)? connection.getRootFolder():rootFolder;
         ManagedObjectReference viewManager = connection.getVimPort().createContainerView(connection.getViewManager(), rootFolderAux, clusterList, true);
@@ -143,6 +433,8 @@ public class Utils {
         }else{
             propertyFilterSpec.getPropSet().add(getPropertySpec("HostSystem"));
             propertyFilterSpec.getPropSet().add(getPropertySpec("VirtualMachine"));
+            propertyFilterSpec.getPropSet().add(getPropertySpec("Datastore"));
+            propertyFilterSpec.getPropSet().add(getPropertySpec("ResourcePool"));
         }
         List<PropertyFilterSpec> propertyFilterSpecs = new LinkedList<PropertyFilterSpec>();
         propertyFilterSpecs.add(propertyFilterSpec);
@@ -152,6 +444,19 @@ public class Utils {
 
 
     public static String getNode(Map<String,String> graphiteTree, Boolean place_rollup_in_the_end, Boolean isHostMap, Map<String, MapPrefixSuffix> hostMap) {
+        String hostName = graphiteTree.get("hostName");
+        boolean hostMapped = isHostMap && hostMap != null && (hostMap.size() > 0) && (hostName != null && !hostName.equals(""));
+        MapPrefixSuffix mapPrefixSuffix = hostMapped ? hostMap.get(hostName.toLowerCase()) : null;
+        return getNode(graphiteTree, place_rollup_in_the_end, isHostMap, hostMapped, mapPrefixSuffix);
+    }
+
+    /**
+     * getNode with the alternate prefix/suffix lookup already done, see EntityDescriptor.
+     *
+     * @param hostMapped true if the host map is used and not empty and the entity is a VM
+     * @param mapPrefixSuffix entry of the VM in the host map, null if it is not in the map
+     */
+    public static String getNode(Map<String,String> graphiteTree, boolean place_rollup_in_the_end, boolean isHostMap, boolean hostMapped, MapPrefixSuffix mapPrefixSuffix) {
 
         String graphite_prefix = graphiteTree.get("graphite_prefix");
         String cluster = graphiteTree.get("cluster");
@@ -170,8 +475,7 @@ public class Utils {
             logger.warn("The cluster is null (String)");
         }
         if(isHostMap) {
-            if ((hostMap.size() > 0) && (hostName != null && !hostName.equals(""))) {
-                MapPrefixSuffix mapPrefixSuffix = hostMap.get(hostName.toLowerCase());
+            if (hostMapped) {
                 String filePrefix;
                 String fileSufix;
                 if (mapPrefixSuffix != null) {
@@ -205,21 +509,31 @@ public class Utils {
         }
         nodeBuilder.append(groupName).append(".");
         nodeBuilder.append((instanceName == null || ("".equals(instanceName))) ? "" : instanceName + ".");
-        nodeBuilder.append(metricName).append("_");
-        if(place_rollup_in_the_end){
-            nodeBuilder.append(statType).append("_");
-            nodeBuilder.append(rollup);
+        String leaf = graphiteTree.get("leaf");
+        if(leaf != null) {
+            // pre-built by CounterDescriptor
+            nodeBuilder.append(leaf);
         } else {
-            nodeBuilder.append(rollup).append("_");
-            nodeBuilder.append(statType);
+            nodeBuilder.append(metricName).append("_");
+            if(place_rollup_in_the_end){
+                nodeBuilder.append(statType).append("_");
+                nodeBuilder.append(rollup);
+            } else {
+                nodeBuilder.append(rollup).append("_");
+                nodeBuilder.append(statType);
+            }
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug((instanceName == null || ("".equals(instanceName))) ?
+                            "GP :" + graphite_prefix + " EN: " + eName + " CN: " + counterName + " ST: " + statType :
+                            "GP :" + graphite_prefix + " EN: " + eName + " GN :" + groupName + " IN :" + instanceName + " MN :" + metricName + " ST: " + statType + " RU: " + rollup
+            );
         }
-        logger.debug((instanceName == null || ("".equals(instanceName))) ?
-                        "GP :" + graphite_prefix + " EN: " + eName + " CN: " + counterName + " ST: " + statType :
-                        "GP :" + graphite_prefix + " EN: " + eName + " GN :" + groupName + " IN :" + instanceName + " MN :" + metricName + " ST: " + statType + " RU: " + rollup
-        );
 
         if (cluster == null || "".equals(cluster) || "null".equals(cluster)) {
-            logger.debug("The cluster is null - " + eName);
+            if(logger.isDebugEnabled()) {
+                logger.debug("The cluster is null - " + eName);
+            }
             return null;
         }
         return nodeBuilder.toString();
@@ -251,6 +565,85 @@ public class Utils {
 
         return prefix + sufix;
     }
+    /**
+     * @return true if the path contains Graphite glob characters
+     */
+    public static boolean isGlob(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('{') >= 0 || path.indexOf('[') >= 0;
+    }
+
+    /**
+     * Compiles a Graphite style glob: '*' matches within one path element, '?' one character, {a,b} alternatives
+     * and [a-z] character classes, negated by a leading '!' or '^'. A '[' without closing ']' matches itself.
+     *
+     * @throws IllegalArgumentException if the braces are not balanced or nested, or a character class is invalid
+     */
+    public static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean alternatives = false;
+        for(int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    regex.append("[^.]*");
+                    break;
+                case '?':
+                    regex.append("[^.]");
+                    break;
+                case '{':
+                    if(alternatives) {
+                        throw new IllegalArgumentException("Nested '{' in glob " + glob);
+                    }
+                    regex.append("(?:");
+                    alternatives = true;
+                    break;
+                case '}':
+                    if(!alternatives) {
+                        throw new IllegalArgumentException("'}' without '{' in glob " + glob);
+                    }
+                    regex.append(')');
+                    alternatives = false;
+                    break;
+                case ',':
+                    regex.append(alternatives ? "|" : ",");
+                    break;
+                case '[':
+                    int start = i + 1;
+                    boolean negated = start < glob.length() && (glob.charAt(start) == '!' || glob.charAt(start) == '^');
+                    if(negated) {
+                        start++;
+                    }
+                    // a ']' right after the '[' is a member of the class
+                    int end = glob.indexOf(']', start + 1);
+                    if(end < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+                    regex.append(negated ? "[^" : "[");
+                    for(int j = start; j < end; j++) {
+                        char member = glob.charAt(j);
+                        if(member == '\\' || member == '[' || member == ']' || member == '&' || member == '^') {
+                            regex.append('\\');
+                        }
+                        regex.append(member);
+                    }
+                    regex.append(']');
+                    i = end;
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if(alternatives) {
+            throw new IllegalArgumentException("Unclosed '{' in glob " + glob);
+        }
+        try {
+            return Pattern.compile(regex.toString());
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid character class in glob " + glob + ": " + e.getDescription());
+        }
+    }
+
     public static boolean isUpper(String s) {
         for(char c : s.toCharArray()) {
             if(! Character.isUpperCase(c))
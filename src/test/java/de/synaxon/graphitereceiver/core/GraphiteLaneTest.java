@@ -0,0 +1,128 @@
+package de.synaxon.graphitereceiver.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class GraphiteLaneTest {
+
+    private ServerSocket server;
+
+    @Before
+    public void listen() throws IOException {
+        this.server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        this.server.setSoTimeout(2000);
+    }
+
+    @After
+    public void stop() throws IOException {
+        this.server.close();
+    }
+
+    @Test
+    public void relayConnectionIsKeptAcrossRetrievals() throws IOException {
+        GraphiteLane lane = this.lane();
+        lane.setFramed("test");
+        retrieval(lane, "a.b 1 100");
+        Socket connection = this.server.accept();
+        DataInputStream in = new DataInputStream(connection.getInputStream());
+        assertEquals("test-0", readHello(in));
+        assertEquals("a.b 1 100\n", readFrame(in));
+
+        retrieval(lane, "a.b 2 120");
+        assertEquals("a.b 2 120\n", readFrame(in));
+        this.assertNoConnection();
+        lane.disconnect();
+        connection.close();
+    }
+
+    @Test
+    public void relayConnectionClosedByTheRelayIsOpenedAgain() throws Exception {
+        GraphiteLane lane = this.lane();
+        lane.setFramed("test");
+        retrieval(lane, "a.b 1 100");
+        Socket connection = this.server.accept();
+        DataInputStream in = new DataInputStream(connection.getInputStream());
+        readHello(in);
+        readFrame(in);
+        connection.close();
+        Thread.sleep(100);
+
+        retrieval(lane, "a.b 2 120");
+        connection = this.server.accept();
+        in = new DataInputStream(connection.getInputStream());
+        assertEquals("test-0", readHello(in));
+        assertEquals("a.b 2 120\n", readFrame(in));
+        assertEquals(0, lane.getDroppedLines());
+        lane.disconnect();
+        connection.close();
+    }
+
+    @Test
+    public void plainConnectionIsClosedAfterEachRetrieval() throws IOException {
+        GraphiteLane lane = this.lane();
+        retrieval(lane, "a.b 1 100");
+        Socket first = this.server.accept();
+        assertEquals(-1, readUntilClosed(first));
+        retrieval(lane, "a.b 2 120");
+        Socket second = this.server.accept();
+        assertEquals(-1, readUntilClosed(second));
+        first.close();
+        second.close();
+    }
+
+    private GraphiteLane lane() {
+        return new GraphiteLane(0, "127.0.0.1", this.server.getLocalPort(), -1);
+    }
+
+    private void assertNoConnection() throws IOException {
+        this.server.setSoTimeout(200);
+        try {
+            this.server.accept().close();
+            fail("the lane opened a second connection");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+    }
+
+    private static void retrieval(GraphiteLane lane, String line) {
+        lane.open();
+        lane.write(line);
+        lane.close();
+    }
+
+    private static String readHello(DataInputStream in) throws IOException {
+        in.readInt();
+        in.readInt();
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        return new String(name, "UTF-8");
+    }
+
+    private static String readFrame(DataInputStream in) throws IOException {
+        byte[] payload = new byte[in.readInt()];
+        in.readInt();
+        in.readFully(payload);
+        return new String(payload, "UTF-8");
+    }
+
+    private static int readUntilClosed(Socket connection) throws IOException {
+        connection.setSoTimeout(2000);
+        byte[] buffer = new byte[256];
+        int read;
+        while((read = connection.getInputStream().read(buffer)) != -1) {
+            // the lines of the retrieval
+        }
+        return read;
+    }
+}
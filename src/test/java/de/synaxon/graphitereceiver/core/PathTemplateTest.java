@@ -0,0 +1,158 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.domain.CounterDescriptor;
+import de.synaxon.graphitereceiver.domain.DataPoint;
+import de.synaxon.graphitereceiver.domain.EntityDescriptor;
+import de.synaxon.graphitereceiver.domain.MapPrefixSuffix;
+import de.synaxon.graphitereceiver.utils.Utils;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PathTemplateTest {
+
+    private static final String DEFAULT = "{prefix}.{cluster}.{entity}.{group}.{instance?}.{leaf}";
+    private static final String HOST_MAP = "{mapPrefix}.{host}.{mapSuffix}.{group}.{instance?}.{leaf}";
+
+    @Test
+    public void defaultTemplateRendersLikeGetNode() {
+        for(boolean rollupInTheEnd : new boolean[] { false, true }) {
+            for(String instance : new String[] { null, "", "vmnic0", "naa.6000c29" }) {
+                for(String statType : new String[] { "rate", "absolute", "delta", "other" }) {
+                    assertSamePath(DEFAULT, rollupInTheEnd, "vmware", "c1", "vm01", "net.usage.average", instance, statType, null);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void defaultTemplateRendersLikeGetNodeWithDottedMetricAndGroupOnlyCounter() {
+        assertSamePath(DEFAULT, false, "vmware", "c1", "esx01", "disk.numberRead.summation", "vmhba1", "delta", null);
+        assertSamePath(DEFAULT, true, "vmware", "c1", "esx01", "sys.uptime.latest", null, "absolute", null);
+        assertSamePath(DEFAULT, false, "vmware", "c1", "vm01", "cpu.usage", null, "rate", null);
+    }
+
+    @Test
+    public void defaultTemplateRendersLikeGetNodeWithoutCluster() {
+        // getNode drops the path of an entity without cluster, like a required variable
+        assertSamePath(DEFAULT, false, "vmware", null, "dc01", "vmop.numPoweron.latest", null, "absolute", null);
+        assertSamePath(DEFAULT, false, "vmware", "", "dc01", "vmop.numPoweron.latest", "", "absolute", null);
+    }
+
+    @Test
+    public void hostMapTemplateRendersLikeGetNode() {
+        MapPrefixSuffix mapped = new MapPrefixSuffix("customer1", "vms");
+        for(boolean rollupInTheEnd : new boolean[] { false, true }) {
+            for(String instance : new String[] { null, "", "0" }) {
+                assertSamePath(HOST_MAP, rollupInTheEnd, "vmware", "c1", "vm01", "cpu.ready.summation", instance, "delta", mapped);
+            }
+        }
+    }
+
+    @Test
+    public void missingRequiredVariableDropsThePath() {
+        PathTemplate template = PathTemplate.compile("{prefix}.{cluster}.{entity}.{leaf}", false);
+        DataPoint dataPoint = dataPoint("vmware", "", "vm01", new CounterDescriptor("cpu.usage.average"), null, "rate");
+        assertFalse(template.render(dataPoint, new EntityDescriptor(), new CounterDescriptor("cpu.usage.average"), new StringBuilder()));
+    }
+
+    @Test
+    public void optionalInstanceAtTheStart() {
+        assertEquals("vmware.cpu", render("{instance?}.{prefix}.{group}", null));
+        assertEquals("0.vmware.cpu", render("{instance?}.{prefix}.{group}", "0"));
+    }
+
+    @Test
+    public void optionalInstanceInTheMiddle() {
+        assertEquals("vmware.cpu.usage_average_rate", render("{prefix}.{group}.{instance?}.{leaf}", ""));
+        assertEquals("vmware.cpu.0.usage_average_rate", render("{prefix}.{group}.{instance?}.{leaf}", "0"));
+    }
+
+    @Test
+    public void optionalInstanceAtTheEnd() {
+        assertEquals("vmware.cpu.usage_average_rate", render("{prefix}.{group}.{leaf}.{instance?}", null));
+        assertEquals("vmware.cpu.usage_average_rate.0", render("{prefix}.{group}.{leaf}.{instance?}", "0"));
+    }
+
+    @Test
+    public void adjacentSeparatorsLoseOnlyTheSeparatorFollowingTheOptionalVariable() {
+        assertEquals("vmware..cpu", render("{prefix}..{instance?}.{group}", null));
+        assertEquals("vmware.cpu", render("{prefix}.{instance?}_{group}", null));
+        assertEquals("vmware.0_cpu", render("{prefix}.{instance?}_{group}", "0"));
+        assertEquals("vmware.cpu", render("{prefix}.{instance?}{group}", null));
+    }
+
+    @Test
+    public void leafFollowsPlaceRollupInTheEnd() {
+        CounterDescriptor counter = new CounterDescriptor("cpu.usage.average");
+        DataPoint dataPoint = dataPoint("vmware", "c1", "vm01", counter, null, "rate");
+        StringBuilder path = new StringBuilder();
+        PathTemplate.compile("{leaf}", true).render(dataPoint, new EntityDescriptor(), counter, path);
+        assertEquals("usage_rate_average", path.toString());
+        path.setLength(0);
+        PathTemplate.compile("{metric}_{rollup}_{statType}", false).render(dataPoint, new EntityDescriptor(), counter, path);
+        assertEquals("usage_average_rate", path.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVariableIsRejected() {
+        PathTemplate.compile("{prefix}.{unknown}", false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unclosedVariableIsRejected() {
+        PathTemplate.compile("{prefix}.{group", false);
+    }
+
+    private static String render(String template, String instance) {
+        CounterDescriptor counter = new CounterDescriptor("cpu.usage.average");
+        StringBuilder path = new StringBuilder();
+        PathTemplate.compile(template, false).render(dataPoint("vmware", "c1", "vm01", counter, instance, "rate"), new EntityDescriptor(), counter, path);
+        return path.toString();
+    }
+
+    private static DataPoint dataPoint(String prefix, String cluster, String entity, CounterDescriptor counter, String instance, String statType) {
+        DataPoint dataPoint = new DataPoint();
+        dataPoint.setPrefix(prefix);
+        dataPoint.setCluster(cluster);
+        dataPoint.setEntity(entity);
+        dataPoint.setGroup(counter.getGroup());
+        dataPoint.setInstance(instance);
+        dataPoint.setMetric(counter.getMetric());
+        dataPoint.setRollup(counter.getRollupName());
+        dataPoint.setStatType(statType);
+        return dataPoint;
+    }
+
+    /**
+     * Renders with the template and with Utils.getNode and checks that the paths are byte identical.
+     */
+    private static void assertSamePath(String template, boolean rollupInTheEnd, String prefix, String cluster, String eName,
+                                       String counterName, String instance, String statType, MapPrefixSuffix mapped) {
+        CounterDescriptor counter = new CounterDescriptor(counterName);
+        Map<String, String> graphiteTree = new HashMap<String, String>();
+        graphiteTree.put("graphite_prefix", prefix);
+        graphiteTree.put("cluster", cluster);
+        graphiteTree.put("eName", eName);
+        graphiteTree.put("groupName", counter.getGroup());
+        graphiteTree.put("instanceName", instance);
+        graphiteTree.put("metricName", counter.getMetric());
+        graphiteTree.put("statType", statType);
+        graphiteTree.put("rollup", counter.getRollupName());
+        graphiteTree.put("counterName", counterName);
+        graphiteTree.put("hostName", eName);
+        String expected = Utils.getNode(graphiteTree, rollupInTheEnd, mapped != null, mapped != null, mapped);
+
+        EntityDescriptor entity = new EntityDescriptor();
+        entity.setHostName(eName);
+        entity.setHostMapped(mapped != null);
+        entity.setMapPrefixSuffix(mapped);
+        StringBuilder path = new StringBuilder();
+        boolean rendered = PathTemplate.compile(template, rollupInTheEnd).render(dataPoint(prefix, cluster, eName, counter, instance, statType), entity, counter, path);
+        assertEquals(expected, rendered ? path.toString() : null);
+    }
+}
@@ -0,0 +1,52 @@
+package de.synaxon.graphitereceiver.core;
+
+import de.synaxon.graphitereceiver.utils.NumberEncoder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValuePrecisionTest {
+
+    @Test
+    public void emptyIsShortestForEveryGroup() {
+        assertEquals(NumberEncoder.SHORTEST, new ValuePrecision(null).getDecimals("cpu"));
+        assertEquals(NumberEncoder.SHORTEST, new ValuePrecision(" ").getDecimals("cpu"));
+    }
+
+    @Test
+    public void groupsAndDefault() {
+        ValuePrecision precision = new ValuePrecision("cpu=2, mem=0,*=3");
+        assertEquals(2, precision.getDecimals("cpu"));
+        assertEquals(0, precision.getDecimals("mem"));
+        assertEquals(3, precision.getDecimals("disk"));
+        assertEquals(3, precision.getDecimals(null));
+    }
+
+    @Test
+    public void shortestByName() {
+        ValuePrecision precision = new ValuePrecision("*=1,net=shortest");
+        assertEquals(NumberEncoder.SHORTEST, precision.getDecimals("net"));
+        assertEquals(1, precision.getDecimals("cpu"));
+    }
+
+    @Test
+    public void decimalsAreCapped() {
+        assertEquals(NumberEncoder.MAX_DECIMALS, new ValuePrecision("cpu=40").getDecimals("cpu"));
+    }
+
+    @Test
+    public void invalidEntriesAreIgnored() {
+        ValuePrecision precision = new ValuePrecision("cpu=two,mem,disk=1=2,net=4");
+        assertEquals(NumberEncoder.SHORTEST, precision.getDecimals("cpu"));
+        assertEquals(NumberEncoder.SHORTEST, precision.getDecimals("mem"));
+        assertEquals(NumberEncoder.SHORTEST, precision.getDecimals("disk"));
+        assertEquals(4, precision.getDecimals("net"));
+    }
+
+    @Test
+    public void decimalsApplyWhenEncoding() {
+        ValuePrecision precision = new ValuePrecision("cpu=2");
+        assertEquals("33.33", NumberEncoder.append(new StringBuilder(), 100.0 / 3, precision.getDecimals("cpu")).toString());
+        assertEquals("33.333333333333336", NumberEncoder.append(new StringBuilder(), 100.0 / 3, precision.getDecimals("mem")).toString());
+    }
+}
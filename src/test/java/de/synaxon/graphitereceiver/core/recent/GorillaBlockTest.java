@@ -0,0 +1,104 @@
+package de.synaxon.graphitereceiver.core.recent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class GorillaBlockTest {
+
+    @Test
+    public void regularSamples() {
+        long[] epochs = new long[180];
+        double[] values = new double[180];
+        for(int i = 0; i < epochs.length; i++) {
+            epochs[i] = 1500000000L + i * 20;
+            values[i] = 40 + (i % 7) * 0.25;
+        }
+        assertRoundTrip(epochs, values);
+    }
+
+    @Test
+    public void equalValues() {
+        assertRoundTrip(new long[] { 100, 120, 140, 160 }, new double[] { 3.5, 3.5, 3.5, 3.5 });
+    }
+
+    @Test
+    public void specialValues() {
+        assertRoundTrip(new long[] { 100, 120, 140, 160, 180, 200, 220, 240, 260 },
+                new double[] { Double.NaN, 0.0, -0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE,
+                        Double.MAX_VALUE, -Double.MAX_VALUE, Double.NaN });
+    }
+
+    @Test
+    public void deltaOfDeltaAtEveryEncodingBoundary() {
+        long[] deltaOfDeltas = { 0, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048, -2049,
+                Integer.MAX_VALUE - 100000L, -(Integer.MAX_VALUE - 100000L) };
+        long[] epochs = new long[deltaOfDeltas.length + 2];
+        double[] values = new double[epochs.length];
+        epochs[0] = 1500000000L;
+        epochs[1] = epochs[0] + 100000;
+        long delta = 100000;
+        for(int i = 0; i < deltaOfDeltas.length; i++) {
+            delta += deltaOfDeltas[i];
+            epochs[i + 2] = epochs[i + 1] + delta;
+            values[i + 2] = i;
+        }
+        assertRoundTrip(epochs, values);
+    }
+
+    @Test
+    public void randomValuesAndGaps() {
+        Random random = new Random(42);
+        for(int round = 0; round < 200; round++) {
+            int count = 1 + random.nextInt(300);
+            long[] epochs = new long[count];
+            double[] values = new double[count];
+            long epoch = random.nextInt(Integer.MAX_VALUE);
+            for(int i = 0; i < count; i++) {
+                epoch += 1 + (random.nextBoolean() ? 20 : random.nextInt(5000));
+                epochs[i] = epoch;
+                switch (random.nextInt(4)) {
+                    case 0:
+                        values[i] = random.nextDouble() * 1000;
+                        break;
+                    case 1:
+                        values[i] = random.nextInt(100);
+                        break;
+                    case 2:
+                        values[i] = Double.longBitsToDouble(random.nextLong());
+                        break;
+                    default:
+                        values[i] = (i > 0) ? values[i - 1] : 0;
+                }
+            }
+            assertRoundTrip(epochs, values);
+        }
+    }
+
+    private static void assertRoundTrip(long[] epochs, double[] values) {
+        GorillaBlock block = new GorillaBlock();
+        for(int i = 0; i < epochs.length; i++) {
+            block.append(epochs[i], values[i]);
+        }
+        final List<Long> decodedEpochs = new ArrayList<Long>();
+        final List<Double> decodedValues = new ArrayList<Double>();
+        block.forEach(new GorillaBlock.Visitor() {
+            public void visit(long epoch, double value) {
+                decodedEpochs.add(epoch);
+                decodedValues.add(value);
+            }
+        });
+        assertEquals(epochs.length, block.size());
+        assertEquals(epochs.length, decodedEpochs.size());
+        for(int i = 0; i < epochs.length; i++) {
+            assertEquals("epoch " + i, epochs[i], decodedEpochs.get(i).longValue());
+            assertEquals("value " + i, Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decodedValues.get(i)));
+        }
+        assertEquals(epochs[0], block.getFirstEpoch());
+        assertEquals(epochs[epochs.length - 1], block.getLastEpoch());
+    }
+}
@@ -0,0 +1,118 @@
+package de.synaxon.graphitereceiver.core.recent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecentStoreServerTest {
+
+    private RecentStore store;
+    private RecentStoreServer server;
+
+    @Before
+    public void start() throws IOException {
+        this.store = new RecentStore(3600, 1000);
+        for(int i = 0; i < 5; i++) {
+            this.store.append("vmware.c1.vm01.cpu.usage_average_rate", 1000 + i * 20, i);
+        }
+        this.store.append("vmware.c1.vm02.cpu.usage_average_rate", 1000, 7);
+        this.store.append("vmware.c1.vm03.cpu.usage_average_rate", 1000, 8);
+        this.server = new RecentStoreServer(this.store, "127.0.0.1", 0, 2);
+    }
+
+    @After
+    public void stop() {
+        this.server.stop();
+    }
+
+    @Test
+    public void pointsReturnsTheNewestN() throws IOException {
+        assertEquals("200 [{\"path\":\"vmware.c1.vm01.cpu.usage_average_rate\",\"points\":[[1060,3.0],[1080,4.0]]}]",
+                this.get("/points?match=vmware.c1.vm01.cpu.*&n=2"));
+    }
+
+    @Test
+    public void pointsWithoutNReturnsUpToTen() throws IOException {
+        assertEquals("200 [{\"path\":\"vmware.c1.vm01.cpu.usage_average_rate\",\"points\":[[1000,0.0],[1020,1.0],[1040,2.0],[1060,3.0],[1080,4.0]]}]",
+                this.get("/points?match=vmware.c1.vm01.cpu.usage_average_rate"));
+    }
+
+    @Test
+    public void pointsWithZeroN() throws IOException {
+        assertEquals("200 [{\"path\":\"vmware.c1.vm01.cpu.usage_average_rate\",\"points\":[]}]",
+                this.get("/points?match=vmware.c1.vm01.cpu.usage_average_rate&n=0"));
+    }
+
+    @Test
+    public void pointsWithHugeNIsCapped() throws IOException {
+        assertEquals("200 [{\"path\":\"vmware.c1.vm01.cpu.usage_average_rate\",\"points\":[[1000,0.0],[1020,1.0],[1040,2.0],[1060,3.0],[1080,4.0]]}]",
+                this.get("/points?match=vmware.c1.vm01.cpu.usage_average_rate&n=2147483647"));
+    }
+
+    @Test
+    public void pointsRejectsNegativeN() throws IOException {
+        assertEquals("400 {\"error\":\"n must not be negative\"}", this.get("/points?match=vmware.c1.vm01.cpu.*&n=-1"));
+    }
+
+    @Test
+    public void pointsRejectsNonNumericN() throws IOException {
+        assertEquals("400 {\"error\":\"n is not a number\"}", this.get("/points?match=vmware.c1.vm01.cpu.*&n=ten"));
+        assertEquals("400 {\"error\":\"n is not a number\"}", this.get("/points?match=vmware.c1.vm01.cpu.*&n=99999999999"));
+    }
+
+    @Test
+    public void missingMatchIsRejected() throws IOException {
+        assertEquals("400 {\"error\":\"match is missing\"}", this.get("/series"));
+        assertEquals("400 {\"error\":\"match is missing\"}", this.get("/latest?match="));
+    }
+
+    @Test
+    public void invalidMatchIsRejected() throws IOException {
+        assertEquals("400 {\"error\":\"match is not a valid glob\"}", this.get("/series?match=vmware.%7Bc1,c2"));
+        assertEquals("400 {\"error\":\"match is not a valid glob\"}", this.get("/latest?match=vmware.vm%5Bz-a%5D"));
+    }
+
+    @Test
+    public void matchIsLimitedToMaxResults() throws IOException {
+        assertEquals("200 [\"vmware.c1.vm01.cpu.usage_average_rate\",\"vmware.c1.vm02.cpu.usage_average_rate\"]",
+                this.get("/series?match=vmware.c1.*.cpu.usage_average_rate"));
+        assertEquals("200 [{\"path\":\"vmware.c1.vm01.cpu.usage_average_rate\",\"timestamp\":1080,\"value\":4.0},"
+                + "{\"path\":\"vmware.c1.vm02.cpu.usage_average_rate\",\"timestamp\":1000,\"value\":7.0}]",
+                this.get("/latest?match=vmware.c1.*.cpu.*"));
+    }
+
+    @Test
+    public void matchWithoutGlobIsExact() throws IOException {
+        assertEquals("200 [\"vmware.c1.vm03.cpu.usage_average_rate\"]", this.get("/series?match=vmware.c1.vm03.cpu.usage_average_rate"));
+        assertEquals("200 []", this.get("/series?match=vmware.c1.vm04.cpu.usage_average_rate"));
+    }
+
+    @Test
+    public void storeMatchAppliesLimitAfterSorting() {
+        assertEquals(3, this.store.match("vmware.c1.*.cpu.*", 10).size());
+        assertEquals("vmware.c1.vm01.cpu.usage_average_rate", this.store.match("vmware.c1.*.cpu.*", 1).get(0));
+        assertEquals(0, this.store.match("vmware.c1.*.cpu.*", 0).size());
+    }
+
+    private String get(String query) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + this.server.getPort() + query).openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = (status >= 400) ? connection.getErrorStream() : connection.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        in.close();
+        return status + " " + body.toString("UTF-8");
+    }
+}
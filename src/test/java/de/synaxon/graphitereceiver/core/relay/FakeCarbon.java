@@ -0,0 +1,84 @@
+package de.synaxon.graphitereceiver.core.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FakeCarbon counts the plaintext lines received on localhost ports, for trying the {@link Relay} without carbon.
+ * <pre>
+ *     java -cp target/classes:target/test-classes de.synaxon.graphitereceiver.core.relay.FakeCarbon 2003 2004
+ * </pre>
+ * Prints the lines and connections per port every ten seconds.
+ */
+public class FakeCarbon {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 1) {
+            System.err.println("Usage: FakeCarbon <port> [<port> ...]");
+            System.exit(1);
+        }
+        final AtomicLong[] lines = new AtomicLong[args.length];
+        final AtomicLong[] connections = new AtomicLong[args.length];
+        for(int i = 0; i < args.length; i++) {
+            lines[i] = new AtomicLong();
+            connections[i] = new AtomicLong();
+            final ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[i]), 50, InetAddress.getByName("127.0.0.1"));
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    accept(serverSocket, lines[index], connections[index]);
+                }
+            }, "FakeCarbon-" + args[i]);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        while(true) {
+            Thread.sleep(10000);
+            StringBuilder stats = new StringBuilder();
+            for(int i = 0; i < args.length; i++) {
+                stats.append(args[i]).append(": ").append(lines[i].get()).append(" lines ")
+                        .append(connections[i].get()).append(" connections  ");
+            }
+            System.out.println(stats);
+        }
+    }
+
+    private static void accept(ServerSocket serverSocket, final AtomicLong lines, AtomicLong connections) {
+        while(true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[64 * 1024];
+                    try {
+                        InputStream in = socket.getInputStream();
+                        int read;
+                        while((read = in.read(buffer)) > 0) {
+                            int count = 0;
+                            for(int i = 0; i < read; i++) {
+                                if(buffer[i] == '\n') {
+                                    count++;
+                                }
+                            }
+                            lines.addAndGet(count);
+                        }
+                        socket.close();
+                    } catch (IOException e) {
+                        // connection reset by the relay
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
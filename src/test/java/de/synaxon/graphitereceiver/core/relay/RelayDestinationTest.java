@@ -0,0 +1,61 @@
+package de.synaxon.graphitereceiver.core.relay;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RelayDestinationTest {
+
+    @Test
+    public void batchBeingWrittenIsNotDroppedOnOverflow() throws Exception {
+        ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+        RelayDestination destination = new RelayDestination("127.0.0.1", server.getLocalPort(), 256 * 1024, 50);
+        destination.start();
+        byte[] line = "vmware.Cluster_1.vm01.cpu.usage_average 12.5 1500000000".getBytes("UTF-8");
+        int added = 200000;
+        for(int i = 0; i < added; i++) {
+            destination.add(line, 0, line.length);
+        }
+        // carbon does not read until the queue overflowed, the sender is stuck writing the oldest batch
+        Socket connection = server.accept();
+        Thread.sleep(300);
+        long received = readLines(connection);
+        long sent = destination.takeSentLines();
+        long dropped = destination.takeDroppedLines();
+        assertTrue(dropped > 0);
+        assertEquals(received, sent);
+        assertEquals(added, sent + dropped);
+        destination.stop(0);
+        connection.close();
+        server.close();
+    }
+
+    private static long readLines(Socket connection) throws IOException {
+        connection.setSoTimeout(1000);
+        InputStream in = connection.getInputStream();
+        byte[] buffer = new byte[65536];
+        long lines = 0;
+        try {
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                for(int i = 0; i < read; i++) {
+                    if(buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the queue is drained
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,111 @@
+package de.synaxon.graphitereceiver.core.simulator;
+
+import com.vmware.vim25.ManagedObjectReference;
+import de.synaxon.graphitereceiver.domain.EntityType;
+import de.synaxon.graphitereceiver.utils.Utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * InventoryBenchmark measures the cluster map discovery against a {@link SimulatedVCenter}:
+ * <pre>
+ *     java -cp target/classes:target/test-classes de.synaxon.graphitereceiver.core.simulator.InventoryBenchmark \
+ *          [vm counts, default 1000,10000,50000] [latency ms, default 2] [page size, default 1000]
+ * </pre>
+ * For every inventory size it reports the wall time, the vCenter calls and the peak heap of a full
+ * initClusterHostMap refresh and of a resolveClusters lookup of 100 VMs missing in the cluster map, by the managed
+ * object reference of their metric sets and by name only.
+ * The inventory has 25 VMs per host and 16 hosts per cluster.
+ */
+public class InventoryBenchmark {
+
+    /**
+     * Samples the used heap every few milliseconds while a benchmark runs.
+     */
+    private static class HeapSampler implements Runnable {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile boolean running = true;
+        private volatile long peak;
+
+        public void run() {
+            while(this.running) {
+                this.peak = Math.max(this.peak, this.memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long stop() {
+            this.running = false;
+            return Math.max(this.peak, this.memory.getHeapMemoryUsage().getUsed());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] sizes = ((args.length > 0) ? args[0] : "1000,10000,50000").split(",");
+        long latency = (args.length > 1) ? Long.parseLong(args[1]) : 2;
+        int pageSize = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        System.out.println(String.format("latency %d ms, page size %d", latency, pageSize));
+        System.out.println(String.format("%-8s %7s %7s %-20s %10s %8s %10s %12s", "vms", "hosts", "clusters", "operation", "wall ms", "calls", "objects", "peak heap MB"));
+        for(String size : sizes) {
+            final SimulatedVCenter vCenter = new SimulatedVCenter(new SimulatedInventory(Integer.parseInt(size.trim()), 25, 16), latency, pageSize);
+            SimulatedInventory inventory = vCenter.getInventory();
+
+            final Map<String, String> clusterMap = new HashMap<String, String>();
+            report(inventory, vCenter, "initClusterHostMap", new Runnable() {
+                public void run() {
+                    Utils.initClusterHostMap(null, null, vCenter, clusterMap);
+                }
+            });
+            if(clusterMap.size() != inventory.getClusterMapSize()) {
+                System.out.println("  cluster map has " + clusterMap.size() + " entries, expected " + inventory.getClusterMapSize());
+            }
+
+            // 100 VMs missing in the cluster map, once with the reference of their metric set and once by name only
+            final Map<String, ManagedObjectReference> referenced = new HashMap<String, ManagedObjectReference>();
+            final Map<String, ManagedObjectReference> named = new HashMap<String, ManagedObjectReference>();
+            for(int i = 0; i < Math.min(100, inventory.getVms()); i++) {
+                int index = i * (inventory.getVms() / Math.min(100, inventory.getVms()));
+                referenced.put(inventory.getVmName(index), Utils.getReference(EntityType.VIRTUAL_MACHINE, "[VirtualMachine]" + inventory.getVmId(index)));
+                named.put(inventory.getVmName(index), null);
+            }
+            resolve(inventory, vCenter, "resolveClusters", referenced);
+            resolve(inventory, vCenter, "resolveClusters scan", named);
+        }
+    }
+
+    private static void resolve(SimulatedInventory inventory, final SimulatedVCenter vCenter, String operation, final Map<String, ManagedObjectReference> missing) throws InterruptedException {
+        final Map<String, String> found = new HashMap<String, String>();
+        report(inventory, vCenter, operation, new Runnable() {
+            public void run() {
+                Utils.resolveClusters(missing, new HashMap<String, ManagedObjectReference>(), vCenter, found);
+            }
+        });
+        if(found.size() != missing.size()) {
+            System.out.println("  " + operation + " found " + found.size() + " of " + missing.size());
+        }
+    }
+
+    private static void report(SimulatedInventory inventory, SimulatedVCenter vCenter, String operation, Runnable benchmark) throws InterruptedException {
+        System.gc();
+        Thread.sleep(100);
+        vCenter.getVimPort().resetCounters();
+        HeapSampler sampler = new HeapSampler();
+        Thread thread = new Thread(sampler, "HeapSampler");
+        thread.setDaemon(true);
+        thread.start();
+        long start = System.nanoTime();
+        benchmark.run();
+        long wall = (System.nanoTime() - start) / 1000000;
+        long peak = sampler.stop();
+        System.out.println(String.format("%-8d %7d %7d %-20s %10d %8d %10d %12.1f", inventory.getVms(), inventory.getHosts(), inventory.getClusters(),
+                operation, wall, vCenter.getVimPort().getTotalCalls(), vCenter.getVimPort().getObjectsReturned(), peak / (1024.0 * 1024.0)));
+        System.out.println("  " + vCenter.getVimPort().getCalls());
+    }
+}
@@ -0,0 +1,222 @@
+package de.synaxon.graphitereceiver.core.simulator;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SimulatedInventory is a synthetic vCenter inventory: clusters of ESX hosts running VMs, below one root folder.
+ * Names follow the pattern "Cluster 7", "esx42.sim.local" and "vm-app-1234", so the spaces of cluster names are
+ * replaced like in a real vCenter.
+ *
+ * Every cluster has the root resource pool "Resources" with the pools "Production" and "Test", whose names repeat in
+ * every cluster, and the pool "Tenant 7" below "Production" with a name of its own. Every cluster has four datastores
+ * mounted by all of its hosts. The datastore "iso-library" is mounted by every host of the inventory.
+ */
+public class SimulatedInventory {
+
+    static final String FOLDER = "Folder";
+    static final String CLUSTER = "ClusterComputeResource";
+    static final String COMPUTE_RESOURCE = "ComputeResource";
+    static final String HOST = "HostSystem";
+    static final String VM = "VirtualMachine";
+    static final String DATASTORE = "Datastore";
+    static final String RESOURCE_POOL = "ResourcePool";
+    static final int DATASTORES_PER_CLUSTER = 4;
+
+    /**
+     * One managed entity with the properties the receiver reads.
+     */
+    static class Entity {
+        final ManagedObjectReference reference;
+        final String name;
+        final Entity parent;
+        final List<Entity> children = new ArrayList<Entity>();
+        final List<Entity> datastores = new ArrayList<Entity>();
+
+        Entity(String type, String value, String name, Entity parent) {
+            this.reference = new ManagedObjectReference();
+            this.reference.setType(type);
+            this.reference.setValue(value);
+            this.name = name;
+            this.parent = parent;
+            if(parent != null) {
+                parent.children.add(this);
+            }
+        }
+
+        String getType() {
+            return this.reference.getType();
+        }
+    }
+
+    private final Entity rootFolder;
+    private final Map<String, Entity> entities = new HashMap<String, Entity>();
+    private final int clusters;
+    private final int hosts;
+    private final int vms;
+
+    /**
+     * @param vms number of VMs, spread evenly over the hosts
+     * @param vmsPerHost VMs per ESX host
+     * @param hostsPerCluster ESX hosts per cluster
+     */
+    public SimulatedInventory(int vms, int vmsPerHost, int hostsPerCluster) {
+        this.rootFolder = this.add(new Entity(FOLDER, "group-d1", "Datacenters", null));
+        int hostCount = Math.max(1, (vms + vmsPerHost - 1) / vmsPerHost);
+        int clusterCount = Math.max(1, (hostCount + hostsPerCluster - 1) / hostsPerCluster);
+        Entity datastoreFolder = this.add(new Entity(FOLDER, "group-s1", "datastore", null));
+        Entity library = this.add(new Entity(DATASTORE, "datastore-library", "iso-library", datastoreFolder));
+        List<Entity> clusterList = new ArrayList<Entity>(clusterCount);
+        for(int c = 0; c < clusterCount; c++) {
+            Entity cluster = this.add(new Entity(CLUSTER, "domain-c" + c, this.getClusterName(c), this.rootFolder));
+            Entity resources = this.add(new Entity(RESOURCE_POOL, "resgroup-" + c, "Resources", cluster));
+            Entity production = this.add(new Entity(RESOURCE_POOL, "resgroup-p" + c, "Production", resources));
+            this.add(new Entity(RESOURCE_POOL, "resgroup-t" + c, "Test", resources));
+            this.add(new Entity(RESOURCE_POOL, "resgroup-n" + c, getTenantPoolName(c), production));
+            for(int d = 0; d < DATASTORES_PER_CLUSTER; d++) {
+                cluster.datastores.add(this.add(new Entity(DATASTORE, "datastore-" + c + "-" + d, "ds-c" + c + "-lun" + d, datastoreFolder)));
+            }
+            cluster.datastores.add(library);
+            clusterList.add(cluster);
+        }
+        List<Entity> hostList = new ArrayList<Entity>(hostCount);
+        for(int h = 0; h < hostCount; h++) {
+            Entity cluster = clusterList.get(h / hostsPerCluster);
+            Entity host = this.add(new Entity(HOST, "host-" + h, "esx" + h + ".sim.local", cluster));
+            host.datastores.addAll(cluster.datastores);
+            hostList.add(host);
+        }
+        for(int v = 0; v < vms; v++) {
+            this.add(new Entity(VM, "vm-" + v, "vm-app-" + v, hostList.get(v / vmsPerHost)));
+        }
+        this.clusters = clusterCount;
+        this.hosts = hostCount;
+        this.vms = vms;
+    }
+
+    public int getClusters() {
+        return this.clusters;
+    }
+
+    public int getHosts() {
+        return this.hosts;
+    }
+
+    public int getVms() {
+        return this.vms;
+    }
+
+    /**
+     * @return entries of a complete cluster map: VMs, hosts, datastores, the tenant pools and the shared pool names
+     * if there is only one cluster
+     */
+    public int getClusterMapSize() {
+        return this.vms + this.hosts + this.clusters * DATASTORES_PER_CLUSTER + 1 + this.clusters + ((this.clusters == 1) ? 3 : 0);
+    }
+
+    public String getClusterName(int index) {
+        return "Cluster " + index;
+    }
+
+    /**
+     * @return name of the resource pool only the cluster has
+     */
+    public String getTenantPoolName(int cluster) {
+        return "Tenant " + cluster;
+    }
+
+    public String getVmName(int index) {
+        return "vm-app-" + index;
+    }
+
+    /**
+     * @return the managed object id of the VM
+     */
+    public String getVmId(int index) {
+        return "vm-" + index;
+    }
+
+    Entity getRootFolder() {
+        return this.rootFolder;
+    }
+
+    Entity get(ManagedObjectReference reference) {
+        return (reference == null) ? null : this.entities.get(reference.getValue());
+    }
+
+    /**
+     * @return the value of a property, null for unknown properties
+     */
+    Object getProperty(Entity entity, String property) {
+        if("name".equals(property)) {
+            return entity.name;
+        }
+        // VMs live in the VM folder, the simulator does not model it
+        if("parent".equals(property) && !VM.equals(entity.getType())) {
+            return (entity.parent == null) ? null : entity.parent.reference;
+        }
+        if("runtime.host".equals(property) && VM.equals(entity.getType())) {
+            return entity.parent.reference;
+        }
+        return null;
+    }
+
+    /**
+     * Follows a traversal path: "host" of a compute resource, "vm" and "datastore" of a host.
+     */
+    List<Entity> traverse(Entity entity, String path) {
+        List<Entity> result = new ArrayList<Entity>();
+        if("host".equals(path) && isA(entity.getType(), COMPUTE_RESOURCE)) {
+            this.children(entity, HOST, result);
+        } else if("vm".equals(path) && HOST.equals(entity.getType())) {
+            this.children(entity, VM, result);
+        } else if("datastore".equals(path) && HOST.equals(entity.getType())) {
+            result.addAll(entity.datastores);
+        }
+        return result;
+    }
+
+    /**
+     * @return the entities below the container of the given types
+     */
+    List<Entity> contents(Entity container, List<String> types, boolean recursive) {
+        List<Entity> result = new ArrayList<Entity>();
+        this.collect(container, types, recursive, result);
+        return result;
+    }
+
+    static boolean isA(String type, String expected) {
+        return type.equals(expected) || (CLUSTER.equals(type) && COMPUTE_RESOURCE.equals(expected)) || "ManagedEntity".equals(expected);
+    }
+
+    private void collect(Entity container, List<String> types, boolean recursive, List<Entity> result) {
+        for(Entity child : container.children) {
+            for(String type : types) {
+                if(isA(child.getType(), type)) {
+                    result.add(child);
+                    break;
+                }
+            }
+            if(recursive) {
+                this.collect(child, types, true, result);
+            }
+        }
+    }
+
+    private void children(Entity entity, String type, List<Entity> result) {
+        for(Entity child : entity.children) {
+            if(type.equals(child.getType())) {
+                result.add(child);
+            }
+        }
+    }
+
+    private Entity add(Entity entity) {
+        this.entities.put(entity.reference.getValue(), entity);
+        return entity;
+    }
+}
@@ -0,0 +1,76 @@
+package de.synaxon.graphitereceiver.core.simulator;
+
+import com.vmware.ee.common.VimConnection;
+import com.vmware.ee.statsfeeder.ExecutionContext;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * SimulatedVCenter is an {@link ExecutionContext} whose connection is served by a {@link SimulatedVimPort}, so
+ * {@link de.synaxon.graphitereceiver.utils.Utils#initClusterHostMap} and
+ * {@link de.synaxon.graphitereceiver.utils.Utils#resolveClusters} run unchanged against a synthetic inventory.
+ */
+public class SimulatedVCenter extends ExecutionContext {
+
+    private final SimulatedInventory inventory;
+    private final SimulatedVimPort vimPort;
+    private final VimConnection connection;
+
+    public SimulatedVCenter(SimulatedInventory inventory, long latencyMillis, int pageSize) {
+        this.inventory = inventory;
+        this.vimPort = new SimulatedVimPort(inventory, latencyMillis, pageSize);
+        this.connection = new SimulatedConnection(this.vimPort.getPort(), inventory.getRootFolder().reference);
+    }
+
+    @Override
+    public VimConnection getConnection() {
+        return this.connection;
+    }
+
+    public SimulatedInventory getInventory() {
+        return this.inventory;
+    }
+
+    public SimulatedVimPort getVimPort() {
+        return this.vimPort;
+    }
+
+    private static class SimulatedConnection extends VimConnection {
+        private final VimPortType port;
+        private final ManagedObjectReference rootFolder;
+        private final ManagedObjectReference viewManager = reference("ViewManager", "ViewManager");
+        private final ManagedObjectReference propertyCollector = reference("PropertyCollector", "propertyCollector");
+
+        SimulatedConnection(VimPortType port, ManagedObjectReference rootFolder) {
+            this.port = port;
+            this.rootFolder = rootFolder;
+        }
+
+        @Override
+        public VimPortType getVimPort() {
+            return this.port;
+        }
+
+        @Override
+        public ManagedObjectReference getRootFolder() {
+            return this.rootFolder;
+        }
+
+        @Override
+        public ManagedObjectReference getViewManager() {
+            return this.viewManager;
+        }
+
+        @Override
+        public ManagedObjectReference getPropertyCollector() {
+            return this.propertyCollector;
+        }
+
+        private static ManagedObjectReference reference(String type, String value) {
+            ManagedObjectReference reference = new ManagedObjectReference();
+            reference.setType(type);
+            reference.setValue(value);
+            return reference;
+        }
+    }
+}
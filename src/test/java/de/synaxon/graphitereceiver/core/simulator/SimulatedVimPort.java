@@ -0,0 +1,270 @@
+package de.synaxon.graphitereceiver.core.simulator;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VimPortType;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SimulatedVimPort answers the property collector calls of the receiver from a {@link SimulatedInventory}:
+ * createContainerView, destroyView, retrievePropertiesEx and continueRetrievePropertiesEx. Every other method of
+ * {@link VimPortType} throws UnsupportedOperationException.
+ *
+ * Traversal specs are followed like vCenter does for the paths used by the receiver (view, host and vm), selection
+ * specs referring to other specs by name are not supported. Results are paged by the page size or the smaller
+ * maxObjects of the RetrieveOptions, every call sleeps latencyMillis and is counted.
+ */
+public class SimulatedVimPort implements InvocationHandler {
+
+    private final SimulatedInventory inventory;
+    private final long latencyMillis;
+    private final int pageSize;
+    private final Map<String, List<SimulatedInventory.Entity>> views = new ConcurrentHashMap<String, List<SimulatedInventory.Entity>>();
+    private final Map<String, List<ObjectContent>> pages = new ConcurrentHashMap<String, List<ObjectContent>>();
+    private final Map<String, Integer> pageLimits = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong objectsReturned = new AtomicLong();
+    private final AtomicLong nextId = new AtomicLong();
+
+    public SimulatedVimPort(SimulatedInventory inventory, long latencyMillis, int pageSize) {
+        this.inventory = inventory;
+        this.latencyMillis = latencyMillis;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public VimPortType getPort() {
+        return (VimPortType) Proxy.newProxyInstance(VimPortType.class.getClassLoader(), new Class<?>[] {VimPortType.class}, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if(method.getDeclaringClass() == Object.class) {
+            if("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            return "SimulatedVimPort";
+        }
+        this.count(name);
+        if(this.latencyMillis > 0) {
+            Thread.sleep(this.latencyMillis);
+        }
+        if("createContainerView".equals(name)) {
+            return this.createContainerView((ManagedObjectReference) args[1], (List<?>) args[2], (Boolean) args[3]);
+        }
+        if("destroyView".equals(name)) {
+            this.views.remove(((ManagedObjectReference) args[0]).getValue());
+            return null;
+        }
+        if("retrievePropertiesEx".equals(name)) {
+            return this.retrievePropertiesEx((List<?>) args[1], (RetrieveOptions) args[2]);
+        }
+        if("continueRetrievePropertiesEx".equals(name)) {
+            return this.nextPage((String) args[1]);
+        }
+        throw new UnsupportedOperationException("SimulatedVimPort does not implement " + name);
+    }
+
+    /**
+     * @return number of calls per method name
+     */
+    public Map<String, Long> getCalls() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for(Map.Entry<String, AtomicLong> entry : this.calls.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public long getTotalCalls() {
+        long total = 0;
+        for(AtomicLong count : this.calls.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    public long getObjectsReturned() {
+        return this.objectsReturned.get();
+    }
+
+    public void resetCounters() {
+        this.calls.clear();
+        this.objectsReturned.set(0);
+    }
+
+    private void count(String method) {
+        AtomicLong count = this.calls.get(method);
+        if(count == null) {
+            synchronized (this.calls) {
+                count = this.calls.get(method);
+                if(count == null) {
+                    count = new AtomicLong();
+                    this.calls.put(method, count);
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private ManagedObjectReference createContainerView(ManagedObjectReference container, List<?> types, Boolean recursive) {
+        SimulatedInventory.Entity entity = this.inventory.get(container);
+        if(entity == null) {
+            throw new IllegalArgumentException("Unknown container " + container.getValue());
+        }
+        List<String> typeNames = new ArrayList<String>();
+        for(Object type : types) {
+            typeNames.add(String.valueOf(type));
+        }
+        ManagedObjectReference view = new ManagedObjectReference();
+        view.setType("ContainerView");
+        view.setValue("session[sim]view-" + this.nextId.incrementAndGet());
+        this.views.put(view.getValue(), this.inventory.contents(entity, typeNames, recursive != null && recursive));
+        return view;
+    }
+
+    private RetrieveResult retrievePropertiesEx(List<?> specs, RetrieveOptions options) {
+        int limit = this.pageSize;
+        if(options != null && options.getMaxObjects() != null && options.getMaxObjects() > 0) {
+            limit = Math.min(limit, options.getMaxObjects());
+        }
+        List<ObjectContent> contents = new ArrayList<ObjectContent>();
+        for(Object spec : specs) {
+            this.collect((PropertyFilterSpec) spec, contents);
+        }
+        if(contents.isEmpty()) {
+            return null;
+        }
+        String token = String.valueOf(this.nextId.incrementAndGet());
+        this.pages.put(token, contents);
+        this.pageLimits.put(token, limit);
+        return this.nextPage(token);
+    }
+
+    private RetrieveResult nextPage(String token) {
+        List<ObjectContent> remaining = this.pages.remove(token);
+        Integer limit = this.pageLimits.remove(token);
+        if(remaining == null) {
+            throw new IllegalArgumentException("Unknown token " + token);
+        }
+        RetrieveResult result = new RetrieveResult();
+        int count = Math.min(limit, remaining.size());
+        result.getObjects().addAll(remaining.subList(0, count));
+        this.objectsReturned.addAndGet(count);
+        if(count < remaining.size()) {
+            String next = String.valueOf(this.nextId.incrementAndGet());
+            this.pages.put(next, new ArrayList<ObjectContent>(remaining.subList(count, remaining.size())));
+            this.pageLimits.put(next, limit);
+            result.setToken(next);
+        }
+        return result;
+    }
+
+    /**
+     * Walks the object specs and their traversal specs and returns the requested properties of every entity reached
+     * whose type has a property spec.
+     */
+    private void collect(PropertyFilterSpec filter, List<ObjectContent> contents) {
+        Map<String, SimulatedInventory.Entity> reached = new LinkedHashMap<String, SimulatedInventory.Entity>();
+        for(ObjectSpec objectSpec : filter.getObjectSet()) {
+            ManagedObjectReference reference = objectSpec.getObj();
+            List<SimulatedInventory.Entity> view = this.views.get(reference.getValue());
+            if(view != null) {
+                this.select(view, objectSpec.getSelectSet(), reached);
+                continue;
+            }
+            SimulatedInventory.Entity entity = this.inventory.get(reference);
+            if(entity == null) {
+                continue;
+            }
+            if(objectSpec.isSkip() == null || !objectSpec.isSkip()) {
+                reached.put(entity.reference.getValue(), entity);
+            }
+            List<SimulatedInventory.Entity> start = new ArrayList<SimulatedInventory.Entity>();
+            start.add(entity);
+            this.traverse(start, objectSpec.getSelectSet(), reached);
+        }
+        for(SimulatedInventory.Entity entity : reached.values()) {
+            ObjectContent content = null;
+            for(PropertySpec propertySpec : filter.getPropSet()) {
+                if(!SimulatedInventory.isA(entity.getType(), propertySpec.getType())) {
+                    continue;
+                }
+                if(content == null) {
+                    content = new ObjectContent();
+                    content.setObj(entity.reference);
+                }
+                for(String path : propertySpec.getPathSet()) {
+                    Object value = this.inventory.getProperty(entity, path);
+                    if(value != null) {
+                        DynamicProperty property = new DynamicProperty();
+                        property.setName(path);
+                        property.setVal(value);
+                        content.getPropSet().add(property);
+                    }
+                }
+            }
+            if(content != null) {
+                contents.add(content);
+            }
+        }
+    }
+
+    /**
+     * The object of the spec is a container view: its "view" traversal reaches the view contents.
+     */
+    private void select(List<SimulatedInventory.Entity> view, List<SelectionSpec> selectSet, Map<String, SimulatedInventory.Entity> reached) {
+        for(SelectionSpec selection : selectSet) {
+            if(!(selection instanceof TraversalSpec) || !"view".equals(((TraversalSpec) selection).getPath())) {
+                continue;
+            }
+            TraversalSpec traversal = (TraversalSpec) selection;
+            if(traversal.isSkip() == null || !traversal.isSkip()) {
+                for(SimulatedInventory.Entity entity : view) {
+                    reached.put(entity.reference.getValue(), entity);
+                }
+            }
+            this.traverse(view, traversal.getSelectSet(), reached);
+        }
+    }
+
+    private void traverse(List<SimulatedInventory.Entity> from, List<SelectionSpec> selectSet, Map<String, SimulatedInventory.Entity> reached) {
+        for(SelectionSpec selection : selectSet) {
+            if(!(selection instanceof TraversalSpec)) {
+                continue;
+            }
+            TraversalSpec traversal = (TraversalSpec) selection;
+            List<SimulatedInventory.Entity> next = new ArrayList<SimulatedInventory.Entity>();
+            for(SimulatedInventory.Entity entity : from) {
+                if(SimulatedInventory.isA(entity.getType(), traversal.getType())) {
+                    next.addAll(this.inventory.traverse(entity, traversal.getPath()));
+                }
+            }
+            if(traversal.isSkip() == null || !traversal.isSkip()) {
+                for(SimulatedInventory.Entity entity : next) {
+                    reached.put(entity.reference.getValue(), entity);
+                }
+            }
+            this.traverse(next, traversal.getSelectSet(), reached);
+        }
+    }
+}
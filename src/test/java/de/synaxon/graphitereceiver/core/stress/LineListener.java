@@ -0,0 +1,130 @@
+package de.synaxon.graphitereceiver.core.stress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LineListener is a plaintext Graphite endpoint inside the JVM. Every accepted connection is read by its own thread
+ * and every complete line is handed to the {@link Handler}. Bytes left without line terminator when a connection is
+ * closed count as a torn line.
+ */
+public class LineListener {
+
+    /**
+     * Receives the lines of all connections, called from several threads.
+     */
+    public interface Handler {
+        void line(String line);
+    }
+
+    private final ServerSocket server;
+    private final Handler handler;
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong torn = new AtomicLong();
+    private volatile boolean running = true;
+
+    public LineListener(Handler handler) throws IOException {
+        this.handler = handler;
+        this.server = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "LineListener-Accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return this.server.getLocalPort();
+    }
+
+    private void accept() {
+        while(this.running) {
+            try {
+                final Socket socket = this.server.accept();
+                this.connections.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        read(socket);
+                    }
+                }, "LineListener-" + this.connections.get());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        StringBuilder line = new StringBuilder(128);
+        byte[] buffer = new byte[65536];
+        try {
+            InputStream in = socket.getInputStream();
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                for(int i = 0; i < read; i++) {
+                    if(buffer[i] == '\n') {
+                        this.handler.line(line.toString());
+                        this.lines.incrementAndGet();
+                        line.setLength(0);
+                    } else {
+                        line.append((char) buffer[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // a reset connection ends like a closed one
+        } finally {
+            if(line.length() > 0) {
+                this.torn.incrementAndGet();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+
+    /**
+     * Waits until the expected number of lines arrived, then a little longer for lines beyond it.
+     *
+     * @return lines received so far
+     */
+    public long awaitLines(long expected, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(this.lines.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        return this.lines.get();
+    }
+
+    public long getLines() {
+        return this.lines.get();
+    }
+
+    public long getConnections() {
+        return this.connections.get();
+    }
+
+    public long getTorn() {
+        return this.torn.get();
+    }
+
+    public void close() {
+        this.running = false;
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
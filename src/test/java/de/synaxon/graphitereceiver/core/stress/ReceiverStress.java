@@ -0,0 +1,599 @@
+package de.synaxon.graphitereceiver.core.stress;
+
+import com.vmware.ee.statsfeeder.Configuration;
+import com.vmware.ee.statsfeeder.MOREFRetriever;
+import com.vmware.ee.statsfeeder.PerfMetricSet;
+import de.synaxon.graphitereceiver.core.MetricsReceiver;
+import de.synaxon.graphitereceiver.core.capture.ReplayedMetricSet;
+import de.synaxon.graphitereceiver.core.simulator.SimulatedInventory;
+import de.synaxon.graphitereceiver.core.simulator.SimulatedVCenter;
+import de.synaxon.graphitereceiver.domain.Rollup;
+import de.synaxon.graphitereceiver.utils.Calculate;
+import de.synaxon.graphitereceiver.utils.SampleStats;
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+import de.synaxon.graphitereceiver.utils.Utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReceiverStress runs the receiver with many worker threads against a {@link SimulatedVCenter} and a
+ * {@link LineListener}, and checks the state shared by the threads while it changes under them:
+ * <pre>
+ *     java -cp target/classes:target/test-classes:... de.synaxon.graphitereceiver.core.stress.ReceiverStress \
+ *          [scenarios, default all] [vms, default 2000] [threads, default 16] [retrievals, default 20]
+ * </pre>
+ * <ul>
+ *     <li>cluster_refresh: a thread keeps refreshing the cluster map while the workers look entities up</li>
+ *     <li>host_refresh: a thread keeps reloading the host map, alternating between two map prefixes</li>
+ *     <li>aggregation: Calculate, SampleStats and StripedCounter from all threads against a single threaded run</li>
+ *     <li>reconnect: striped writers reconnecting every few lines</li>
+ *     <li>scaling: metric sets per second from 1 to 32 worker threads, synchronized and with striped_writers</li>
+ * </ul>
+ * Every VM and ESX host sends one cpu.usage.average metric set per retrieval whose value encodes the entity and the
+ * retrieval, so every line must arrive exactly once, complete, with the path of its entity and its own value.
+ * Each check prints PASS or FAIL, the exit code is 1 if one failed.
+ */
+public class ReceiverStress {
+
+    private static final int FREQUENCY = 60;
+    private static final long START_EPOCH = 1500000000L;
+    private static final String LEAF = ".cpu.usage_average_rate";
+    private static final int[] SCALING_THREADS = {1, 2, 4, 8, 16, 32};
+
+    private static class StressConfiguration extends Configuration {
+        @Override
+        public Integer getFrequencyInSeconds() {
+            return FREQUENCY;
+        }
+    }
+
+    /**
+     * Entity names are "[Type] name" as in StatsFeeder.
+     */
+    private static class StressMorefRetriever extends MOREFRetriever {
+        @Override
+        public String parseEntityName(String entityName) {
+            int separator = entityName.indexOf("] ");
+            return (separator < 0) ? "" : entityName.substring(separator + 2);
+        }
+
+        @Override
+        public String getContainerName(String entityName) {
+            return entityName;
+        }
+    }
+
+    private static class StressContext extends SimulatedVCenter {
+        private final Configuration configuration = new StressConfiguration();
+        private final MOREFRetriever morefRetriever = new StressMorefRetriever();
+
+        StressContext(SimulatedInventory inventory) {
+            super(inventory, 0, 1000);
+        }
+
+        @Override
+        public Configuration getConfiguration() {
+            return this.configuration;
+        }
+
+        @Override
+        public MOREFRetriever getMorefRetriever() {
+            return this.morefRetriever;
+        }
+    }
+
+    /**
+     * A VM or ESX host of the inventory, its index is part of every value it sends.
+     */
+    private static class Entity {
+        private final String entityName;
+        private final String name;
+        private final String eName;
+        private final String cluster;
+        private final int index;
+
+        Entity(String type, String name, String cluster, int index) {
+            this.entityName = "[" + type + "] " + name;
+            this.name = name;
+            this.eName = name.replace('.', '_').replace(' ', '_').replace('-', '_');
+            this.cluster = cluster;
+            this.index = index;
+        }
+
+        /**
+         * @return three samples with the mean index + retrieval + 1 and the last timestamp at the end of the retrieval
+         */
+        PerfMetricSet metricSet(int retrieval, String[] timestamps) {
+            List<ReplayedMetricSet.ReplayedMetric> metrics = new ArrayList<ReplayedMetricSet.ReplayedMetric>(3);
+            for(int i = 0; i < timestamps.length; i++) {
+                metrics.add(new ReplayedMetricSet.ReplayedMetric(timestamps[i], String.valueOf(this.index + retrieval + i)));
+            }
+            return new ReplayedMetricSet(this.entityName, "", "cpu.usage.average", "rate", FREQUENCY / timestamps.length, metrics);
+        }
+    }
+
+    /**
+     * Checks every line against the accepted paths of the entities and the value of the retrieval of its epoch.
+     */
+    private static class Validator implements LineListener.Handler {
+        private final Map<String, Integer> paths = new HashMap<String, Integer>();
+        private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final AtomicLong malformed = new AtomicLong();
+        private final AtomicLong unknown = new AtomicLong();
+        private final AtomicLong wrongValue = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicInteger reported = new AtomicInteger();
+
+        void accept(String path, int index) {
+            this.paths.put(path, index);
+        }
+
+        public void line(String line) {
+            String[] fields = line.split(" ");
+            double value;
+            long epoch;
+            try {
+                if(fields.length != 3) {
+                    throw new NumberFormatException();
+                }
+                value = Double.parseDouble(fields[1]);
+                epoch = Long.parseLong(fields[2]);
+            } catch (NumberFormatException e) {
+                this.malformed.incrementAndGet();
+                this.report("malformed", line);
+                return;
+            }
+            Integer index = this.paths.get(fields[0]);
+            if(index == null) {
+                this.unknown.incrementAndGet();
+                this.report("unknown path", line);
+                return;
+            }
+            long retrieval = (epoch - START_EPOCH - FREQUENCY) / FREQUENCY;
+            if(value != index + retrieval + 1) {
+                this.wrongValue.incrementAndGet();
+                this.report("wrong value", line);
+            }
+            if(!this.seen.add(fields[0] + " " + epoch)) {
+                this.duplicates.incrementAndGet();
+                this.report("duplicate", line);
+            }
+        }
+
+        private void report(String problem, String line) {
+            if(this.reported.incrementAndGet() <= 5) {
+                System.out.println("  " + problem + ": " + line);
+            }
+        }
+
+        boolean isClean() {
+            return this.malformed.get() == 0 && this.unknown.get() == 0 && this.wrongValue.get() == 0 && this.duplicates.get() == 0;
+        }
+
+        String summary() {
+            return "malformed " + this.malformed.get() + ", unknown path " + this.unknown.get() + ", wrong value " + this.wrongValue.get()
+                    + ", duplicates " + this.duplicates.get();
+        }
+    }
+
+    /**
+     * Calls an action in a loop on its own thread until stopped.
+     */
+    private static class Repeater {
+        private final AtomicBoolean running = new AtomicBoolean(true);
+        private final AtomicInteger iterations = new AtomicInteger();
+        private final Thread thread;
+
+        Repeater(String name, final Runnable action) {
+            this.thread = new Thread(new Runnable() {
+                public void run() {
+                    while(running.get()) {
+                        action.run();
+                        iterations.incrementAndGet();
+                    }
+                }
+            }, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        int stop() throws InterruptedException {
+            this.running.set(false);
+            this.thread.join();
+            return this.iterations.get();
+        }
+    }
+
+    private static boolean failed;
+
+    public static void main(String[] args) throws Exception {
+        List<String> scenarios = Arrays.asList(((args.length > 0) ? args[0] : "cluster_refresh,host_refresh,aggregation,reconnect,scaling").split(","));
+        int vms = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+        int retrievals = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+
+        StressContext context = new StressContext(new SimulatedInventory(vms, 25, 16));
+        List<Entity> entities = entities(context);
+        System.out.println(String.format("%d VMs and ESX hosts, %d worker threads, %d retrievals", entities.size(), threads, retrievals));
+
+        if(scenarios.contains("cluster_refresh")) {
+            clusterRefresh(context, entities, threads, retrievals);
+        }
+        if(scenarios.contains("host_refresh")) {
+            hostRefresh(context, entities, threads, retrievals);
+        }
+        if(scenarios.contains("aggregation")) {
+            aggregation(threads);
+        }
+        if(scenarios.contains("reconnect")) {
+            reconnect(context, entities, threads, retrievals);
+        }
+        if(scenarios.contains("scaling")) {
+            scaling(context, entities, retrievals);
+        }
+        System.out.println(failed ? "FAILED" : "PASSED");
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return the VMs and ESX hosts of the inventory with their cluster from a complete cluster map
+     */
+    private static List<Entity> entities(StressContext context) {
+        Map<String, String> clusterMap = new HashMap<String, String>();
+        Utils.initClusterHostMap(null, null, context, clusterMap);
+        SimulatedInventory inventory = context.getInventory();
+        List<Entity> entities = new ArrayList<Entity>();
+        for(int v = 0; v < inventory.getVms(); v++) {
+            String name = inventory.getVmName(v);
+            entities.add(new Entity("VirtualMachine", name, clusterMap.get(name), entities.size()));
+        }
+        for(int h = 0; h < inventory.getHosts(); h++) {
+            String name = "esx" + h + ".sim.local";
+            entities.add(new Entity("HostSystem", name, clusterMap.get(name), entities.size()));
+        }
+        return entities;
+    }
+
+    private static void clusterRefresh(StressContext context, List<Entity> entities, int threads, int retrievals) throws Exception {
+        Validator validator = new Validator();
+        for(Entity entity : entities) {
+            validator.accept("vmware." + entity.cluster + "." + entity.eName + LEAF, entity.index);
+        }
+        LineListener listener = new LineListener(validator);
+        final MetricsReceiver receiver = receiver(context, listener.getPort(), striped(threads));
+        ExecutorService workers = workers(threads);
+
+        Repeater refresher = new Repeater("ClusterMapRefresher", new Runnable() {
+            public void run() {
+                receiver.refreshClusterMapPeriod();
+            }
+        });
+        retrieve(receiver, entities, workers, threads, 0, retrievals);
+        int refreshes = refresher.stop();
+
+        verify("cluster_refresh", listener, validator, (long) entities.size() * retrievals, refreshes + " cluster map refreshes");
+        close(receiver, listener, workers);
+    }
+
+    private static void hostRefresh(StressContext context, List<Entity> entities, int threads, int retrievals) throws Exception {
+        Validator validator = new Validator();
+        StringBuilder mapA = new StringBuilder();
+        StringBuilder mapB = new StringBuilder();
+        for(Entity entity : entities) {
+            if(entity.entityName.startsWith("[VirtualMachine]")) {
+                validator.accept("hmA." + entity.name + ".s" + LEAF, entity.index);
+                validator.accept("hmB." + entity.name + ".s" + LEAF, entity.index);
+                mapA.append(entity.name).append(";hmA;s\n");
+                mapB.append(entity.name).append(";hmB;s\n");
+            } else {
+                validator.accept("vmware." + entity.cluster + "." + entity.eName + LEAF, entity.index);
+            }
+        }
+        final File mapFile = File.createTempFile("graphitereceiver-stress", ".map");
+        mapFile.deleteOnExit();
+        write(mapFile, mapA.toString());
+
+        LineListener listener = new LineListener(validator);
+        Properties props = striped(threads);
+        props.setProperty("use_alternate_vm_prefix_sufix", "true");
+        props.setProperty("alternate_vm_prefix_sufix_map_file", mapFile.getPath());
+        props.setProperty("alternate_vm_prefix_sufix_timeout", "31536000");
+        final MetricsReceiver receiver = receiver(context, listener.getPort(), props);
+        ExecutorService workers = workers(threads);
+
+        final String[] maps = {mapA.toString(), mapB.toString()};
+        Repeater refresher = new Repeater("HostMapRefresher", new Runnable() {
+            private int next = 1;
+
+            public void run() {
+                try {
+                    File replacement = new File(mapFile.getPath() + ".new");
+                    write(replacement, maps[this.next]);
+                    if(!replacement.renameTo(mapFile)) {
+                        throw new IOException("cannot replace " + mapFile);
+                    }
+                    this.next = 1 - this.next;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                receiver.refreshHostMapPeriod();
+            }
+        });
+        retrieve(receiver, entities, workers, threads, 0, retrievals);
+        int refreshes = refresher.stop();
+
+        verify("host_refresh", listener, validator, (long) entities.size() * retrievals, refreshes + " host map reloads");
+        close(receiver, listener, workers);
+    }
+
+    private static void reconnect(StressContext context, List<Entity> entities, int threads, int retrievals) throws Exception {
+        Validator validator = new Validator();
+        for(Entity entity : entities) {
+            validator.accept("vmware." + entity.cluster + "." + entity.eName + LEAF, entity.index);
+        }
+        LineListener listener = new LineListener(validator);
+        Properties props = striped(threads);
+        props.setProperty("graphite_force_reconnect_timeout", "37");
+        MetricsReceiver receiver = receiver(context, listener.getPort(), props);
+        ExecutorService workers = workers(threads);
+
+        retrieve(receiver, entities, workers, threads, 0, retrievals);
+
+        long expected = (long) entities.size() * retrievals;
+        verify("reconnect", listener, validator, expected, "reconnect every 37 lines");
+        check("reconnect", "connection reset every 37 lines", listener.getConnections() >= expected / 37,
+                listener.getConnections() + " connections for " + expected + " lines");
+        close(receiver, listener, workers);
+    }
+
+    /**
+     * Runs Calculate and SampleStats on the same metric sets from all threads, every result must equal the one of a
+     * single threaded run. Timestamps are spread over years so a shared date format would mix them up.
+     */
+    private static void aggregation(int threads) throws Exception {
+        final int sets = 2000;
+        final int passes = 20;
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Random random = new Random(42);
+        final List<PerfMetricSet> metricSets = new ArrayList<PerfMetricSet>(sets);
+        final String[][] calculated = new String[sets][];
+        final double[][] stats = new double[sets][];
+        final Rollup[] rollups = {Rollup.AVERAGE, Rollup.LATEST, Rollup.MAXIMUM, Rollup.MINIMUM, Rollup.SUMMATION};
+        SampleStats reference = new SampleStats();
+        for(int i = 0; i < sets; i++) {
+            List<ReplayedMetricSet.ReplayedMetric> metrics = new ArrayList<ReplayedMetricSet.ReplayedMetric>();
+            long epoch = START_EPOCH + i * 86401L;
+            for(int s = 0; s < 15; s++) {
+                metrics.add(new ReplayedMetricSet.ReplayedMetric(format.format(new Date((epoch + s * 20) * 1000)), String.valueOf(random.nextInt(1000000) / 100.0)));
+            }
+            PerfMetricSet metricSet = new ReplayedMetricSet("[VirtualMachine] vm-" + i, "", "cpu.usage.average", "rate", 20, metrics);
+            metricSets.add(metricSet);
+            calculated[i] = calculate(metricSet);
+            reference.read(metricSet.getMetrics());
+            stats[i] = new double[rollups.length + 1];
+            for(int r = 0; r < rollups.length; r++) {
+                stats[i][r] = reference.getValue(rollups[r]);
+            }
+            stats[i][rollups.length] = reference.getEpoch();
+        }
+
+        final AtomicLong mismatches = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final StripedCounter counter = new StripedCounter();
+        final int increments = 1000000;
+        ExecutorService workers = workers(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for(int t = 0; t < threads; t++) {
+            final int offset = t * (sets / threads);
+            futures.add(workers.submit(new Runnable() {
+                public void run() {
+                    SampleStats sampleStats = new SampleStats();
+                    for(int pass = 0; pass < passes; pass++) {
+                        for(int n = 0; n < sets; n++) {
+                            int i = (offset + n) % sets;
+                            try {
+                                if(!Arrays.equals(calculated[i], calculate(metricSets.get(i)))) {
+                                    mismatches.incrementAndGet();
+                                }
+                                sampleStats.read(metricSets.get(i).getMetrics());
+                                for(int r = 0; r < rollups.length; r++) {
+                                    if(sampleStats.getValue(rollups[r]) != stats[i][r]) {
+                                        mismatches.incrementAndGet();
+                                    }
+                                }
+                                if(sampleStats.getEpoch() != (long) stats[i][rollups.length]) {
+                                    mismatches.incrementAndGet();
+                                }
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                    for(int n = 0; n < increments; n++) {
+                        counter.increment();
+                    }
+                }
+            }));
+        }
+        for(Future<?> future : futures) {
+            future.get();
+        }
+        workers.shutdown();
+        long aggregations = (long) threads * passes * sets;
+        check("aggregation", "Calculate and SampleStats results", mismatches.get() == 0 && errors.get() == 0,
+                aggregations + " aggregations, " + mismatches.get() + " mismatches, " + errors.get() + " errors");
+        check("aggregation", "StripedCounter sum", counter.sum() == (long) threads * increments,
+                counter.sum() + " of " + ((long) threads * increments));
+    }
+
+    private static String[] calculate(PerfMetricSet metricSet) throws Exception {
+        return new String[] {
+                Calculate.average(metricSet.getMetrics()),
+                Calculate.latest(metricSet.getMetrics()),
+                Calculate.maximun(metricSet.getMetrics()),
+                Calculate.minimun(metricSet.getMetrics()),
+                Calculate.sumation(metricSet.getMetrics())
+        };
+    }
+
+    /**
+     * Measures the metric sets per second of a synchronized receiver and of striped writers with one lane per thread.
+     */
+    private static void scaling(StressContext context, List<Entity> entities, int retrievals) throws Exception {
+        int warmup = 2;
+        long expectedLines = 0;
+        long receivedLines = 0;
+        System.out.println(String.format("%-8s %18s %18s %8s", "threads", "synchronized /s", "striped /s", "ratio"));
+        for(int threads : SCALING_THREADS) {
+            long[] rates = new long[2];
+            for(int mode = 0; mode < 2; mode++) {
+                LineListener listener = new LineListener(new LineListener.Handler() {
+                    public void line(String line) {
+                    }
+                });
+                Properties props = (mode == 0) ? new Properties() : striped(threads);
+                MetricsReceiver receiver = receiver(context, listener.getPort(), props);
+                ExecutorService workers = workers(threads);
+                retrieve(receiver, entities, workers, threads, 0, warmup);
+                long start = System.nanoTime();
+                long sent = retrieve(receiver, entities, workers, threads, warmup, retrievals);
+                long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+                rates[mode] = sent * 1000 / elapsed;
+                long expected = (long) entities.size() * (warmup + retrievals);
+                expectedLines += expected;
+                receivedLines += listener.awaitLines(expected, 30000);
+                close(receiver, listener, workers);
+            }
+            System.out.println(String.format("%-8d %18d %18d %8.2f", threads, rates[0], rates[1], rates[1] / (double) Math.max(1, rates[0])));
+        }
+        check("scaling", "every line once", receivedLines == expectedLines, receivedLines + " of " + expectedLines + " lines");
+    }
+
+    /**
+     * Runs retrievals like StatsFeeder: every worker thread sends its share of the entities between
+     * onStartRetrieval and onEndRetrieval.
+     *
+     * @return metric sets sent
+     */
+    private static long retrieve(final MetricsReceiver receiver, final List<Entity> entities, ExecutorService workers, final int threads,
+                                 int firstRetrieval, int retrievals) throws Exception {
+        long sent = 0;
+        for(int r = firstRetrieval; r < firstRetrieval + retrievals; r++) {
+            final int retrieval = r;
+            final String[] timestamps = timestamps(retrieval);
+            receiver.onStartRetrieval();
+            List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+            for(int t = 0; t < threads; t++) {
+                final int first = t;
+                futures.add(workers.submit(new Runnable() {
+                    public void run() {
+                        for(int i = first; i < entities.size(); i += threads) {
+                            Entity entity = entities.get(i);
+                            receiver.receiveStats(entity.entityName, entity.metricSet(retrieval, timestamps));
+                        }
+                    }
+                }));
+            }
+            for(Future<?> future : futures) {
+                future.get();
+            }
+            receiver.onEndRetrieval();
+            sent += entities.size();
+        }
+        return sent;
+    }
+
+    /**
+     * @return the timestamps of the three 20 second samples of the retrieval
+     */
+    private static String[] timestamps(int retrieval) {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String[] timestamps = new String[3];
+        for(int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = format.format(new Date((START_EPOCH + retrieval * FREQUENCY + (i + 1) * (FREQUENCY / 3)) * 1000));
+        }
+        return timestamps;
+    }
+
+    private static void verify(String scenario, LineListener listener, Validator validator, long expected, String detail) throws InterruptedException {
+        long received = listener.awaitLines(expected, 30000);
+        check(scenario, "every line once", received == expected, received + " of " + expected + " lines, " + detail);
+        check(scenario, "lines intact and correct", validator.isClean() && listener.getTorn() == 0,
+                validator.summary() + ", torn " + listener.getTorn());
+    }
+
+    private static void check(String scenario, String name, boolean passed, String detail) {
+        System.out.println(String.format("%-16s %-4s %s: %s", scenario, passed ? "PASS" : "FAIL", name, detail));
+        failed |= !passed;
+    }
+
+    private static Properties striped(int threads) {
+        Properties props = new Properties();
+        props.setProperty("striped_writers", "true");
+        props.setProperty("striped_writers_lanes", String.valueOf(threads));
+        return props;
+    }
+
+    private static MetricsReceiver receiver(StressContext context, int port, Properties settings) {
+        Properties props = new Properties();
+        props.setProperty("host", "127.0.0.1");
+        props.setProperty("port", String.valueOf(port));
+        props.setProperty("cluster_map_refresh_timeout", "31536000");
+        props.putAll(settings);
+        MetricsReceiver receiver = new MetricsReceiver("stress", props);
+        receiver.setExecutionContext(context);
+        return receiver;
+    }
+
+    private static ExecutorService workers(int threads) {
+        final AtomicInteger number = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StressWorker-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static void close(MetricsReceiver receiver, LineListener listener, ExecutorService workers) {
+        receiver.shutdown();
+        listener.close();
+        workers.shutdown();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package de.synaxon.graphitereceiver.core.stress;
+
+import de.synaxon.graphitereceiver.utils.StripedCounter;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.JJ_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * jcstress test of the {@link StripedCounter} drained by the statistics thread while a worker adds to it: every
+ * increment is counted either by sumThenReset or afterwards, never twice and never lost. jcstress needs at least two
+ * CPUs to schedule the actors, StripedCounterTest checks the same property with plain threads in the unit tests.
+ * <pre>
+ *     java -cp target/classes:target/test-classes:jcstress-core.jar org.openjdk.jcstress.Main -t StripedCounterStress
+ * </pre>
+ */
+@JCStressTest
+@Description("An increment racing sumThenReset is counted exactly once")
+@Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "Drained after the increment")
+@Outcome(id = "0, 1", expect = ACCEPTABLE, desc = "Drained before the increment")
+@Outcome(expect = FORBIDDEN, desc = "Increment lost or counted twice")
+@State
+public class StripedCounterStress {
+
+    private final StripedCounter counter = new StripedCounter();
+
+    @Actor
+    public void worker() {
+        this.counter.increment();
+    }
+
+    @Actor
+    public void drain(JJ_Result r) {
+        r.r1 = this.counter.sumThenReset();
+    }
+
+    @Arbiter
+    public void remaining(JJ_Result r) {
+        r.r2 = this.counter.sum();
+    }
+}
@@ -0,0 +1,55 @@
+package de.synaxon.graphitereceiver.utils;
+
+import de.synaxon.graphitereceiver.core.simulator.SimulatedInventory;
+import de.synaxon.graphitereceiver.core.simulator.SimulatedVCenter;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterHostMapTest {
+
+    @Test
+    public void poolNamesOfSeveralClustersAreLeftOut() {
+        SimulatedInventory inventory = new SimulatedInventory(100, 25, 2);
+        Map<String, String> clusterMap = clusterMap(inventory);
+        assertEquals(2, inventory.getClusters());
+        assertEquals(inventory.getClusterMapSize(), clusterMap.size());
+        assertFalse(clusterMap.containsKey("[ResourcePool]Resources"));
+        assertFalse(clusterMap.containsKey("[ResourcePool]Production"));
+        assertFalse(clusterMap.containsKey("[ResourcePool]Test"));
+        for(int c = 0; c < inventory.getClusters(); c++) {
+            String pool = inventory.getTenantPoolName(c).replace(" ", "_");
+            assertEquals(inventory.getClusterName(c).replace(" ", "_"), clusterMap.get("[ResourcePool]" + pool));
+        }
+    }
+
+    @Test
+    public void poolsOfOneClusterAreKept() {
+        SimulatedInventory inventory = new SimulatedInventory(50, 25, 2);
+        Map<String, String> clusterMap = clusterMap(inventory);
+        assertEquals(1, inventory.getClusters());
+        assertEquals(inventory.getClusterMapSize(), clusterMap.size());
+        assertEquals("Cluster_0", clusterMap.get("[ResourcePool]Resources"));
+        assertEquals("Cluster_0", clusterMap.get("[ResourcePool]Production"));
+    }
+
+    @Test
+    public void sharedDatastoreStaysWithTheFirstCluster() {
+        SimulatedInventory inventory = new SimulatedInventory(100, 25, 2);
+        Map<String, String> clusterMap = clusterMap(inventory);
+        assertTrue(clusterMap.containsKey("[Datastore]iso-library"));
+        assertEquals("Cluster_1", clusterMap.get("[Datastore]ds-c1-lun0"));
+        assertEquals("Cluster_1", clusterMap.get(inventory.getVmName(99)));
+    }
+
+    private static Map<String, String> clusterMap(SimulatedInventory inventory) {
+        Map<String, String> clusterMap = new HashMap<String, String>();
+        assertTrue(Utils.initClusterHostMap(null, null, new SimulatedVCenter(inventory, 0, 7), clusterMap));
+        return clusterMap;
+    }
+}
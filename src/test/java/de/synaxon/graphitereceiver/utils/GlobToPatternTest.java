@@ -0,0 +1,82 @@
+package de.synaxon.graphitereceiver.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GlobToPatternTest {
+
+    @Test
+    public void wildcardsStayWithinOnePathElement() {
+        assertMatches("vmware.*.cpu", "vmware.c1.cpu");
+        assertNotMatches("vmware.*.cpu", "vmware.c1.vm01.cpu");
+        assertMatches("vm0?", "vm01");
+        assertNotMatches("vm0?", "vm0.");
+        assertMatches("vmware.c1", "vmware.c1");
+        assertNotMatches("vmware.c1", "vmwareXc1");
+    }
+
+    @Test
+    public void characterClasses() {
+        assertMatches("vm[a-z]", "vmb");
+        assertNotMatches("vm[a-z]", "vm1");
+        assertMatches("vm[0-9][0-9]", "vm42");
+        assertMatches("vm[.]", "vm.");
+        assertNotMatches("vm[.]", "vmx");
+        assertMatches("vm[]]", "vm]");
+        assertMatches("x[a^]", "x^");
+        assertMatches("x[\\]", "x\\");
+    }
+
+    @Test
+    public void negatedCharacterClasses() {
+        assertMatches("vm[!a-z]", "vm1");
+        assertNotMatches("vm[!a-z]", "vmb");
+        assertMatches("vm[^a-z]", "vm1");
+        assertNotMatches("vm[^a-z]", "vmb");
+        assertMatches("vm[!]]", "vmx");
+        assertNotMatches("vm[!]]", "vm]");
+    }
+
+    @Test
+    public void unclosedClassMatchesItself() {
+        assertMatches("vm[", "vm[");
+        assertMatches("a[]", "a[]");
+    }
+
+    @Test
+    public void alternatives() {
+        assertMatches("{cpu,mem}.usage", "cpu.usage");
+        assertMatches("{cpu,mem}.usage", "mem.usage");
+        assertNotMatches("{cpu,mem}.usage", "disk.usage");
+        assertMatches("{a,b}[12]", "b2");
+        assertMatches("a,b", "a,b");
+    }
+
+    @Test
+    public void invalidGlobsAreRejected() {
+        assertInvalid("cpu}");
+        assertInvalid("{cpu,mem");
+        assertInvalid("{a,{b,c}}");
+        assertInvalid("vm[z-a]");
+    }
+
+    private static void assertMatches(String glob, String path) {
+        assertTrue(glob + " should match " + path, Utils.globToPattern(glob).matcher(path).matches());
+    }
+
+    private static void assertNotMatches(String glob, String path) {
+        assertFalse(glob + " should not match " + path, Utils.globToPattern(glob).matcher(path).matches());
+    }
+
+    private static void assertInvalid(String glob) {
+        try {
+            Utils.globToPattern(glob);
+            fail(glob + " should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(glob));
+        }
+    }
+}
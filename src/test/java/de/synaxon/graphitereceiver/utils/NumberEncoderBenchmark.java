@@ -0,0 +1,55 @@
+package de.synaxon.graphitereceiver.utils;
+
+import java.util.Random;
+
+/**
+ * Compares {@link NumberEncoder} with {@code StringBuilder.append(double)} on a value mix typical for vSphere counters:
+ * integer counters, percentages scaled by 1/100 and averages.
+ * <pre>
+ *     java -cp target/classes:target/test-classes de.synaxon.graphitereceiver.utils.NumberEncoderBenchmark [values] [decimals]
+ * </pre>
+ * decimals is -1 for the shortest round trip (default). Prints bytes per value and ns per encoded value.
+ */
+public class NumberEncoderBenchmark {
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int decimals = (args.length > 1) ? Integer.parseInt(args[1]) : NumberEncoder.SHORTEST;
+        double[] values = new double[count];
+        Random random = new Random(42);
+        for(int i = 0; i < count; i++) {
+            switch (i % 3) {
+                case 0:
+                    values[i] = random.nextInt(1000000);
+                    break;
+                case 1:
+                    values[i] = random.nextInt(10000) / 100.0;
+                    break;
+                default:
+                    values[i] = random.nextInt(1000000) / 3.0;
+            }
+        }
+        StringBuilder line = new StringBuilder(64);
+        for(int round = 0; round < 5; round++) {
+            long jdkBytes = 0;
+            long start = System.nanoTime();
+            for(double value : values) {
+                line.setLength(0);
+                line.append(value);
+                jdkBytes += line.length();
+            }
+            long jdkNanos = System.nanoTime() - start;
+
+            long encoderBytes = 0;
+            start = System.nanoTime();
+            for(double value : values) {
+                line.setLength(0);
+                NumberEncoder.append(line, value, decimals);
+                encoderBytes += line.length();
+            }
+            long encoderNanos = System.nanoTime() - start;
+            System.out.println(String.format("round %d  append(double): %.2f bytes %.1f ns/op  NumberEncoder: %.2f bytes %.1f ns/op",
+                    round, (double) jdkBytes / count, (double) jdkNanos / count, (double) encoderBytes / count, (double) encoderNanos / count));
+        }
+    }
+}
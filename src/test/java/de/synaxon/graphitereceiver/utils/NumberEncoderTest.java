@@ -0,0 +1,136 @@
+package de.synaxon.graphitereceiver.utils;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class NumberEncoderTest {
+
+    @Test
+    public void integersHaveNoDecimalPoint() {
+        assertEquals("0", shortest(0.0));
+        assertEquals("42", shortest(42.0));
+        assertEquals("-42", shortest(-42.0));
+        assertEquals("9007199254740991", shortest(9007199254740991.0));
+    }
+
+    @Test
+    public void negativeZeroIsWrittenAsZero() {
+        assertEquals("0", shortest(-0.0));
+        assertEquals("0", fixed(-0.0, 2));
+        assertEquals("0", fixed(-0.001, 2));
+    }
+
+    @Test
+    public void shortestDecimals() {
+        assertEquals("0.1", shortest(0.1));
+        assertEquals("0.3", shortest(0.3));
+        assertEquals("0.30000000000000004", shortest(0.1 + 0.2));
+        assertEquals("-12.5", shortest(-12.5));
+        assertEquals("1234.5678", shortest(1234.5678));
+    }
+
+    @Test
+    public void nanAndInfinityFallBack() {
+        assertEquals("NaN", shortest(Double.NaN));
+        assertEquals("Infinity", shortest(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", fixed(Double.NEGATIVE_INFINITY, 2));
+    }
+
+    @Test
+    public void valuesBeyondExactLongArithmeticRoundTrip() {
+        double[] values = { 9007199254740992.0, 9007199254740993.5e1, 1e21, Math.nextAfter(1e21, 0), Math.nextUp(1e21), 1e22,
+                -1e21, Double.MAX_VALUE, 123456789.123456789 };
+        for(double value : values) {
+            assertRoundTrip(value);
+        }
+        assertEquals(Double.toString(1e21), shortest(1e21));
+    }
+
+    @Test
+    public void subnormalsRoundTrip() {
+        double[] values = { Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, Math.nextAfter(Double.MIN_NORMAL, 0), 1e-310, 1e-16 };
+        for(double value : values) {
+            assertRoundTrip(value);
+        }
+    }
+
+    @Test
+    public void randomValuesRoundTrip() {
+        Random random = new Random(7);
+        for(int i = 0; i < 100000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextDouble() * 100;
+                    break;
+                case 1:
+                    value = Math.round(random.nextDouble() * 1e6) / 100.0;
+                    break;
+                case 2:
+                    value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(40) - 20);
+                    break;
+                default:
+                    value = Double.longBitsToDouble(random.nextLong());
+            }
+            if(!Double.isNaN(value)) {
+                assertRoundTrip(value);
+            }
+        }
+    }
+
+    @Test
+    public void fixedPrecisionRoundsHalfAwayFromZero() {
+        assertEquals("0.13", fixed(0.125, 2));
+        assertEquals("-0.13", fixed(-0.125, 2));
+        assertEquals("3", fixed(2.5, 0));
+        assertEquals("3", fixed(3.14159, 0));
+        assertEquals("3.14", fixed(3.14159, 2));
+        // the decimal digits are rounded, not the binary value 2.67499999...
+        assertEquals("2.68", fixed(2.675, 2));
+        assertEquals("581.19", fixed(581.185, 2));
+    }
+
+    @Test
+    public void fixedPrecisionRoundsLikeStringFormat() {
+        Random random = new Random(11);
+        for(int i = 0; i < 100000; i++) {
+            int decimals = random.nextInt(7);
+            double value = (i % 2 == 0) ? Math.round(random.nextDouble() * 1e7) / 1e4 + 0.00005 * random.nextInt(3)
+                    : (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(10));
+            String formatted = new BigDecimal(String.format(Locale.ROOT, "%." + decimals + "f", value)).stripTrailingZeros().toPlainString();
+            assertEquals(value + " " + decimals, formatted.equals("-0") ? "0" : formatted, fixed(value, decimals));
+        }
+    }
+
+    @Test
+    public void fixedPrecisionDropsTrailingZeros() {
+        assertEquals("1.1", fixed(1.10, 2));
+        assertEquals("2", fixed(1.999, 2));
+        assertEquals("0.5", fixed(0.5, 6));
+    }
+
+    @Test
+    public void fixedPrecisionIsLimited() {
+        assertEquals("0.1", fixed(0.1, 40));
+        assertEquals("1", fixed(0.5, -5));
+        assertEquals(Double.toString(1e20), fixed(1e20, 3));
+    }
+
+    private static String shortest(double value) {
+        return NumberEncoder.append(new StringBuilder(), value, NumberEncoder.SHORTEST).toString();
+    }
+
+    private static String fixed(double value, int decimals) {
+        return NumberEncoder.append(new StringBuilder(), value, decimals).toString();
+    }
+
+    private static void assertRoundTrip(double value) {
+        String encoded = shortest(value);
+        assertEquals(encoded, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(encoded)));
+    }
+}
@@ -0,0 +1,51 @@
+package de.synaxon.graphitereceiver.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTest {
+
+    @Test
+    public void sumsAllStripes() {
+        final StripedCounter counter = new StripedCounter();
+        counter.add(5);
+        counter.increment();
+        assertEquals(6, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void drainingWhileWorkersAddCountsEveryIncrementOnce() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final int workers = 8;
+        final int increments = 200000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < increments; i++) {
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        long drained = 0;
+        start.countDown();
+        while(done.getCount() > 0) {
+            drained += counter.sumThenReset();
+        }
+        drained += counter.sumThenReset();
+        assertEquals((long) workers * increments, drained);
+    }
+}